@@ -14,8 +14,17 @@
  * limitations under the License.
  */
 
+#if USE_INSTANCING
+// Per-instance model matrix and color, advanced once per instance with a vertex attribute divisor.
+uniform mat4 u_View;
+uniform mat4 u_ViewProjection;
+attribute mat4 a_InstanceModel;
+attribute vec4 a_InstanceColor;
+varying vec4 v_ObjColor;
+#else
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+#endif // USE_INSTANCING
 
 attribute vec4 a_Position;
 attribute vec3 a_Normal;
@@ -27,9 +36,18 @@ varying vec2 v_TexCoord;
 varying vec3 v_ScreenSpacePosition;
 
 void main() {
+#if USE_INSTANCING
+    mat4 modelView = u_View * a_InstanceModel;
+    vec4 worldPosition = a_InstanceModel * a_Position;
+    v_ViewPosition = (u_View * worldPosition).xyz;
+    v_ViewNormal = normalize((modelView * vec4(a_Normal, 0.0)).xyz);
+    gl_Position = u_ViewProjection * worldPosition;
+    v_ObjColor = a_InstanceColor;
+#else
     v_ViewPosition = (u_ModelView * a_Position).xyz;
     v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
-    v_TexCoord = a_TexCoord;
     gl_Position = u_ModelViewProjection * a_Position;
+#endif // USE_INSTANCING
+    v_TexCoord = a_TexCoord;
     v_ScreenSpacePosition = gl_Position.xyz / gl_Position.w;
 }
@@ -0,0 +1,88 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Base of the binary exporters with fixed size point records.
+ *
+ * <p>The points are read chunk by chunk straight from the snapshot arrays and encoded into a
+ * direct buffer, which is written to the file channel whenever it is full. The buffer is allocated
+ * on the first export and reused by the following ones, so an export allocates nothing per point.
+ * Exports through the same instance are serialized.
+ */
+abstract class ChannelPointExporter implements PointCloudExporter {
+
+    // Records are collected in a buffer of this size and written to the channel in one call.
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private ByteBuffer buffer;
+
+    @Override
+    public final synchronized void write(PointStore.Snapshot points, File file)
+            throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel channel = out.getChannel()) {
+            writeHeader(points, buffer);
+            int recordBytes = getRecordBytes();
+            for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+                float[] positions = points.getPositions(chunk);
+                int[] colors = points.getColors(chunk);
+                int chunkSize = points.getChunkSize(chunk);
+                for (int i = 0; i < chunkSize; i++) {
+                    if (buffer.remaining() < recordBytes) {
+                        PlyWriter.drain(channel, buffer);
+                    }
+                    putRecord(buffer, positions[i * 3], positions[i * 3 + 1],
+                            positions[i * 3 + 2], colors[i]);
+                }
+            }
+            PlyWriter.drain(channel, buffer);
+        }
+    }
+
+    /** Size of {@link #putRecord} in bytes. */
+    abstract int getRecordBytes();
+
+    /**
+     * Puts the file header into the empty buffer. It must fit into the buffer, which holds at
+     * least 1 MB.
+     */
+    abstract void writeHeader(PointStore.Snapshot points, ByteBuffer buffer) throws IOException;
+
+    /** Puts the record of one point into the buffer, the color is packed as 0xRRGGBB. */
+    abstract void putRecord(ByteBuffer buffer, float x, float y, float z, int color);
+
+    /** Returns min X, Y, Z and max X, Y, Z of the points, or six zeros if there are none. */
+    static float[] bounds(PointStore.Snapshot points) {
+        if (points.size() == 0) {
+            return new float[6];
+        }
+        float[] bounds = {
+                Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+        };
+        for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+            float[] positions = points.getPositions(chunk);
+            int end = points.getChunkSize(chunk) * 3;
+            for (int i = 0; i < end; i += 3) {
+                for (int axis = 0; axis < 3; axis++) {
+                    float value = positions[i + axis];
+                    bounds[axis] = Math.min(bounds[axis], value);
+                    bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+                }
+            }
+        }
+        return bounds;
+    }
+}
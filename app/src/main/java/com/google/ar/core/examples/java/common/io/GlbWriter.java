@@ -0,0 +1,105 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Writes binary glTF 2.0 files with a single mesh of POINTS primitives, for web viewers and 3D
+ * tools.
+ *
+ * <p>The binary chunk holds one interleaved vertex buffer of 16 byte records, X, Y, Z floats and
+ * an RGBA color of normalized unsigned bytes, so the points stream into it exactly like the binary
+ * PLY records. glTF is Y up like the ARCore world space, positions are written unchanged.
+ */
+public final class GlbWriter extends ChannelPointExporter {
+
+    public static final String FILE_EXTENSION = ".glb";
+
+    private static final int MAGIC = 0x46546c67; // "glTF"
+    private static final int VERSION = 2;
+    private static final int CHUNK_TYPE_JSON = 0x4e4f534a; // "JSON"
+    private static final int CHUNK_TYPE_BIN = 0x004e4942; // "BIN\0"
+    private static final int HEADER_BYTES = 12;
+    private static final int CHUNK_HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 3 * 4 + 4;
+
+    @Override
+    public String getName() {
+        return "GLB";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    @Override
+    int getRecordBytes() {
+        return RECORD_BYTES;
+    }
+
+    @Override
+    void writeHeader(PointStore.Snapshot points, ByteBuffer buffer) throws IOException {
+        long binBytes = (long) points.size() * RECORD_BYTES;
+        byte[] json = padded(json(points, binBytes).getBytes(StandardCharsets.UTF_8), (byte) ' ');
+        long totalBytes = HEADER_BYTES + CHUNK_HEADER_BYTES + json.length
+                + (binBytes > 0 ? CHUNK_HEADER_BYTES + binBytes : 0);
+        if (totalBytes > 0xffffffffL) {
+            throw new IOException("Scan too large for a GLB file");
+        }
+        buffer.putInt(MAGIC).putInt(VERSION).putInt((int) totalBytes);
+        buffer.putInt(json.length).putInt(CHUNK_TYPE_JSON).put(json);
+        if (binBytes > 0) {
+            // The records are a multiple of 4 bytes, the binary chunk needs no padding.
+            buffer.putInt((int) binBytes).putInt(CHUNK_TYPE_BIN);
+        }
+    }
+
+    @Override
+    void putRecord(ByteBuffer buffer, float x, float y, float z, int color) {
+        buffer.putFloat(x);
+        buffer.putFloat(y);
+        buffer.putFloat(z);
+        buffer.put((byte) (color >> 16));
+        buffer.put((byte) (color >> 8));
+        buffer.put((byte) color);
+        buffer.put((byte) 255);
+    }
+
+    private static String json(PointStore.Snapshot points, long binBytes) {
+        String asset = "\"asset\":{\"version\":\"2.0\",\"generator\":\"aos-raw-depth\"}";
+        if (points.size() == 0) {
+            // glTF does not allow empty buffers or accessors.
+            return "{" + asset + "}";
+        }
+        float[] bounds = bounds(points);
+        return String.format(Locale.US,
+                "{%s,\"scene\":0,\"scenes\":[{\"nodes\":[0]}],\"nodes\":[{\"mesh\":0}],"
+                        + "\"meshes\":[{\"primitives\":[{\"attributes\":"
+                        + "{\"POSITION\":0,\"COLOR_0\":1},\"mode\":0}]}],"
+                        + "\"buffers\":[{\"byteLength\":%d}],"
+                        + "\"bufferViews\":[{\"buffer\":0,\"byteLength\":%d,\"byteStride\":%d,"
+                        + "\"target\":34962}],"
+                        + "\"accessors\":["
+                        + "{\"bufferView\":0,\"byteOffset\":0,\"componentType\":5126,"
+                        + "\"count\":%d,\"type\":\"VEC3\",\"min\":[%s,%s,%s],\"max\":[%s,%s,%s]},"
+                        + "{\"bufferView\":0,\"byteOffset\":12,\"componentType\":5121,"
+                        + "\"normalized\":true,\"count\":%d,\"type\":\"VEC4\"}]}",
+                asset, binBytes, binBytes, RECORD_BYTES, points.size(),
+                bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5],
+                points.size());
+    }
+
+    /** Pads the chunk data to a multiple of 4 bytes, as GLB requires. */
+    private static byte[] padded(byte[] data, byte padding) {
+        int length = (data.length + 3) & ~3;
+        byte[] result = Arrays.copyOf(data, length);
+        Arrays.fill(result, data.length, length, padding);
+        return result;
+    }
+}
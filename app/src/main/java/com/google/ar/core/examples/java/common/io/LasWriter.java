@@ -0,0 +1,120 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Writes LAS 1.2 files with point data record format 2, the survey format read by most GIS and
+ * point cloud processing tools.
+ *
+ * <p>LAS stores coordinates as scaled integers with the Z axis up. Positions are therefore
+ * rotated from the Y up world space of ARCore, and quantized to {@link #SCALE_METERS} relative to
+ * the minimum corner of the scan. Colors are widened to the 16 bit channels of the format.
+ */
+public final class LasWriter extends ChannelPointExporter {
+
+    public static final String FILE_EXTENSION = ".las";
+
+    /** Quantization step of the coordinates. */
+    public static final double SCALE_METERS = 0.001;
+
+    private static final double INVERSE_SCALE = 1 / SCALE_METERS;
+    private static final int HEADER_BYTES = 227;
+    private static final int POINT_FORMAT = 2;
+    // X, Y, Z int, intensity ushort, return bits, classification, scan angle, user data byte,
+    // point source ID ushort, red, green, blue ushort.
+    private static final int RECORD_BYTES = 3 * 4 + 2 + 4 + 2 + 3 * 2;
+    // Return number 1 of 1.
+    private static final byte SINGLE_RETURN = 1 | (1 << 3);
+
+    // Offsets of the current export, in LAS axes.
+    private double offsetX;
+    private double offsetY;
+    private double offsetZ;
+
+    @Override
+    public String getName() {
+        return "LAS";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    @Override
+    int getRecordBytes() {
+        return RECORD_BYTES;
+    }
+
+    @Override
+    void writeHeader(PointStore.Snapshot points, ByteBuffer buffer) throws IOException {
+        float[] bounds = bounds(points);
+        // LAS X, Y, Z are world X, -Z, Y.
+        double minX = bounds[0];
+        double maxX = bounds[3];
+        double minY = -bounds[5];
+        double maxY = -bounds[2];
+        double minZ = bounds[1];
+        double maxZ = bounds[4];
+        if (Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / SCALE_METERS
+                > Integer.MAX_VALUE) {
+            throw new IOException("Scan too large for LAS coordinates");
+        }
+        offsetX = minX;
+        offsetY = minY;
+        offsetZ = minZ;
+
+        Calendar now = Calendar.getInstance();
+        buffer.put("LASF".getBytes(StandardCharsets.US_ASCII));
+        buffer.putShort((short) 0); // File source ID.
+        buffer.putShort((short) 0); // Global encoding.
+        buffer.put(new byte[16]); // Project GUID.
+        buffer.put((byte) 1).put((byte) 2); // Version.
+        putText(buffer, "aos-raw-depth", 32); // System identifier.
+        putText(buffer, "aos-raw-depth", 32); // Generating software.
+        buffer.putShort((short) now.get(Calendar.DAY_OF_YEAR));
+        buffer.putShort((short) now.get(Calendar.YEAR));
+        buffer.putShort((short) HEADER_BYTES);
+        buffer.putInt(HEADER_BYTES); // Offset to the point data.
+        buffer.putInt(0); // Variable length records.
+        buffer.put((byte) POINT_FORMAT);
+        buffer.putShort((short) RECORD_BYTES);
+        buffer.putInt(points.size());
+        buffer.putInt(points.size()).putInt(0).putInt(0).putInt(0).putInt(0); // Points by return.
+        buffer.putDouble(SCALE_METERS).putDouble(SCALE_METERS).putDouble(SCALE_METERS);
+        buffer.putDouble(offsetX).putDouble(offsetY).putDouble(offsetZ);
+        buffer.putDouble(maxX).putDouble(minX);
+        buffer.putDouble(maxY).putDouble(minY);
+        buffer.putDouble(maxZ).putDouble(minZ);
+    }
+
+    @Override
+    void putRecord(ByteBuffer buffer, float x, float y, float z, int color) {
+        buffer.putInt((int) Math.round((x - offsetX) * INVERSE_SCALE));
+        buffer.putInt((int) Math.round((-z - offsetY) * INVERSE_SCALE));
+        buffer.putInt((int) Math.round((y - offsetZ) * INVERSE_SCALE));
+        buffer.putShort((short) 0); // Intensity.
+        buffer.put(SINGLE_RETURN);
+        buffer.put((byte) 0); // Classification: never classified.
+        buffer.put((byte) 0); // Scan angle.
+        buffer.put((byte) 0); // User data.
+        buffer.putShort((short) 0); // Point source ID.
+        // 0xff * 0x101 = 0xffff, so full intensity stays full.
+        buffer.putShort((short) (((color >> 16) & 0xff) * 0x101));
+        buffer.putShort((short) (((color >> 8) & 0xff) * 0x101));
+        buffer.putShort((short) ((color & 0xff) * 0x101));
+    }
+
+    /** Puts the text as a zero padded field of the given length. */
+    private static void putText(ByteBuffer buffer, String text, int length) {
+        byte[] field = new byte[length];
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, field, 0, Math.min(bytes.length, length - 1));
+        buffer.put(field);
+    }
+}
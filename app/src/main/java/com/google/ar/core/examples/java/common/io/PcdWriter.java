@@ -0,0 +1,58 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Writes binary PCD files, the point cloud format of the Point Cloud Library.
+ *
+ * <p>Every point is a 16 byte record of little endian X, Y, Z floats followed by the color in the
+ * packed "rgb" field, as PCL stores it: the bits of 0x00RRGGBB reinterpreted as a float.
+ */
+public final class PcdWriter extends ChannelPointExporter {
+
+    public static final String FILE_EXTENSION = ".pcd";
+
+    private static final int RECORD_BYTES = 4 * 4;
+
+    @Override
+    public String getName() {
+        return "PCD";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    @Override
+    int getRecordBytes() {
+        return RECORD_BYTES;
+    }
+
+    @Override
+    void writeHeader(PointStore.Snapshot points, ByteBuffer buffer) {
+        String header = "# .PCD v0.7 - Point Cloud Data file format\n"
+                + "VERSION 0.7\n"
+                + "FIELDS x y z rgb\n"
+                + "SIZE 4 4 4 4\n"
+                + "TYPE F F F F\n"
+                + "COUNT 1 1 1 1\n"
+                + "WIDTH " + points.size() + "\n"
+                + "HEIGHT 1\n"
+                + "VIEWPOINT 0 0 0 1 0 0 0\n"
+                + "POINTS " + points.size() + "\n"
+                + "DATA binary\n";
+        buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    void putRecord(ByteBuffer buffer, float x, float y, float z, int color) {
+        buffer.putFloat(x);
+        buffer.putFloat(y);
+        buffer.putFloat(z);
+        buffer.putInt(color & 0xffffff);
+    }
+}
@@ -0,0 +1,366 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the vertices of a PLY file, as written by {@link PlyWriter} or other tools.
+ *
+ * <p>Binary files are memory-mapped and the header is parsed once. Every vertex property is then
+ * a strided view over the mapped records, so opening a file costs no copy and no allocation per
+ * vertex, and pages are only read when the vertices are accessed. A single mapping is limited to
+ * 2 GB, so the records are mapped in windows of whole records of at most {@link #WINDOW_BYTES}.
+ * ASCII files are parsed straight from the mapped bytes into a packed float buffer, without
+ * creating a String per value, and are then accessed through the same views.
+ *
+ * <p>Only the vertex element is read, and it must be the first element of the file.
+ */
+public class PlyReader {
+
+    /** Scalar property types, with the names used by the PLY specification and its aliases. */
+    public enum Type {
+        CHAR(1, "char", "int8"),
+        UCHAR(1, "uchar", "uint8"),
+        SHORT(2, "short", "int16"),
+        USHORT(2, "ushort", "uint16"),
+        INT(4, "int", "int32"),
+        UINT(4, "uint", "uint32"),
+        FLOAT(4, "float", "float32"),
+        DOUBLE(8, "double", "float64");
+
+        final int bytes;
+        private final String name;
+        private final String alias;
+
+        Type(int bytes, String name, String alias) {
+            this.bytes = bytes;
+            this.name = name;
+            this.alias = alias;
+        }
+
+        static Type parse(String name) throws IOException {
+            for (Type type : values()) {
+                if (type.name.equals(name) || type.alias.equals(name)) {
+                    return type;
+                }
+            }
+            throw new IOException("Unknown PLY property type " + name);
+        }
+    }
+
+    /** A strided view of one vertex property. Safe to use from several threads. */
+    public static final class Property {
+        private final String name;
+        private final Type type;
+        private final ByteBuffer[] windows;
+        private final int verticesPerWindow;
+        private final int offset;
+        private final int stride;
+
+        Property(String name, Type type, ByteBuffer[] windows, int verticesPerWindow, int offset,
+                int stride) {
+            this.name = name;
+            this.type = type;
+            this.windows = windows;
+            this.verticesPerWindow = verticesPerWindow;
+            this.offset = offset;
+            this.stride = stride;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the value of the property for the vertex, converted to float. */
+        public float getFloat(int vertex) {
+            ByteBuffer records = windows[vertex / verticesPerWindow];
+            // Less than WINDOW_BYTES, so the index does not overflow.
+            int index = offset + (vertex % verticesPerWindow) * stride;
+            switch (type) {
+                case FLOAT:
+                    return records.getFloat(index);
+                case DOUBLE:
+                    return (float) records.getDouble(index);
+                default:
+                    return getInt(vertex);
+            }
+        }
+
+        /** Returns the value of the property for the vertex, converted to int. */
+        public int getInt(int vertex) {
+            ByteBuffer records = windows[vertex / verticesPerWindow];
+            int index = offset + (vertex % verticesPerWindow) * stride;
+            switch (type) {
+                case CHAR:
+                    return records.get(index);
+                case UCHAR:
+                    return records.get(index) & 0xff;
+                case SHORT:
+                    return records.getShort(index);
+                case USHORT:
+                    return records.getShort(index) & 0xffff;
+                case INT:
+                case UINT:
+                    return records.getInt(index);
+                case FLOAT:
+                    return (int) records.getFloat(index);
+                default:
+                    return (int) records.getDouble(index);
+            }
+        }
+    }
+
+    /** Largest mapping of vertex records. */
+    static final int WINDOW_BYTES = 1 << 30;
+    // Mapped to find the header, which must fit.
+    private static final int HEADER_BYTES = 1 << 20;
+
+    // Exact powers of ten representable as doubles, to scale parsed ASCII mantissas.
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final int vertexCount;
+    private final List<Property> properties = new ArrayList<>();
+
+    private PlyReader(int vertexCount) {
+        this.vertexCount = vertexCount;
+    }
+
+    /** Maps the file and parses its header, and for ASCII files also the vertices. */
+    public static PlyReader open(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            // The mappings stay valid after the channel is closed.
+            return open(file, channel);
+        }
+    }
+
+    private static PlyReader open(File file, FileChannel channel) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer header =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, HEADER_BYTES));
+        List<String> lines = new ArrayList<>();
+        int dataStart = readHeader(header, lines);
+        if (lines.isEmpty() || !lines.get(0).equals("ply")) {
+            throw new IOException("Not a PLY file: " + file);
+        }
+
+        ByteOrder order = null;
+        boolean ascii = false;
+        int vertexCount = -1;
+        boolean inVertex = false;
+        List<String> names = new ArrayList<>();
+        List<Type> types = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] tokens = line.trim().split("\\s+");
+            switch (tokens[0]) {
+                case "format":
+                    if (tokens[1].equals("ascii")) {
+                        ascii = true;
+                    } else if (tokens[1].equals("binary_little_endian")) {
+                        order = ByteOrder.LITTLE_ENDIAN;
+                    } else if (tokens[1].equals("binary_big_endian")) {
+                        order = ByteOrder.BIG_ENDIAN;
+                    } else {
+                        throw new IOException("Unknown PLY format " + tokens[1]);
+                    }
+                    break;
+                case "element":
+                    if (vertexCount >= 0) {
+                        // The vertex element was read, later elements are ignored.
+                        inVertex = false;
+                        break;
+                    }
+                    inVertex = tokens[1].equals("vertex");
+                    if (!inVertex) {
+                        throw new IOException("Elements before the vertices are not supported");
+                    }
+                    vertexCount = Integer.parseInt(tokens[2]);
+                    break;
+                case "property":
+                    if (!inVertex) {
+                        break;
+                    }
+                    if (tokens[1].equals("list")) {
+                        throw new IOException("List properties of vertices are not supported");
+                    }
+                    types.add(Type.parse(tokens[1]));
+                    names.add(tokens[2]);
+                    break;
+                default:
+                    // Comments and obj_info.
+                    break;
+            }
+        }
+        if (vertexCount < 0 || (order == null && !ascii)) {
+            throw new IOException("Incomplete PLY header in " + file);
+        }
+
+        if (ascii) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("ASCII PLY files over 2 GB are not supported: " + file);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            PlyReader reader = new PlyReader(vertexCount);
+            ByteBuffer[] records = {parseAscii(mapped, dataStart, vertexCount, names.size())};
+            int stride = names.size() * Type.FLOAT.bytes;
+            for (int i = 0; i < names.size(); i++) {
+                reader.properties.add(new Property(names.get(i), Type.FLOAT, records,
+                        Math.max(vertexCount, 1), i * Type.FLOAT.bytes, stride));
+            }
+            return reader;
+        }
+
+        int stride = 0;
+        for (Type type : types) {
+            stride += type.bytes;
+        }
+        if (stride == 0) {
+            throw new IOException("PLY vertices without properties in " + file);
+        }
+        if (dataStart + (long) vertexCount * stride > size) {
+            throw new IOException("Truncated PLY file " + file);
+        }
+        int verticesPerWindow = Math.max(1, Math.min(vertexCount, WINDOW_BYTES / stride));
+        ByteBuffer[] windows =
+                new ByteBuffer[(vertexCount + verticesPerWindow - 1) / verticesPerWindow];
+        for (int w = 0; w < windows.length; w++) {
+            int vertices = Math.min(verticesPerWindow, vertexCount - w * verticesPerWindow);
+            windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataStart + (long) w * verticesPerWindow * stride, (long) vertices * stride)
+                    .order(order);
+        }
+        PlyReader reader = new PlyReader(vertexCount);
+        int offset = 0;
+        for (int i = 0; i < names.size(); i++) {
+            reader.properties.add(new Property(
+                    names.get(i), types.get(i), windows, verticesPerWindow, offset, stride));
+            offset += types.get(i).bytes;
+        }
+        return reader;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /** Returns the vertex property with the given name, or null if the file does not have it. */
+    public Property getProperty(String name) {
+        for (Property property : properties) {
+            if (property.getName().equals(name)) {
+                return property;
+            }
+        }
+        return null;
+    }
+
+    /** Collects the header lines and returns the offset of the first byte after the header. */
+    private static int readHeader(ByteBuffer data, List<String> lines) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < data.limit(); i++) {
+            char c = (char) (data.get(i) & 0xff);
+            if (c == '\n') {
+                String text = line.toString().trim();
+                lines.add(text);
+                line.setLength(0);
+                if (text.equals("end_header")) {
+                    return i + 1;
+                }
+            } else {
+                line.append(c);
+            }
+        }
+        throw new IOException("Missing end_header");
+    }
+
+    /**
+     * Parses whitespace separated numbers into native order floats, reading the mapped bytes
+     * directly.
+     */
+    private static ByteBuffer parseAscii(ByteBuffer data, int start, int vertexCount,
+            int propertyCount) throws IOException {
+        long values = (long) vertexCount * propertyCount;
+        if (values * Type.FLOAT.bytes > Integer.MAX_VALUE) {
+            throw new IOException("Too many vertices for an ASCII PLY file: " + vertexCount);
+        }
+        ByteBuffer records = ByteBuffer.allocateDirect((int) values * Type.FLOAT.bytes)
+                .order(ByteOrder.nativeOrder());
+        int limit = data.limit();
+        int i = start;
+        for (long value = 0; value < values; value++) {
+            while (i < limit && data.get(i) <= ' ') {
+                i++;
+            }
+            if (i == limit) {
+                throw new IOException("Truncated PLY file, " + value + " of " + values + " values");
+            }
+            // Decimal mantissa and exponent, combined once at the end.
+            boolean negative = false;
+            byte c = data.get(i);
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean fraction = false;
+            for (; i < limit; i++) {
+                c = data.get(i);
+                if (c >= '0' && c <= '9') {
+                    // Digits beyond the precision of a long cannot change a float, drop them.
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        digits += mantissa != 0 ? 1 : 0;
+                        exponent -= fraction ? 1 : 0;
+                    } else if (!fraction) {
+                        exponent++;
+                    }
+                } else if (c == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (i < limit && (c == 'e' || c == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < limit && (data.get(i) == '-' || data.get(i) == '+')) {
+                    negativeExponent = data.get(i) == '-';
+                    i++;
+                }
+                int e = 0;
+                while (i < limit && data.get(i) >= '0' && data.get(i) <= '9') {
+                    e = Math.min(1000, e * 10 + (data.get(i) - '0'));
+                    i++;
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+            if (i < limit && data.get(i) > ' ') {
+                throw new IOException("Malformed number at byte " + i);
+            }
+            double result = exponent >= 0
+                    ? mantissa * powerOfTen(exponent) : mantissa / powerOfTen(-exponent);
+            records.putFloat((float) (negative ? -result : result));
+        }
+        records.flip();
+        return records;
+    }
+
+    private static double powerOfTen(int exponent) {
+        return exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+    }
+}
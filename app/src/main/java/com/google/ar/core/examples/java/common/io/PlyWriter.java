@@ -1,21 +1,22 @@
 package com.google.ar.core.examples.java.common.io;
 
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.sql.Timestamp;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 
 import android.content.Context;
-import android.os.AsyncTask;
 import android.util.Log;
 
-import com.google.ar.core.examples.java.rawdepth.Particle;
+import com.google.ar.core.examples.java.rawdepth.PointStore;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
 import io.reactivex.rxjava3.core.Single;
@@ -24,53 +25,44 @@ import io.reactivex.rxjava3.schedulers.Schedulers;
 
 public class PlyWriter {
 
+    /** Encoding of the vertex records, as declared by the "format" line of the header. */
+    public enum Format {
+        ASCII("ascii"),
+        /** Packed 16 byte records: three little endian floats followed by four uchar channels. */
+        BINARY_LITTLE_ENDIAN("binary_little_endian");
+
+        final String headerName;
+
+        Format(String headerName) {
+            this.headerName = headerName;
+        }
+    }
+
+    // x, y, z as float, red, green, blue, alpha as uchar.
+    static final int BINARY_BYTES_PER_VERTEX = 3 * 4 + 4;
+    // Records are collected in a buffer of this size and written to the channel in one call.
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
     private Context context;
-    private ArrayList<Particle> particleData;
+    private PointStore.Snapshot points;
+    private final Format format;
+
+    public PlyWriter(Context context, PointStore.Snapshot points) {
+        this(context, points, Format.BINARY_LITTLE_ENDIAN);
+    }
 
-    public PlyWriter(Context context, ArrayList<Particle> particleData) {
+    public PlyWriter(Context context, PointStore.Snapshot points, Format format) {
         this.context = context;
-        this.particleData = particleData;
+        this.points = points;
+        this.format = format;
     }
 
     public Single<File> writePLYFileInBackground() {
         return Single.create((SingleOnSubscribe<File>) emitter -> {
-                    Calendar cal = Calendar.getInstance();
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmSS");
-                    String time = dateFormat.format(cal.getTime());
-
-                    String fileName = "pointcloud" + time + ".ply";
-                    File plyFile = new File(context.getFilesDir(), fileName);
-                    int vertexCount = particleData.size();
+                    File plyFile = newPlyFile(context.getFilesDir());
 
                     try {
-                        FileWriter writer = new FileWriter(plyFile);
-                        writer.write("ply\n");
-                        writer.write("format ascii 1.0\n");
-                        writer.write("element vertex " + vertexCount + "\n");
-                        writer.write("property float x\n");
-                        writer.write("property float y\n");
-                        writer.write("property float z\n");
-                        writer.write("property uchar red\n");
-                        writer.write("property uchar green\n");
-                        writer.write("property uchar blue\n");
-                        writer.write("property uchar alpha\n");
-                        writer.write("element face 0\n");
-                        writer.write("property list uchar int vertex_indices\n");
-                        writer.write("end_header\n");
-
-                        for (int i = 0; i < vertexCount; i++) {
-                            Particle particle = particleData.get(i);
-                            float x = particle.getX();
-                            float y = particle.getY();
-                            float z = particle.getZ();
-                            int red = particle.getR();
-                            int green = particle.getG();
-                            int blue = particle.getB();
-                            int alpha = 255;
-                            writer.write(x + " " + y + " " + z + " " + red + " " + green + " " + blue + " " + alpha + "\n");
-                        }
-                        writer.flush();
-                        writer.close();
+                        write(points, plyFile, format);
                         Log.d("TEST", "성공");
                         emitter.onSuccess(plyFile);
                     } catch (IOException e) {
@@ -80,4 +72,106 @@ public class PlyWriter {
                 }).subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread());
     }
-}
\ No newline at end of file
+
+    /** Writes the points to a PLY file in the given format, on the calling thread. */
+    public static void write(PointStore.Snapshot points, File file, Format format)
+            throws IOException {
+        if (format == Format.ASCII) {
+            writeAscii(points, file);
+        } else {
+            writeBinary(points, file);
+        }
+    }
+
+    /** Returns a file in the directory named after the current time. */
+    public static File newPlyFile(File directory) {
+        Calendar cal = Calendar.getInstance();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_HHmmSS");
+        String time = dateFormat.format(cal.getTime());
+        return new File(directory, "pointcloud" + time + ".ply");
+    }
+
+    static String header(Format format, long vertexCount) {
+        return header(format, Long.toString(vertexCount));
+    }
+
+    static String header(Format format, String vertexCount) {
+        return "ply\n"
+                + "format " + format.headerName + " 1.0\n"
+                + "element vertex " + vertexCount + "\n"
+                + "property float x\n"
+                + "property float y\n"
+                + "property float z\n"
+                + "property uchar red\n"
+                + "property uchar green\n"
+                + "property uchar blue\n"
+                + "property uchar alpha\n"
+                + "element face 0\n"
+                + "property list uchar int vertex_indices\n"
+                + "end_header\n";
+    }
+
+    private static void writeBinary(PointStore.Snapshot points, File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel channel = out.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header(Format.BINARY_LITTLE_ENDIAN, points.size())
+                    .getBytes(StandardCharsets.US_ASCII));
+            for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+                float[] positions = points.getPositions(chunk);
+                int[] colors = points.getColors(chunk);
+                int chunkSize = points.getChunkSize(chunk);
+                for (int i = 0; i < chunkSize; i++) {
+                    if (buffer.remaining() < BINARY_BYTES_PER_VERTEX) {
+                        drain(channel, buffer);
+                    }
+                    int color = colors[i];
+                    buffer.putFloat(positions[i * 3]);
+                    buffer.putFloat(positions[i * 3 + 1]);
+                    buffer.putFloat(positions[i * 3 + 2]);
+                    buffer.put((byte) (color >> 16));
+                    buffer.put((byte) (color >> 8));
+                    buffer.put((byte) color);
+                    buffer.put((byte) 255);
+                }
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    /** Writes the buffered bytes to the channel and clears the buffer. */
+    static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeAscii(PointStore.Snapshot points, File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.US_ASCII), WRITE_BUFFER_BYTES)) {
+            writer.write(header(Format.ASCII, points.size()));
+            // One builder is reused for all lines instead of concatenating a new String per point.
+            StringBuilder line = new StringBuilder(64);
+            for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+                float[] positions = points.getPositions(chunk);
+                int[] colors = points.getColors(chunk);
+                int chunkSize = points.getChunkSize(chunk);
+                for (int i = 0; i < chunkSize; i++) {
+                    int color = colors[i];
+                    line.setLength(0);
+                    line.append(positions[i * 3]).append(' ')
+                            .append(positions[i * 3 + 1]).append(' ')
+                            .append(positions[i * 3 + 2]).append(' ')
+                            .append((color >> 16) & 0xff).append(' ')
+                            .append((color >> 8) & 0xff).append(' ')
+                            .append(color & 0xff).append(' ')
+                            .append(255).append('\n');
+                    writer.append(line);
+                }
+            }
+        }
+    }
+}
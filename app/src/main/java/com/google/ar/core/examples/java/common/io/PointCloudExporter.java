@@ -0,0 +1,22 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Writes a point cloud in an interchange format read by other tools. See {@link
+ * PointCloudExporters} for the available formats.
+ */
+public interface PointCloudExporter {
+
+    /** Human readable name of the format. */
+    String getName();
+
+    /** File name extension of the format, including the dot. */
+    String getFileExtension();
+
+    /** Writes the points to the file on the calling thread, replacing its contents. */
+    void write(PointStore.Snapshot points, File file) throws IOException;
+}
@@ -0,0 +1,67 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/** The available {@link PointCloudExporter}s. */
+public final class PointCloudExporters {
+
+    /** Binary little endian PLY, see {@link PlyWriter}. */
+    public static final PointCloudExporter PLY = new PointCloudExporter() {
+        @Override
+        public String getName() {
+            return "PLY";
+        }
+
+        @Override
+        public String getFileExtension() {
+            return ".ply";
+        }
+
+        @Override
+        public void write(PointStore.Snapshot points, File file) throws IOException {
+            PlyWriter.write(points, file, PlyWriter.Format.BINARY_LITTLE_ENDIAN);
+        }
+    };
+
+    public static final PointCloudExporter PCD = new PcdWriter();
+    public static final PointCloudExporter LAS = new LasWriter();
+    public static final PointCloudExporter GLB = new GlbWriter();
+
+    private static final List<PointCloudExporter> ALL =
+            Collections.unmodifiableList(Arrays.asList(PLY, PCD, LAS, GLB));
+
+    private PointCloudExporters() {}
+
+    public static List<PointCloudExporter> all() {
+        return ALL;
+    }
+
+    /**
+     * Writes the points to a new file in the app files directory, named like the PLY exports, on
+     * the IO scheduler.
+     */
+    public static Single<File> exportInBackground(Context context, PointCloudExporter exporter,
+            PointStore.Snapshot points) {
+        return Single.fromCallable(() -> {
+                    String name = PlyWriter.newPlyFile(context.getFilesDir()).getName();
+                    File file = new File(context.getFilesDir(),
+                            name.substring(0, name.lastIndexOf('.'))
+                                    + exporter.getFileExtension());
+                    exporter.write(points, file);
+                    return file;
+                }).subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+}
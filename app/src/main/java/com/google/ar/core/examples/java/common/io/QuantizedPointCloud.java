@@ -0,0 +1,391 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Compact archive format for point clouds, around 5 bytes per point at millimeter precision.
+ *
+ * <p>Points are encoded in chunks of at most {@link PointStore#CHUNK_POINTS}. Each chunk stores
+ * the minimum corner of its points as origin, and quantizes the positions relative to it with a
+ * configurable precision, 21 bits per axis. The quantized coordinates are interleaved into Morton
+ * codes, sorted, and stored as variable length deltas, so neighboring points cost one or two bytes.
+ * Colors follow as packed RGB. The order of the points is not preserved. All values are little
+ * endian:
+ *
+ * <pre>
+ * header:  "RDPQ", int version, float precision in meters
+ * chunks:  int payload bytes, int point count, float origin X, Y, Z,
+ *          then per point: varint Morton code delta, uchar red, green, blue
+ * end:     int 0
+ * </pre>
+ *
+ * <p>{@link Encoder} and {@link Decoder} stream chunk by chunk through reused buffers, and never
+ * allocate per point.
+ */
+public final class QuantizedPointCloud {
+
+    public static final String FILE_EXTENSION = ".rdpq";
+    /** One millimeter, below the noise of the raw depth points. */
+    public static final float DEFAULT_PRECISION_METERS = 0.001f;
+
+    private static final byte[] MAGIC = "RDPQ".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int CHUNK_HEADER_BYTES = 20;
+    private static final int BITS_PER_AXIS = 21;
+    private static final int MAX_QUANTIZED = (1 << BITS_PER_AXIS) - 1;
+    // A 63 bit varint takes at most 9 bytes, plus the color.
+    private static final int MAX_BYTES_PER_POINT = 9 + 3;
+    private static final int MAX_CHUNK_BYTES =
+            CHUNK_HEADER_BYTES + PointStore.CHUNK_POINTS * MAX_BYTES_PER_POINT;
+
+    private QuantizedPointCloud() {}
+
+    /** Writes the points to the file, see {@link Encoder}. */
+    public static void write(PointStore.Snapshot points, File file, float precision)
+            throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file);
+             FileChannel channel = out.getChannel()) {
+            Encoder encoder = new Encoder(channel, precision);
+            for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+                encoder.encode(points.getPositions(chunk), points.getColors(chunk),
+                        points.getChunkSize(chunk));
+            }
+            encoder.finish();
+        }
+    }
+
+    /** Reads a file written by {@link #write}, see {@link Decoder}. */
+    public static PointStore.Snapshot read(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            Decoder decoder = new Decoder(channel);
+            List<float[]> positions = new ArrayList<>();
+            List<int[]> colors = new ArrayList<>();
+            float[] chunkPositions = new float[PointStore.CHUNK_POINTS * 3];
+            int[] chunkColors = new int[PointStore.CHUNK_POINTS];
+            int size = 0;
+            int count;
+            while ((count = decoder.decode(chunkPositions, chunkColors)) >= 0) {
+                if (count == 0) {
+                    continue;
+                }
+                // PointStore snapshots need full chunks, except for the last one.
+                int offset = size % PointStore.CHUNK_POINTS;
+                int copied = 0;
+                while (copied < count) {
+                    if (offset == 0) {
+                        positions.add(new float[PointStore.CHUNK_POINTS * 3]);
+                        colors.add(new int[PointStore.CHUNK_POINTS]);
+                    }
+                    int n = Math.min(count - copied, PointStore.CHUNK_POINTS - offset);
+                    System.arraycopy(chunkPositions, copied * 3,
+                            positions.get(positions.size() - 1), offset * 3, n * 3);
+                    System.arraycopy(chunkColors, copied,
+                            colors.get(colors.size() - 1), offset, n);
+                    copied += n;
+                    size += n;
+                    offset = size % PointStore.CHUNK_POINTS;
+                }
+            }
+            return PointStore.wrap(positions.toArray(new float[0][]),
+                    colors.toArray(new int[0][]), size);
+        }
+    }
+
+    /** Encodes chunks of points to a channel, see the class comment for the format. */
+    public static final class Encoder {
+        private final WritableByteChannel channel;
+        private final float precision;
+
+        // Scratch space, grown to the largest chunk and reused.
+        private long[] codes = new long[0];
+        private long[] sortedCodes = new long[0];
+        private int[] order = new int[0];
+        private int[] sortedOrder = new int[0];
+        private final int[] histogram = new int[256];
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        /**
+         * Writes the file header.
+         *
+         * @param precision Quantization step in meters. Each chunk can span at most 2^21 steps per
+         *     axis, about 2 km at millimeter precision, points beyond are clamped.
+         */
+        public Encoder(WritableByteChannel channel, float precision) throws IOException {
+            if (!(precision > 0)) {
+                throw new IllegalArgumentException("Precision must be positive: " + precision);
+            }
+            this.channel = channel;
+            this.precision = precision;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putFloat(precision);
+            header.flip();
+            writeFully(channel, header);
+        }
+
+        /**
+         * Encodes one chunk.
+         *
+         * @param positions X, Y, Z per point.
+         * @param colors Packed 0xRRGGBB per point.
+         * @param count Number of points, at most {@link PointStore#CHUNK_POINTS}.
+         */
+        public void encode(float[] positions, int[] colors, int count) throws IOException {
+            if (count > PointStore.CHUNK_POINTS) {
+                throw new IllegalArgumentException("Chunk too large: " + count);
+            }
+            if (count == 0) {
+                return;
+            }
+            ensureCapacity(count);
+
+            float originX = Float.POSITIVE_INFINITY;
+            float originY = Float.POSITIVE_INFINITY;
+            float originZ = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                originX = Math.min(originX, positions[i * 3]);
+                originY = Math.min(originY, positions[i * 3 + 1]);
+                originZ = Math.min(originZ, positions[i * 3 + 2]);
+            }
+            float scale = 1 / precision;
+            for (int i = 0; i < count; i++) {
+                codes[i] = mortonCode(
+                        quantize((positions[i * 3] - originX) * scale),
+                        quantize((positions[i * 3 + 1] - originY) * scale),
+                        quantize((positions[i * 3 + 2] - originZ) * scale));
+                order[i] = i;
+            }
+            sort(count);
+
+            buffer.clear();
+            buffer.putInt(0).putInt(count).putFloat(originX).putFloat(originY).putFloat(originZ);
+            long previous = 0;
+            for (int k = 0; k < count; k++) {
+                long code = codes[k];
+                putVarLong(buffer, code - previous);
+                previous = code;
+                int color = colors[order[k]];
+                buffer.put((byte) (color >> 16));
+                buffer.put((byte) (color >> 8));
+                buffer.put((byte) color);
+            }
+            buffer.putInt(0, buffer.position() - 4);
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+
+        /** Writes the end marker. The channel is left open. */
+        public void finish() throws IOException {
+            ByteBuffer end = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0);
+            end.flip();
+            writeFully(channel, end);
+        }
+
+        private void ensureCapacity(int count) {
+            if (codes.length < count) {
+                codes = new long[count];
+                sortedCodes = new long[count];
+                order = new int[count];
+                sortedOrder = new int[count];
+                buffer = ByteBuffer.allocate(CHUNK_HEADER_BYTES + count * MAX_BYTES_PER_POINT)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /** LSD radix sort of the codes together with the point indices, one byte per pass. */
+        private void sort(int count) {
+            for (int shift = 0; shift < 3 * BITS_PER_AXIS; shift += 8) {
+                Arrays.fill(histogram, 0);
+                for (int i = 0; i < count; i++) {
+                    histogram[(int) (codes[i] >>> shift) & 0xff]++;
+                }
+                // Skips the byte if it is the same for all codes, common for the high bytes.
+                if (histogram[(int) (codes[0] >>> shift) & 0xff] == count) {
+                    continue;
+                }
+                int sum = 0;
+                for (int b = 0; b < 256; b++) {
+                    int bucket = histogram[b];
+                    histogram[b] = sum;
+                    sum += bucket;
+                }
+                for (int i = 0; i < count; i++) {
+                    int destination = histogram[(int) (codes[i] >>> shift) & 0xff]++;
+                    sortedCodes[destination] = codes[i];
+                    sortedOrder[destination] = order[i];
+                }
+                long[] swapCodes = codes;
+                codes = sortedCodes;
+                sortedCodes = swapCodes;
+                int[] swapOrder = order;
+                order = sortedOrder;
+                sortedOrder = swapOrder;
+            }
+        }
+    }
+
+    /** Decodes the chunks written by an {@link Encoder}. */
+    public static final class Decoder {
+        private final ReadableByteChannel channel;
+        private final float precision;
+        private final ByteBuffer payloadLength =
+                ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer payload = ByteBuffer.allocate(0);
+        private boolean ended;
+
+        /** Reads and validates the file header. */
+        public Decoder(ReadableByteChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+                throw new IOException("Unsupported point cloud stream");
+            }
+            precision = header.getFloat();
+        }
+
+        /** Quantization step of the positions in meters. */
+        public float getPrecision() {
+            return precision;
+        }
+
+        /**
+         * Decodes the next chunk.
+         *
+         * @param positions Receives X, Y, Z per point, must hold {@link PointStore#CHUNK_POINTS}.
+         * @param colors Receives packed 0xRRGGBB per point, must hold {@link
+         *     PointStore#CHUNK_POINTS}.
+         * @return The number of decoded points, or -1 after the last chunk.
+         */
+        public int decode(float[] positions, int[] colors) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            payloadLength.clear();
+            readFully(channel, payloadLength);
+            int payloadBytes = payloadLength.getInt(0);
+            if (payloadBytes == 0) {
+                ended = true;
+                return -1;
+            }
+            if (payloadBytes < CHUNK_HEADER_BYTES - 4 || payloadBytes > MAX_CHUNK_BYTES) {
+                throw new IOException("Corrupt chunk length " + payloadBytes);
+            }
+            if (payload.capacity() < payloadBytes) {
+                payload = ByteBuffer.allocate(payloadBytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            payload.clear().limit(payloadBytes);
+            readFully(channel, payload);
+
+            int count = payload.getInt();
+            if (count < 0 || count > PointStore.CHUNK_POINTS) {
+                throw new IOException("Corrupt chunk size " + count);
+            }
+            float originX = payload.getFloat();
+            float originY = payload.getFloat();
+            float originZ = payload.getFloat();
+            long code = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    code += getVarLong(payload);
+                    positions[i * 3] = originX + compact(code) * precision;
+                    positions[i * 3 + 1] = originY + compact(code >>> 1) * precision;
+                    positions[i * 3 + 2] = originZ + compact(code >>> 2) * precision;
+                    colors[i] = (payload.get() & 0xff) << 16
+                            | (payload.get() & 0xff) << 8
+                            | (payload.get() & 0xff);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated chunk", e);
+            }
+            return count;
+        }
+    }
+
+    private static int quantize(float steps) {
+        return Math.max(0, Math.min(MAX_QUANTIZED, Math.round(steps)));
+    }
+
+    /** Interleaves the bits of the coordinates, X in bit 0, Y in bit 1 and Z in bit 2. */
+    static long mortonCode(int x, int y, int z) {
+        return spread(x) | spread(y) << 1 | spread(z) << 2;
+    }
+
+    /** Inserts two zero bits after each of the low 21 bits. */
+    private static long spread(int value) {
+        long v = value & 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    /** Inverse of {@link #spread}, gathers every third bit starting at bit 0. */
+    private static int compact(long value) {
+        long v = value & 0x1249249249249249L;
+        v = (v ^ (v >>> 2)) & 0x10c30c30c30c30c3L;
+        v = (v ^ (v >>> 4)) & 0x100f00f00f00f00fL;
+        v = (v ^ (v >>> 8)) & 0x1f0000ff0000ffL;
+        v = (v ^ (v >>> 16)) & 0x1f00000000ffffL;
+        v = (v ^ (v >>> 32)) & 0x1fffffL;
+        return (int) v;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,263 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+/**
+ * Writes a binary little endian PLY file incrementally while scanning, one frame at a time.
+ *
+ * <p>The records of each frame are appended to "name.ply.part" on a background thread, so the
+ * export holds at most one frame in memory whatever the size of the scan. The header reserves a
+ * fixed width vertex count, which {@link #finish()} patches before renaming the file to
+ * "name.ply". When the process dies during a scan, {@link #recoverAll(File)} derives the count
+ * from the file length on the next launch instead.
+ */
+public class StreamingPlyWriter {
+    private static final String TAG = StreamingPlyWriter.class.getSimpleName();
+
+    static final String PART_SUFFIX = ".part";
+    // Wide enough for any vertex count a device can hold, e.g. "element vertex 0000012345".
+    private static final int VERTEX_COUNT_DIGITS = 10;
+    private static final String VERTEX_COUNT_KEY = "element vertex ";
+    private static final String END_HEADER = "end_header\n";
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    // Files written by this process, which recovery must leave alone.
+    private static final Set<File> activeFiles = new HashSet<>();
+
+    private final File file;
+    private final File partFile;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Accessed on the executor thread only.
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long vertexCount;
+    private IOException failure;
+
+    private boolean finished;
+
+    /**
+     * Starts a stream to the given file. The file is created in the background, this constructor
+     * performs no IO.
+     */
+    public StreamingPlyWriter(File file) {
+        this.file = file;
+        this.partFile = new File(file.getPath() + PART_SUFFIX);
+        synchronized (activeFiles) {
+            activeFiles.add(partFile);
+        }
+        executor.execute(this::open);
+    }
+
+    /**
+     * Returns a completable that queues the points of a frame when subscribed and completes once
+     * they are written, so that callers can bound the frames in flight. Only references to the
+     * buffers are kept, so they must not be modified afterwards.
+     *
+     * @param points X, Y, Z and confidence per point, in the frame space.
+     * @param colors Red, green and blue per point, in the range [0, 1].
+     * @param modelMatrix Transform from the frame space to the world space, copied by this call.
+     */
+    public Completable write(FloatBuffer points, FloatBuffer colors, float[] modelMatrix) {
+        FloatBuffer framePoints = points.duplicate();
+        FloatBuffer frameColors = colors.duplicate();
+        float[] matrix = modelMatrix.clone();
+        return Completable.create(emitter -> {
+            synchronized (this) {
+                if (finished) {
+                    emitter.onComplete();
+                    return;
+                }
+                executor.execute(() -> {
+                    writeFrame(framePoints, frameColors, matrix);
+                    emitter.onComplete();
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the queued frames, patches the vertex count and renames the file to its final name.
+     * Further writes are ignored.
+     */
+    public synchronized Single<File> finish() {
+        finished = true;
+        Single<File> result =
+                Single.fromFuture(executor.submit(this::close))
+                        .subscribeOn(Schedulers.io())
+                        .observeOn(AndroidSchedulers.mainThread());
+        executor.shutdown();
+        return result;
+    }
+
+    private void open() {
+        try {
+            channel = new RandomAccessFile(partFile, "rw").getChannel();
+            channel.truncate(0);
+            buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header(0));
+            PlyWriter.drain(channel, buffer);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void writeFrame(FloatBuffer points, FloatBuffer colors, float[] m) {
+        if (failure != null) {
+            return;
+        }
+        int numPoints = Math.min(points.remaining() / 4, colors.remaining() / 3);
+        int pointsStart = points.position();
+        int colorsStart = colors.position();
+        try {
+            for (int i = 0; i < numPoints; i++) {
+                if (buffer.remaining() < PlyWriter.BINARY_BYTES_PER_VERTEX) {
+                    PlyWriter.drain(channel, buffer);
+                }
+                float x = points.get(pointsStart + i * 4);
+                float y = points.get(pointsStart + i * 4 + 1);
+                float z = points.get(pointsStart + i * 4 + 2);
+                buffer.putFloat(m[0] * x + m[4] * y + m[8] * z + m[12]);
+                buffer.putFloat(m[1] * x + m[5] * y + m[9] * z + m[13]);
+                buffer.putFloat(m[2] * x + m[6] * y + m[10] * z + m[14]);
+                buffer.put(toUnsignedByte(colors.get(colorsStart + i * 3)));
+                buffer.put(toUnsignedByte(colors.get(colorsStart + i * 3 + 1)));
+                buffer.put(toUnsignedByte(colors.get(colorsStart + i * 3 + 2)));
+                buffer.put((byte) 255);
+            }
+            // Every frame reaches the file, so a crash loses at most the frames still queued.
+            PlyWriter.drain(channel, buffer);
+            vertexCount += numPoints;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private File close() throws IOException {
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            patchVertexCount(channel, vertexCount);
+            channel.force(false);
+            channel.close();
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + partFile + " to " + file);
+            }
+            Log.d(TAG, "Exported " + vertexCount + " points to " + file);
+            return file;
+        } finally {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+            synchronized (activeFiles) {
+                activeFiles.remove(partFile);
+            }
+        }
+    }
+
+    /**
+     * Completes the ".part" files left in the directory by a previous process, see the class
+     * comment. Files that are still being written by this process are skipped.
+     *
+     * @return The recovered PLY files.
+     */
+    public static List<File> recoverAll(File directory) {
+        List<File> recovered = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return recovered;
+        }
+        for (File partFile : files) {
+            if (!partFile.getName().endsWith(PART_SUFFIX)) {
+                continue;
+            }
+            synchronized (activeFiles) {
+                if (activeFiles.contains(partFile)) {
+                    continue;
+                }
+            }
+            try {
+                recovered.add(recover(partFile));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to recover " + partFile, e);
+            }
+        }
+        return recovered;
+    }
+
+    private static File recover(File partFile) throws IOException {
+        String path = partFile.getPath();
+        File file = new File(path.substring(0, path.length() - PART_SUFFIX.length()));
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            int headerBytes = header(0).length;
+            ByteBuffer head = ByteBuffer.allocate(headerBytes);
+            while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+                // Keep reading until the header is complete or the file ends.
+            }
+            if (head.hasRemaining()
+                    || !new String(head.array(), StandardCharsets.US_ASCII).endsWith(END_HEADER)) {
+                throw new IOException("Not a streamed PLY file");
+            }
+            // Drops the trailing partial record, if the process died in the middle of a write.
+            long count = (channel.size() - headerBytes) / PlyWriter.BINARY_BYTES_PER_VERTEX;
+            channel.truncate(headerBytes + count * PlyWriter.BINARY_BYTES_PER_VERTEX);
+            patchVertexCount(channel, count);
+            channel.force(false);
+            Log.i(TAG, "Recovered " + count + " points to " + file);
+        }
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + partFile + " to " + file);
+        }
+        return file;
+    }
+
+    static byte[] header(long vertexCount) {
+        return PlyWriter.header(PlyWriter.Format.BINARY_LITTLE_ENDIAN, formatCount(vertexCount))
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Overwrites the digits of the vertex count in place, the header keeps its length. */
+    static void patchVertexCount(FileChannel channel, long vertexCount)
+            throws IOException {
+        String header = new String(header(0), StandardCharsets.US_ASCII);
+        int offset = header.indexOf(VERTEX_COUNT_KEY) + VERTEX_COUNT_KEY.length();
+        ByteBuffer digits = ByteBuffer.wrap(
+                formatCount(vertexCount).getBytes(StandardCharsets.US_ASCII));
+        while (digits.hasRemaining()) {
+            channel.write(digits, offset + digits.position());
+        }
+    }
+
+    private static String formatCount(long vertexCount) {
+        // Leading zeros keep the width fixed, PLY readers parse the count as a plain integer.
+        return String.format(Locale.US, "%0" + VERTEX_COUNT_DIGITS + "d", vertexCount);
+    }
+
+    private static byte toUnsignedByte(float value) {
+        int intValue = (int) (value * 255);
+        return (byte) Math.max(0, Math.min(255, intValue));
+    }
+}
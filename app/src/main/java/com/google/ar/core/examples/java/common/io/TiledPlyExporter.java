@@ -0,0 +1,260 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/**
+ * Splits a scan into a regular grid of cubic tiles, one binary PLY file per tile, so that other
+ * tools can load only the region they need.
+ *
+ * <p>The export is a single pass over the points. Every point is appended to the write buffer of
+ * its tile, and full buffers are written to the tile file through its channel. At most {@link
+ * #MAX_OPEN_TILES} tiles hold a write buffer and an open channel. When another tile is needed, the
+ * least recently written one is flushed and closed, and its buffer is reused, so memory does not
+ * grow with the number of tiles. The tile files reserve a fixed width vertex count in their
+ * header, like {@link StreamingPlyWriter}, which is filled in at the end.
+ *
+ * <p>The file passed to {@link #write} receives a JSON manifest, and the tiles are written to a
+ * directory next to it, named like the manifest without extension:
+ *
+ * <pre>
+ * {"tileSize": 2.0, "directory": "pointcloud20260101_120000", "pointCount": 123456, "tiles": [
+ *   {"file": "tile_0_-1_3.ply", "index": [0, -1, 3], "pointCount": 4567,
+ *    "min": [0.01, -1.98, 6.0], "max": [1.99, -0.02, 7.95]}, ...]}
+ * </pre>
+ *
+ * Tile i covers [i * tileSize, (i + 1) * tileSize) on each axis, "min" and "max" are the tight
+ * bounds of its points.
+ */
+public final class TiledPlyExporter implements PointCloudExporter {
+
+    public static final String FILE_EXTENSION = ".tiles.json";
+    public static final float DEFAULT_TILE_SIZE_METERS = 2.0f;
+
+    private static final int MAX_OPEN_TILES = 64;
+    // Per tile write buffer, 2048 points.
+    private static final int TILE_BUFFER_BYTES = 2048 * PlyWriter.BINARY_BYTES_PER_VERTEX;
+
+    private final float tileSize;
+
+    /** Points, bounds and file of one tile. */
+    private static final class Tile {
+        final int x;
+        final int y;
+        final int z;
+        final File file;
+        // Write buffer and channel, only while the tile is open.
+        ByteBuffer buffer;
+        FileChannel channel;
+        final float[] bounds = {
+                Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+        };
+        long pointCount;
+        // Bytes written to the file so far.
+        long fileBytes;
+
+        Tile(int x, int y, int z, File file) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.file = file;
+        }
+    }
+
+    public TiledPlyExporter() {
+        this(DEFAULT_TILE_SIZE_METERS);
+    }
+
+    public TiledPlyExporter(float tileSizeMeters) {
+        if (!(tileSizeMeters > 0)) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSizeMeters);
+        }
+        this.tileSize = tileSizeMeters;
+    }
+
+    @Override
+    public String getName() {
+        return "Tiled PLY";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    /** Returns the directory receiving the tiles of the manifest file. */
+    public static File getTileDirectory(File manifest) {
+        String name = manifest.getName();
+        if (name.endsWith(FILE_EXTENSION)) {
+            name = name.substring(0, name.length() - FILE_EXTENSION.length());
+        }
+        return new File(manifest.getParentFile(), name);
+    }
+
+    @Override
+    public void write(PointStore.Snapshot points, File manifest) throws IOException {
+        File directory = getTileDirectory(manifest);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        float inverseTileSize = 1 / tileSize;
+        Map<Long, Tile> tiles = new HashMap<>();
+        // The open tiles, least recently written first.
+        LinkedHashMap<Tile, Tile> openTiles = new LinkedHashMap<>(16, 0.75f, true);
+        try {
+            // Consecutive points come from the same depth frame and mostly share a tile.
+            Tile last = null;
+            for (int chunk = 0; chunk < points.getChunkCount(); chunk++) {
+                float[] positions = points.getPositions(chunk);
+                int[] colors = points.getColors(chunk);
+                int chunkSize = points.getChunkSize(chunk);
+                for (int i = 0; i < chunkSize; i++) {
+                    float x = positions[i * 3];
+                    float y = positions[i * 3 + 1];
+                    float z = positions[i * 3 + 2];
+                    int tileX = (int) Math.floor(x * inverseTileSize);
+                    int tileY = (int) Math.floor(y * inverseTileSize);
+                    int tileZ = (int) Math.floor(z * inverseTileSize);
+                    Tile tile = last;
+                    if (tile == null || tile.x != tileX || tile.y != tileY || tile.z != tileZ) {
+                        Long key = key(tileX, tileY, tileZ);
+                        tile = tiles.get(key);
+                        if (tile == null) {
+                            String name = String.format(Locale.US, "tile_%d_%d_%d.ply",
+                                    tileX, tileY, tileZ);
+                            tile = new Tile(tileX, tileY, tileZ, new File(directory, name));
+                            tiles.put(key, tile);
+                        }
+                        open(tile, openTiles);
+                        last = tile;
+                    }
+                    if (tile.buffer.remaining() < PlyWriter.BINARY_BYTES_PER_VERTEX) {
+                        flush(tile);
+                    }
+                    int color = colors[i];
+                    tile.buffer.putFloat(x).putFloat(y).putFloat(z)
+                            .put((byte) (color >> 16)).put((byte) (color >> 8))
+                            .put((byte) color).put((byte) 255);
+                    tile.pointCount++;
+                    float[] bounds = tile.bounds;
+                    bounds[0] = Math.min(bounds[0], x);
+                    bounds[1] = Math.min(bounds[1], y);
+                    bounds[2] = Math.min(bounds[2], z);
+                    bounds[3] = Math.max(bounds[3], x);
+                    bounds[4] = Math.max(bounds[4], y);
+                    bounds[5] = Math.max(bounds[5], z);
+                }
+            }
+
+            List<Tile> sorted = new ArrayList<>(tiles.values());
+            Collections.sort(sorted, (a, b) -> a.x != b.x ? Integer.compare(a.x, b.x)
+                    : a.y != b.y ? Integer.compare(a.y, b.y) : Integer.compare(a.z, b.z));
+            for (Tile tile : sorted) {
+                open(tile, openTiles);
+                flush(tile);
+                StreamingPlyWriter.patchVertexCount(tile.channel, tile.pointCount);
+                openTiles.remove(tile);
+                close(tile);
+            }
+            writeManifest(manifest, directory, sorted, points.size());
+        } finally {
+            for (Tile tile : openTiles.keySet()) {
+                tile.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the tile the most recently written one, opening it if needed. The least recently
+     * written tile is closed first when {@link #MAX_OPEN_TILES} are open, and its buffer reused.
+     */
+    private static void open(Tile tile, LinkedHashMap<Tile, Tile> openTiles) throws IOException {
+        if (openTiles.get(tile) != null) {
+            return;
+        }
+        ByteBuffer buffer;
+        if (openTiles.size() == MAX_OPEN_TILES) {
+            Iterator<Tile> eldest = openTiles.keySet().iterator();
+            Tile evicted = eldest.next();
+            eldest.remove();
+            flush(evicted);
+            buffer = evicted.buffer;
+            close(evicted);
+        } else {
+            buffer = ByteBuffer.allocate(TILE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        RandomAccessFile file = new RandomAccessFile(tile.file, "rw");
+        if (tile.fileBytes == 0) {
+            // A file left by an earlier export is replaced.
+            file.setLength(0);
+            buffer.put(StreamingPlyWriter.header(0));
+        }
+        tile.channel = file.getChannel();
+        tile.buffer = buffer;
+        openTiles.put(tile, tile);
+    }
+
+    /** Writes the buffered points of an open tile to its file. */
+    private static void flush(Tile tile) throws IOException {
+        ByteBuffer buffer = tile.buffer;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            tile.fileBytes += tile.channel.write(buffer, tile.fileBytes);
+        }
+        buffer.clear();
+    }
+
+    /** Closes the channel of a flushed tile, and releases its buffer. */
+    private static void close(Tile tile) throws IOException {
+        FileChannel channel = tile.channel;
+        tile.channel = null;
+        tile.buffer = null;
+        channel.close();
+    }
+
+    private void writeManifest(File manifest, File directory, List<Tile> tiles, int pointCount)
+            throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.US, "{\"tileSize\": %s, \"directory\": \"%s\", "
+                + "\"pointCount\": %d, \"tiles\": [", tileSize, directory.getName(), pointCount));
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile tile = tiles.get(i);
+            float[] b = tile.bounds;
+            json.append(i == 0 ? "\n" : ",\n").append(String.format(Locale.US,
+                    "  {\"file\": \"%s\", \"index\": [%d, %d, %d], \"pointCount\": %d, "
+                            + "\"min\": [%s, %s, %s], \"max\": [%s, %s, %s]}",
+                    tile.file.getName(), tile.x, tile.y, tile.z, tile.pointCount,
+                    b[0], b[1], b[2], b[3], b[4], b[5]));
+        }
+        json.append("]}\n");
+        try (RandomAccessFile file = new RandomAccessFile(manifest, "rw");
+             FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer bytes = ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    private static long key(int x, int y, int z) {
+        // 21 bits per axis hold tile indices of +-1M, far beyond any scan.
+        return ((x & 0x1fffffL) << 42) | ((y & 0x1fffffL) << 21) | (z & 0x1fffffL);
+    }
+}
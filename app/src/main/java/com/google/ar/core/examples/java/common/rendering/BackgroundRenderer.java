@@ -106,17 +106,10 @@ public class BackgroundRenderer {
 
     // Load render camera feed shader.
     {
-      int vertexShader =
-          ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, CAMERA_VERTEX_SHADER_NAME);
-      int fragmentShader =
-          ShaderUtil.loadGLShader(
-              TAG, context, GLES20.GL_FRAGMENT_SHADER, CAMERA_FRAGMENT_SHADER_NAME);
-
-      cameraProgram = GLES20.glCreateProgram();
-      GLES20.glAttachShader(cameraProgram, vertexShader);
-      GLES20.glAttachShader(cameraProgram, fragmentShader);
-      GLES20.glLinkProgram(cameraProgram);
-      GLES20.glUseProgram(cameraProgram);
+      cameraProgram =
+          ShaderProgramCache.createProgram(
+              TAG, context, CAMERA_VERTEX_SHADER_NAME, CAMERA_FRAGMENT_SHADER_NAME);
+      GlStateCache.useProgram(cameraProgram);
       cameraPositionAttrib = GLES20.glGetAttribLocation(cameraProgram, "a_Position");
       cameraTexCoordAttrib = GLES20.glGetAttribLocation(cameraProgram, "a_TexCoord");
       ShaderUtil.checkGLError(TAG, "Program creation");
@@ -127,18 +120,13 @@ public class BackgroundRenderer {
 
     // Load render depth map shader.
     {
-      int vertexShader =
-          ShaderUtil.loadGLShader(
-              TAG, context, GLES20.GL_VERTEX_SHADER, DEPTH_VISUALIZER_VERTEX_SHADER_NAME);
-      int fragmentShader =
-          ShaderUtil.loadGLShader(
-              TAG, context, GLES20.GL_FRAGMENT_SHADER, DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
-
-      depthProgram = GLES20.glCreateProgram();
-      GLES20.glAttachShader(depthProgram, vertexShader);
-      GLES20.glAttachShader(depthProgram, fragmentShader);
-      GLES20.glLinkProgram(depthProgram);
-      GLES20.glUseProgram(depthProgram);
+      depthProgram =
+          ShaderProgramCache.createProgram(
+              TAG,
+              context,
+              DEPTH_VISUALIZER_VERTEX_SHADER_NAME,
+              DEPTH_VISUALIZER_FRAGMENT_SHADER_NAME);
+      GlStateCache.useProgram(depthProgram);
       depthPositionAttrib = GLES20.glGetAttribLocation(depthProgram, "a_Position");
       depthTexCoordAttrib = GLES20.glGetAttribLocation(depthProgram, "a_TexCoord");
       ShaderUtil.checkGLError(TAG, "Program creation");
@@ -252,51 +240,54 @@ public class BackgroundRenderer {
 
     // No need to test or write depth, the screen quad has arbitrary depth, and is expected
     // to be drawn first.
-    GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-    GLES20.glDepthMask(false);
+    GlStateCache.setDepthTestEnabled(false);
+    GlStateCache.depthMask(false);
 
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 
+    // The quad is drawn from client side arrays, which requires no bound array buffer.
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
     if (debugShowDepthMap) {
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
-      GLES20.glUseProgram(depthProgram);
-      GLES20.glUniform1i(depthTextureUniform, 0);
+      GlStateCache.useProgram(depthProgram);
+      GlStateCache.uniform1i(depthTextureUniform, 0);
 
       // Set the vertex positions and texture coordinates.
       GLES20.glVertexAttribPointer(
           depthPositionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
       GLES20.glVertexAttribPointer(
           depthTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoords);
-      GLES20.glEnableVertexAttribArray(depthPositionAttrib);
-      GLES20.glEnableVertexAttribArray(depthTexCoordAttrib);
+      GlStateCache.enableVertexAttribArray(depthPositionAttrib);
+      GlStateCache.enableVertexAttribArray(depthTexCoordAttrib);
     } else {
       GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
-      GLES20.glUseProgram(cameraProgram);
-      GLES20.glUniform1i(cameraTextureUniform, 0);
+      GlStateCache.useProgram(cameraProgram);
+      GlStateCache.uniform1i(cameraTextureUniform, 0);
 
       // Set the vertex positions and texture coordinates.
       GLES20.glVertexAttribPointer(
           cameraPositionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
       GLES20.glVertexAttribPointer(
           cameraTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoords);
-      GLES20.glEnableVertexAttribArray(cameraPositionAttrib);
-      GLES20.glEnableVertexAttribArray(cameraTexCoordAttrib);
+      GlStateCache.enableVertexAttribArray(cameraPositionAttrib);
+      GlStateCache.enableVertexAttribArray(cameraTexCoordAttrib);
     }
 
     GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
     // Disable vertex arrays
     if (debugShowDepthMap) {
-      GLES20.glDisableVertexAttribArray(depthPositionAttrib);
-      GLES20.glDisableVertexAttribArray(depthTexCoordAttrib);
+      GlStateCache.disableVertexAttribArray(depthPositionAttrib);
+      GlStateCache.disableVertexAttribArray(depthTexCoordAttrib);
     } else {
-      GLES20.glDisableVertexAttribArray(cameraPositionAttrib);
-      GLES20.glDisableVertexAttribArray(cameraTexCoordAttrib);
+      GlStateCache.disableVertexAttribArray(cameraPositionAttrib);
+      GlStateCache.disableVertexAttribArray(cameraTexCoordAttrib);
     }
 
     // Restore the depth state for further drawing.
-    GLES20.glDepthMask(true);
-    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+    GlStateCache.depthMask(true);
+    GlStateCache.setDepthTestEnabled(true);
 
     ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
   }
@@ -0,0 +1,80 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * View frustum extracted from a view-projection matrix, used to reject geometry that cannot be
+ * visible before any OpenGL calls are made for it.
+ *
+ * <p>The six planes are stored as (a, b, c, d) with normals pointing into the frustum, so a world
+ * space point p is inside a plane when {@code a * p.x + b * p.y + c * p.z + d >= 0}.
+ */
+public final class Frustum {
+  private static final int PLANE_COUNT = 6;
+
+  private final float[] planes = new float[PLANE_COUNT * 4];
+
+  /**
+   * Extracts the frustum planes from a view-projection matrix.
+   *
+   * @param viewProjection A 4x4 matrix in column-major order, as used by {@link
+   *     android.opengl.Matrix}.
+   */
+  public void set(float[] viewProjection) {
+    float[] m = viewProjection;
+    // Rows of the column-major matrix.
+    float r0x = m[0], r0y = m[4], r0z = m[8], r0w = m[12];
+    float r1x = m[1], r1y = m[5], r1z = m[9], r1w = m[13];
+    float r2x = m[2], r2y = m[6], r2z = m[10], r2w = m[14];
+    float r3x = m[3], r3y = m[7], r3z = m[11], r3w = m[15];
+
+    setPlane(0, r3x + r0x, r3y + r0y, r3z + r0z, r3w + r0w); // Left.
+    setPlane(1, r3x - r0x, r3y - r0y, r3z - r0z, r3w - r0w); // Right.
+    setPlane(2, r3x + r1x, r3y + r1y, r3z + r1z, r3w + r1w); // Bottom.
+    setPlane(3, r3x - r1x, r3y - r1y, r3z - r1z, r3w - r1w); // Top.
+    setPlane(4, r3x + r2x, r3y + r2y, r3z + r2z, r3w + r2w); // Near.
+    setPlane(5, r3x - r2x, r3y - r2y, r3z - r2z, r3w - r2w); // Far.
+  }
+
+  private void setPlane(int index, float a, float b, float c, float d) {
+    float reciprocalLength = 1.0f / (float) Math.sqrt(a * a + b * b + c * c);
+    int offset = index * 4;
+    planes[offset] = a * reciprocalLength;
+    planes[offset + 1] = b * reciprocalLength;
+    planes[offset + 2] = c * reciprocalLength;
+    planes[offset + 3] = d * reciprocalLength;
+  }
+
+  /**
+   * Returns whether the axis aligned box intersects or is contained in the frustum. The test is
+   * conservative: boxes near the frustum corners may be reported as visible.
+   */
+  public boolean intersectsBox(
+      float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+    for (int i = 0; i < PLANE_COUNT; ++i) {
+      int offset = i * 4;
+      float a = planes[offset];
+      float b = planes[offset + 1];
+      float c = planes[offset + 2];
+      float d = planes[offset + 3];
+      // Test the box corner furthest along the plane normal.
+      float x = a >= 0 ? maxX : minX;
+      float y = b >= 0 ? maxY : minY;
+      float z = c >= 0 ? maxZ : minZ;
+      if (a * x + b * y + c * z + d < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether the sphere intersects or is contained in the frustum. */
+  public boolean intersectsSphere(float x, float y, float z, float radius) {
+    for (int i = 0; i < PLANE_COUNT; ++i) {
+      int offset = i * 4;
+      if (planes[offset] * x + planes[offset + 1] * y + planes[offset + 2] * z + planes[offset + 3]
+          < -radius) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
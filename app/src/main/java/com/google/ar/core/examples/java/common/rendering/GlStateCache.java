@@ -0,0 +1,329 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+import android.util.LongSparseArray;
+
+/**
+ * Shadow copy of the OpenGL state shared by the renderers, used to skip calls that would not
+ * change anything.
+ *
+ * <p>The cache tracks the current program, the array and element array buffer bindings, the
+ * enabled vertex attribute arrays, blending and depth state, and the uniform values set through
+ * it for every program. Each setter compares against the cached value and only calls into OpenGL
+ * when the value differs. The number of issued and avoided calls is counted per frame.
+ *
+ * <p>The cache only stays correct if every change of the tracked state goes through it, so
+ * renderers must not call the corresponding {@code GLES20} functions directly. All methods must
+ * be called on the OpenGL thread. Call {@link #invalidate()} whenever the GL context is
+ * (re)created, typically in {@link android.opengl.GLSurfaceView.Renderer#onSurfaceCreated}.
+ */
+public final class GlStateCache {
+  private static final int UNKNOWN = -1;
+  private static final int MAX_VERTEX_ATTRIBS = 32;
+
+  private static int program = UNKNOWN;
+  private static int arrayBuffer = UNKNOWN;
+  private static int elementArrayBuffer = UNKNOWN;
+  // Bit i is set when attribute array i is known to be enabled, resp. disabled.
+  private static int enabledAttribs = 0;
+  private static int disabledAttribs = 0;
+  private static int blendEnabled = UNKNOWN;
+  private static int blendSrcFactor = UNKNOWN;
+  private static int blendDstFactor = UNKNOWN;
+  private static int depthTestEnabled = UNKNOWN;
+  private static int depthMask = UNKNOWN;
+
+  // Uniform values keyed by (program << 32 | location).
+  private static final LongSparseArray<float[]> uniformValues = new LongSparseArray<>();
+
+  private static final float[] scratch = new float[4];
+  private static final int[] scratchName = new int[1];
+
+  private static int issuedCalls;
+  private static int avoidedCalls;
+  private static int issuedCallsLastFrame;
+  private static int avoidedCallsLastFrame;
+
+  /** Forgets all cached values, for example after the GL context was recreated. */
+  public static void invalidate() {
+    program = UNKNOWN;
+    arrayBuffer = UNKNOWN;
+    elementArrayBuffer = UNKNOWN;
+    enabledAttribs = 0;
+    disabledAttribs = 0;
+    blendEnabled = UNKNOWN;
+    blendSrcFactor = UNKNOWN;
+    blendDstFactor = UNKNOWN;
+    depthTestEnabled = UNKNOWN;
+    depthMask = UNKNOWN;
+    uniformValues.clear();
+  }
+
+  /**
+   * Forgets the cached uniform values of a program. Must be called before the program is deleted,
+   * since OpenGL may reuse its name.
+   */
+  public static void forgetProgram(int programName) {
+    for (int i = uniformValues.size() - 1; i >= 0; --i) {
+      if ((int) (uniformValues.keyAt(i) >>> 32) == programName) {
+        uniformValues.removeAt(i);
+      }
+    }
+    if (program == programName) {
+      program = UNKNOWN;
+    }
+  }
+
+  /** Marks the end of a frame, and resets the call counters. */
+  public static void endFrame() {
+    issuedCallsLastFrame = issuedCalls;
+    avoidedCallsLastFrame = avoidedCalls;
+    issuedCalls = 0;
+    avoidedCalls = 0;
+  }
+
+  /** Number of state changing GL calls issued through the cache during the last frame. */
+  public static int getIssuedCallsLastFrame() {
+    return issuedCallsLastFrame;
+  }
+
+  /** Number of redundant GL calls skipped by the cache during the last frame. */
+  public static int getAvoidedCallsLastFrame() {
+    return avoidedCallsLastFrame;
+  }
+
+  public static void useProgram(int programName) {
+    if (program == programName) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    program = programName;
+    GLES20.glUseProgram(programName);
+  }
+
+  /** Binds a buffer to {@code GL_ARRAY_BUFFER} or {@code GL_ELEMENT_ARRAY_BUFFER}. */
+  public static void bindBuffer(int target, int buffer) {
+    if (target == GLES20.GL_ARRAY_BUFFER) {
+      if (arrayBuffer == buffer) {
+        ++avoidedCalls;
+        return;
+      }
+      arrayBuffer = buffer;
+    } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+      if (elementArrayBuffer == buffer) {
+        ++avoidedCalls;
+        return;
+      }
+      elementArrayBuffer = buffer;
+    }
+    ++issuedCalls;
+    GLES20.glBindBuffer(target, buffer);
+  }
+
+  /**
+   * Deletes a buffer and clears the cached bindings that refer to it, since OpenGL resets them to
+   * zero.
+   */
+  public static void deleteBuffer(int buffer) {
+    if (arrayBuffer == buffer) {
+      arrayBuffer = 0;
+    }
+    if (elementArrayBuffer == buffer) {
+      elementArrayBuffer = 0;
+    }
+    ++issuedCalls;
+    scratchName[0] = buffer;
+    GLES20.glDeleteBuffers(1, scratchName, 0);
+  }
+
+  public static void enableVertexAttribArray(int index) {
+    if (index < 0) {
+      return;
+    }
+    int bit = index < MAX_VERTEX_ATTRIBS ? 1 << index : 0;
+    if ((enabledAttribs & bit) != 0) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    enabledAttribs |= bit;
+    disabledAttribs &= ~bit;
+    GLES20.glEnableVertexAttribArray(index);
+  }
+
+  public static void disableVertexAttribArray(int index) {
+    if (index < 0) {
+      return;
+    }
+    int bit = index < MAX_VERTEX_ATTRIBS ? 1 << index : 0;
+    if ((disabledAttribs & bit) != 0) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    disabledAttribs |= bit;
+    enabledAttribs &= ~bit;
+    GLES20.glDisableVertexAttribArray(index);
+  }
+
+  public static void setBlendEnabled(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (blendEnabled == value) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    blendEnabled = value;
+    if (enabled) {
+      GLES20.glEnable(GLES20.GL_BLEND);
+    } else {
+      GLES20.glDisable(GLES20.GL_BLEND);
+    }
+  }
+
+  public static void blendFunc(int srcFactor, int dstFactor) {
+    if (blendSrcFactor == srcFactor && blendDstFactor == dstFactor) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    blendSrcFactor = srcFactor;
+    blendDstFactor = dstFactor;
+    GLES20.glBlendFunc(srcFactor, dstFactor);
+  }
+
+  public static void setDepthTestEnabled(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (depthTestEnabled == value) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    depthTestEnabled = value;
+    if (enabled) {
+      GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+    } else {
+      GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    }
+  }
+
+  public static void depthMask(boolean enabled) {
+    int value = enabled ? 1 : 0;
+    if (depthMask == value) {
+      ++avoidedCalls;
+      return;
+    }
+    ++issuedCalls;
+    depthMask = value;
+    GLES20.glDepthMask(enabled);
+  }
+
+  /** Sets a uniform of the current program, see {@link #useProgram(int)}. */
+  public static void uniform1i(int location, int value) {
+    // Integer uniforms are samplers and flags, small enough to be cached exactly as floats.
+    scratch[0] = value;
+    if (updateCachedUniform(location, scratch, 0, 1)) {
+      GLES20.glUniform1i(location, value);
+    }
+  }
+
+  /** Sets a uniform of the current program, see {@link #useProgram(int)}. */
+  public static void uniform1f(int location, float x) {
+    scratch[0] = x;
+    if (updateCachedUniform(location, scratch, 0, 1)) {
+      GLES20.glUniform1f(location, x);
+    }
+  }
+
+  /** Sets a uniform of the current program, see {@link #useProgram(int)}. */
+  public static void uniform3f(int location, float x, float y, float z) {
+    scratch[0] = x;
+    scratch[1] = y;
+    scratch[2] = z;
+    if (updateCachedUniform(location, scratch, 0, 3)) {
+      GLES20.glUniform3f(location, x, y, z);
+    }
+  }
+
+  /** Sets a uniform of the current program, see {@link #useProgram(int)}. */
+  public static void uniform4f(int location, float x, float y, float z, float w) {
+    scratch[0] = x;
+    scratch[1] = y;
+    scratch[2] = z;
+    scratch[3] = w;
+    if (updateCachedUniform(location, scratch, 0, 4)) {
+      GLES20.glUniform4f(location, x, y, z, w);
+    }
+  }
+
+  /** Sets a single vec4 uniform of the current program from an array. */
+  public static void uniform4fv(int location, float[] value, int offset) {
+    if (updateCachedUniform(location, value, offset, 4)) {
+      GLES20.glUniform4fv(location, 1, value, offset);
+    }
+  }
+
+  /** Sets a single mat2 uniform of the current program from an array. */
+  public static void uniformMatrix2fv(int location, float[] value, int offset) {
+    if (updateCachedUniform(location, value, offset, 4)) {
+      GLES20.glUniformMatrix2fv(location, 1, false, value, offset);
+    }
+  }
+
+  /** Sets a single mat3 uniform of the current program from an array. */
+  public static void uniformMatrix3fv(int location, float[] value, int offset) {
+    if (updateCachedUniform(location, value, offset, 9)) {
+      GLES20.glUniformMatrix3fv(location, 1, false, value, offset);
+    }
+  }
+
+  /** Sets a single mat4 uniform of the current program from an array. */
+  public static void uniformMatrix4fv(int location, float[] value, int offset) {
+    if (updateCachedUniform(location, value, offset, 16)) {
+      GLES20.glUniformMatrix4fv(location, 1, false, value, offset);
+    }
+  }
+
+  /**
+   * Compares a uniform value of the current program against the cache, and stores it if it
+   * differs.
+   *
+   * @return Whether the GL call must be issued. Uniforms that do not exist in the program
+   *     (location -1) are ignored by OpenGL, so they are never issued. Uniforms of a program that
+   *     was not bound through the cache are always issued.
+   */
+  private static boolean updateCachedUniform(int location, float[] value, int offset, int size) {
+    if (location < 0) {
+      return false;
+    }
+    if (program == UNKNOWN) {
+      ++issuedCalls;
+      return true;
+    }
+    long key = ((long) program << 32) | (location & 0xffffffffL);
+    float[] cached = uniformValues.get(key);
+    if (cached == null || cached.length != size) {
+      cached = new float[size];
+      uniformValues.put(key, cached);
+    } else {
+      boolean changed = false;
+      for (int i = 0; i < size; ++i) {
+        // Compare bit patterns, so that NaN values are cached as well.
+        if (Float.floatToRawIntBits(cached[i]) != Float.floatToRawIntBits(value[offset + i])) {
+          changed = true;
+          break;
+        }
+      }
+      if (!changed) {
+        ++avoidedCalls;
+        return false;
+      }
+    }
+    ++issuedCalls;
+    System.arraycopy(value, offset, cached, 0, size);
+    return true;
+  }
+
+  private GlStateCache() {}
+}
@@ -0,0 +1,192 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the cost of each renderer without an external profiler.
+ *
+ * <p>Every renderer draw is wrapped in a named section with {@link #begin(int)} and {@link
+ * #end(int, int)}. For each section the profiler records the CPU time spent submitting commands,
+ * the number of draw calls reported by the caller and, when the context is OpenGL ES 3.0 or newer
+ * and exposes {@code GL_EXT_disjoint_timer_query}, the GPU time measured by timer queries.
+ *
+ * <p>Timer query results only become available a few frames after they were issued, so every
+ * section owns a small ring of queries that is polled in {@link #beginFrame()} without blocking.
+ * Results are discarded when the driver reports a disjoint event, for example a frequency change,
+ * which makes the measured interval meaningless. Sections must not overlap, since only one time
+ * elapsed query may be active at once.
+ *
+ * <p>All methods except {@link #addSection(String)} must be called on the OpenGL thread.
+ */
+public final class GpuProfiler {
+  private static final String TIMER_QUERY_EXTENSION = "GL_EXT_disjoint_timer_query";
+  // Tokens of GL_EXT_disjoint_timer_query, which are not exposed by the Android GLES classes.
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+  // Number of queries in flight per section; results usually arrive two to three frames later.
+  private static final int QUERY_RING_SIZE = 4;
+  // Smoothing factor of the exponentially weighted moving averages.
+  private static final float SMOOTHING = 0.1f;
+
+  private static final class Section {
+    final String name;
+    final int[] queries = new int[QUERY_RING_SIZE];
+    final boolean[] pending = new boolean[QUERY_RING_SIZE];
+    int nextQuery;
+    // Ring index of the query started by begin(), or -1 when the section is not timed this frame.
+    int activeQuery = -1;
+    long cpuStartNanos;
+
+    float cpuMs;
+    float gpuMs;
+    float drawCalls;
+    long discardedSamples;
+
+    Section(String name) {
+      this.name = name;
+    }
+  }
+
+  private final ArrayList<Section> sections = new ArrayList<>();
+  private final int[] scratch = new int[1];
+  private boolean timerQueriesSupported;
+
+  /**
+   * Registers a section and returns its handle for {@link #begin(int)} and {@link #end(int, int)}.
+   */
+  public synchronized int addSection(String name) {
+    sections.add(new Section(name));
+    return sections.size() - 1;
+  }
+
+  /**
+   * Detects timer query support and allocates the queries. Must be called on the OpenGL thread,
+   * typically in {@link android.opengl.GLSurfaceView.Renderer#onSurfaceCreated}, after all
+   * sections were added.
+   */
+  public synchronized void createOnGlThread() {
+    timerQueriesSupported = isTimerQuerySupported();
+    for (Section section : sections) {
+      section.nextQuery = 0;
+      section.activeQuery = -1;
+      Arrays.fill(section.pending, false);
+      if (timerQueriesSupported) {
+        GLES30.glGenQueries(QUERY_RING_SIZE, section.queries, 0);
+      }
+    }
+  }
+
+  /** Whether GPU times are measured, only valid after {@link #createOnGlThread()}. */
+  public boolean hasTimerQueries() {
+    return timerQueriesSupported;
+  }
+
+  /** Collects the timer query results that became available since the previous frame. */
+  public synchronized void beginFrame() {
+    if (!timerQueriesSupported) {
+      return;
+    }
+    // Reading the disjoint flag also clears it.
+    GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, scratch, 0);
+    boolean disjoint = scratch[0] != 0;
+    for (Section section : sections) {
+      // Poll in submission order, and stop at the first result that is not ready yet.
+      for (int n = 0; n < QUERY_RING_SIZE; ++n) {
+        int i = (section.nextQuery + n) % QUERY_RING_SIZE;
+        if (!section.pending[i]) {
+          continue;
+        }
+        GLES30.glGetQueryObjectuiv(
+            section.queries[i], GLES30.GL_QUERY_RESULT_AVAILABLE, scratch, 0);
+        if (scratch[0] == 0) {
+          break;
+        }
+        GLES30.glGetQueryObjectuiv(section.queries[i], GLES30.GL_QUERY_RESULT, scratch, 0);
+        section.pending[i] = false;
+        if (disjoint) {
+          ++section.discardedSamples;
+        } else {
+          // The result is an unsigned 32 bit nanosecond count.
+          section.gpuMs = smooth(section.gpuMs, (scratch[0] & 0xffffffffL) / 1e6f);
+        }
+      }
+    }
+  }
+
+  /** Starts measuring a section. */
+  public synchronized void begin(int sectionIndex) {
+    Section section = sections.get(sectionIndex);
+    section.cpuStartNanos = System.nanoTime();
+    section.activeQuery = -1;
+    // When every query of the ring is still in flight, this frame is not timed on the GPU.
+    if (timerQueriesSupported && !section.pending[section.nextQuery]) {
+      section.activeQuery = section.nextQuery;
+      GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, section.queries[section.activeQuery]);
+    }
+  }
+
+  /**
+   * Stops measuring a section.
+   *
+   * @param drawCalls The number of draw calls issued inside the section.
+   */
+  public synchronized void end(int sectionIndex, int drawCalls) {
+    Section section = sections.get(sectionIndex);
+    if (section.activeQuery >= 0) {
+      GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+      section.pending[section.activeQuery] = true;
+      section.nextQuery = (section.activeQuery + 1) % QUERY_RING_SIZE;
+      section.activeQuery = -1;
+    }
+    section.cpuMs = smooth(section.cpuMs, (System.nanoTime() - section.cpuStartNanos) / 1e6f);
+    section.drawCalls = smooth(section.drawCalls, drawCalls);
+  }
+
+  /** Returns the smoothed GPU time of a section in milliseconds, or 0 when it is not measured. */
+  public synchronized float getGpuMs(int sectionIndex) {
+    return sections.get(sectionIndex).gpuMs;
+  }
+
+  /** Returns the smoothed CPU time spent submitting the commands of a section in milliseconds. */
+  public synchronized float getCpuMs(int sectionIndex) {
+    return sections.get(sectionIndex).cpuMs;
+  }
+
+  /** Returns one line per section with the smoothed CPU time, GPU time and draw calls. */
+  public synchronized String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Section section : sections) {
+      if (summary.length() > 0) {
+        summary.append('\n');
+      }
+      summary.append(
+          String.format(
+              Locale.US, "%s: cpu %.2f ms, gpu %s, %.0f draws", section.name, section.cpuMs,
+              timerQueriesSupported
+                  ? String.format(Locale.US, "%.2f ms", section.gpuMs)
+                  : "n/a",
+              section.drawCalls));
+      if (section.discardedSamples > 0) {
+        summary.append(" (").append(section.discardedSamples).append(" disjoint)");
+      }
+    }
+    return summary.toString();
+  }
+
+  private static boolean isTimerQuerySupported() {
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    // The query entry points are only exposed through GLES30, so an ES 3 context is required.
+    return ShaderUtil.isGlEs3Context()
+        && extensions != null
+        && extensions.contains(TIMER_QUERY_EXTENSION);
+  }
+
+  private static float smooth(float average, float sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+}
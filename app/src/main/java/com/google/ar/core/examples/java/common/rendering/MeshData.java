@@ -0,0 +1,334 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.util.Log;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Triangle mesh in a compact binary layout that can be memory-mapped and uploaded to OpenGL as is.
+ *
+ * <p>Vertices are interleaved as position (3 floats), normal (3 floats) and texture coordinates (2
+ * floats). Indices are unsigned shorts, so meshes with more than 65,535 vertices are split into
+ * chunks, each with its own vertices and indices. Data is stored little endian, which is the
+ * native byte order of every Android ABI, so mapped buffers can be passed to OpenGL directly. The
+ * file layout is:
+ *
+ * <pre>
+ *   int magic, int version, int chunkCount
+ *   per chunk: int vertexCount, int indexCount
+ *   per chunk: float[vertexCount * 8] vertices, short[indexCount] indices, padded to 4 bytes
+ * </pre>
+ *
+ * <p>{@link #fromObj(InputStream)} performs the conversion from OBJ, and {@link #load(Context,
+ * String)} keeps converted assets in the code cache directory so OBJ parsing only happens once per
+ * app version.
+ */
+public final class MeshData {
+  private static final String TAG = MeshData.class.getSimpleName();
+
+  public static final int FLOATS_PER_VERTEX = 8;
+  public static final int BYTES_PER_VERTEX = FLOATS_PER_VERTEX * 4;
+  public static final int POSITION_OFFSET = 0;
+  public static final int NORMAL_OFFSET = 3 * 4;
+  public static final int TEX_COORD_OFFSET = 6 * 4;
+
+  // Largest number of vertices addressable by unsigned short indices.
+  static final int MAX_VERTICES_PER_CHUNK = 65535;
+
+  private static final String CACHE_DIRECTORY = "meshes";
+  private static final int FILE_MAGIC = 0x4853454d; // "MESH" in little endian.
+  private static final int FILE_VERSION = 1;
+
+  /** A part of the mesh addressable with short indices. */
+  public static final class Chunk {
+    public final int vertexCount;
+    public final int indexCount;
+    /** Interleaved vertices, positioned at zero. */
+    public final ByteBuffer vertices;
+    /** Unsigned short indices into the vertices of this chunk, positioned at zero. */
+    public final ByteBuffer indices;
+
+    Chunk(int vertexCount, int indexCount, ByteBuffer vertices, ByteBuffer indices) {
+      this.vertexCount = vertexCount;
+      this.indexCount = indexCount;
+      this.vertices = vertices;
+      this.indices = indices;
+    }
+  }
+
+  private final ArrayList<Chunk> chunks;
+
+  private MeshData(ArrayList<Chunk> chunks) {
+    this.chunks = chunks;
+  }
+
+  public int getChunkCount() {
+    return chunks.size();
+  }
+
+  public Chunk getChunk(int index) {
+    return chunks.get(index);
+  }
+
+  /** Total size of the vertices of all chunks in bytes. */
+  public int getVertexBytes() {
+    int bytes = 0;
+    for (Chunk chunk : chunks) {
+      bytes += chunk.vertexCount * BYTES_PER_VERTEX;
+    }
+    return bytes;
+  }
+
+  /** Total size of the indices of all chunks in bytes. */
+  public int getIndexBytes() {
+    int bytes = 0;
+    for (Chunk chunk : chunks) {
+      bytes += chunk.indexCount * 2;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the mesh of an OBJ asset. The first call converts the asset and stores the result in
+   * the code cache directory; later calls, including those of later launches, map the stored file.
+   * Performs file IO, so it should not be called on the UI or OpenGL thread.
+   */
+  public static MeshData load(Context context, String objAssetName) throws IOException {
+    File file =
+        new File(new File(context.getCodeCacheDir(), CACHE_DIRECTORY), objAssetName + ".mesh");
+    if (file.exists()) {
+      try {
+        return map(file);
+      } catch (IOException e) {
+        Log.w(TAG, "Discarding unreadable mesh cache " + file, e);
+        if (!file.delete()) {
+          Log.w(TAG, "Failed to delete " + file);
+        }
+      }
+    }
+    MeshData mesh;
+    try (InputStream objInputStream = context.getAssets().open(objAssetName)) {
+      mesh = fromObj(objInputStream);
+    }
+    try {
+      mesh.write(file);
+    } catch (IOException e) {
+      // The mesh is still usable, it will simply be converted again next time.
+      Log.w(TAG, "Failed to store mesh cache " + file, e);
+    }
+    return mesh;
+  }
+
+  /** Parses an OBJ file and converts it into chunks of interleaved, short indexed triangles. */
+  public static MeshData fromObj(InputStream objInputStream) throws IOException {
+    Obj obj = ObjReader.read(objInputStream);
+
+    // Prepare the Obj so that its structure is suitable for
+    // rendering with OpenGL:
+    // 1. Triangulate it
+    // 2. Make sure that texture coordinates are not ambiguous
+    // 3. Make sure that normals are not ambiguous
+    // 4. Convert it to single-indexed data
+    obj = ObjUtils.convertToRenderable(obj);
+
+    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
+    FloatBuffer positions = ObjData.getVertices(obj);
+    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
+    FloatBuffer normals = ObjData.getNormals(obj);
+    int totalVertices = obj.getNumVertices();
+    boolean hasTexCoords = texCoords.limit() >= totalVertices * 2;
+    boolean hasNormals = normals.limit() >= totalVertices * 3;
+
+    // Maps a mesh vertex to its index in the current chunk, valid when the stamp matches.
+    int[] chunkIndex = new int[totalVertices];
+    int[] chunkStamp = new int[totalVertices];
+    int stamp = 1;
+    int[] chunkVertices = new int[Math.min(totalVertices, MAX_VERTICES_PER_CHUNK)];
+    int chunkVertexCount = 0;
+    short[] chunkIndices = new short[wideIndices.limit()];
+    int chunkIndexCount = 0;
+
+    ArrayList<Chunk> chunks = new ArrayList<>();
+    for (int triangle = 0; triangle + 2 < wideIndices.limit(); triangle += 3) {
+      // Count the vertices of this triangle that are not in the chunk yet.
+      int newVertices = 0;
+      for (int corner = 0; corner < 3; ++corner) {
+        int vertex = wideIndices.get(triangle + corner);
+        if (chunkStamp[vertex] != stamp) {
+          ++newVertices;
+        }
+      }
+      if (chunkVertexCount + newVertices > MAX_VERTICES_PER_CHUNK) {
+        chunks.add(
+            createChunk(positions, normals, texCoords, hasNormals, hasTexCoords, chunkVertices,
+                chunkVertexCount, chunkIndices, chunkIndexCount));
+        ++stamp;
+        chunkVertexCount = 0;
+        chunkIndexCount = 0;
+      }
+      for (int corner = 0; corner < 3; ++corner) {
+        int vertex = wideIndices.get(triangle + corner);
+        if (chunkStamp[vertex] != stamp) {
+          chunkStamp[vertex] = stamp;
+          chunkIndex[vertex] = chunkVertexCount;
+          chunkVertices[chunkVertexCount++] = vertex;
+        }
+        chunkIndices[chunkIndexCount++] = (short) chunkIndex[vertex];
+      }
+    }
+    if (chunkIndexCount > 0) {
+      chunks.add(
+          createChunk(positions, normals, texCoords, hasNormals, hasTexCoords, chunkVertices,
+              chunkVertexCount, chunkIndices, chunkIndexCount));
+    }
+    if (chunks.size() > 1) {
+      Log.i(TAG, "Split mesh of " + totalVertices + " vertices into " + chunks.size() + " chunks");
+    }
+    return new MeshData(chunks);
+  }
+
+  private static Chunk createChunk(
+      FloatBuffer positions,
+      FloatBuffer normals,
+      FloatBuffer texCoords,
+      boolean hasNormals,
+      boolean hasTexCoords,
+      int[] vertices,
+      int vertexCount,
+      short[] indices,
+      int indexCount) {
+    ByteBuffer vertexData =
+        ByteBuffer.allocateDirect(vertexCount * BYTES_PER_VERTEX).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < vertexCount; ++i) {
+      int vertex = vertices[i];
+      vertexData.putFloat(positions.get(vertex * 3));
+      vertexData.putFloat(positions.get(vertex * 3 + 1));
+      vertexData.putFloat(positions.get(vertex * 3 + 2));
+      vertexData.putFloat(hasNormals ? normals.get(vertex * 3) : 0);
+      vertexData.putFloat(hasNormals ? normals.get(vertex * 3 + 1) : 0);
+      vertexData.putFloat(hasNormals ? normals.get(vertex * 3 + 2) : 0);
+      vertexData.putFloat(hasTexCoords ? texCoords.get(vertex * 2) : 0);
+      vertexData.putFloat(hasTexCoords ? texCoords.get(vertex * 2 + 1) : 0);
+    }
+    vertexData.flip();
+    ByteBuffer indexData =
+        ByteBuffer.allocateDirect(indexCount * 2).order(ByteOrder.LITTLE_ENDIAN);
+    indexData.asShortBuffer().put(indices, 0, indexCount);
+    return new Chunk(vertexCount, indexCount, vertexData, indexData);
+  }
+
+  /** Writes the mesh in the binary format. The file is replaced atomically. */
+  public void write(File file) throws IOException {
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create " + directory);
+    }
+    File temporary = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temporary);
+        FileChannel channel = out.getChannel()) {
+      ByteBuffer header =
+          ByteBuffer.allocate(12 + chunks.size() * 8).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(chunks.size());
+      for (Chunk chunk : chunks) {
+        header.putInt(chunk.vertexCount).putInt(chunk.indexCount);
+      }
+      header.flip();
+      writeFully(channel, header);
+      ByteBuffer padding = ByteBuffer.allocate(2);
+      for (Chunk chunk : chunks) {
+        writeFully(channel, chunk.vertices.duplicate());
+        writeFully(channel, chunk.indices.duplicate());
+        if (chunk.indexCount % 2 != 0) {
+          padding.clear();
+          writeFully(channel, padding);
+        }
+      }
+      out.getFD().sync();
+    }
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Failed to rename " + temporary + " to " + file);
+    }
+  }
+
+  /** Memory-maps a file written by {@link #write(File)}. */
+  public static MeshData map(File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      // The mapping stays valid after the channel is closed.
+      ByteBuffer data =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+              .order(ByteOrder.LITTLE_ENDIAN);
+      if (data.remaining() < 12
+          || data.getInt() != FILE_MAGIC
+          || data.getInt() != FILE_VERSION) {
+        throw new IOException("Not a mesh file: " + file);
+      }
+      int chunkCount = data.getInt();
+      if (chunkCount < 0 || data.remaining() < chunkCount * 8L) {
+        throw new IOException("Truncated mesh file: " + file);
+      }
+      int[] counts = new int[chunkCount * 2];
+      for (int i = 0; i < counts.length; ++i) {
+        counts[i] = data.getInt();
+      }
+      ArrayList<Chunk> chunks = new ArrayList<>(chunkCount);
+      for (int i = 0; i < chunkCount; ++i) {
+        int vertexCount = counts[i * 2];
+        int indexCount = counts[i * 2 + 1];
+        long vertexBytes = (long) vertexCount * BYTES_PER_VERTEX;
+        long indexBytes = indexCount * 2L;
+        long paddedIndexBytes = (indexBytes + 3) & ~3L;
+        if (vertexCount < 0
+            || vertexCount > MAX_VERTICES_PER_CHUNK
+            || indexCount < 0
+            || data.remaining() < vertexBytes + paddedIndexBytes) {
+          throw new IOException("Truncated mesh file: " + file);
+        }
+        ByteBuffer vertices = slice(data, (int) vertexBytes);
+        ByteBuffer indices = slice(data, (int) indexBytes);
+        data.position(data.position() + (int) (paddedIndexBytes - indexBytes));
+        chunks.add(new Chunk(vertexCount, indexCount, vertices, indices));
+      }
+      return new MeshData(chunks);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int length) {
+    ByteBuffer view = data.duplicate();
+    view.limit(view.position() + length);
+    ByteBuffer slice = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    data.position(data.position() + length);
+    return slice;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.position(0);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  public String toString() {
+    int[] vertexCounts = new int[chunks.size()];
+    for (int i = 0; i < vertexCounts.length; ++i) {
+      vertexCounts[i] = chunks.get(i).vertexCount;
+    }
+    return "MeshData" + Arrays.toString(vertexCounts);
+  }
+}
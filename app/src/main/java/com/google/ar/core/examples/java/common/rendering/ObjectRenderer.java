@@ -19,19 +19,16 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -56,27 +53,92 @@ public class ObjectRenderer {
   private static final String FRAGMENT_SHADER_NAME = "shaders/ar_object.frag";
 
   private static final int COORDS_PER_VERTEX = 3;
+  private static final int NORMAL_COORDS_PER_VERTEX = 3;
+  private static final int TEX_COORDS_PER_VERTEX = 2;
+  private static final int BYTES_PER_FLOAT = Float.SIZE / 8;
+  // Per-instance model matrix (16 floats) followed by the object color (4 floats).
+  private static final int FLOATS_PER_INSTANCE = 20;
+  private static final int BYTES_PER_INSTANCE = FLOATS_PER_INSTANCE * BYTES_PER_FLOAT;
+  private static final int INITIAL_INSTANCE_CAPACITY = 64;
   private static final float[] DEFAULT_COLOR = new float[] {0f, 0f, 0f, 0f};
 
   // Note: the last component must be zero to avoid applying the translational part of the matrix.
   private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
   private final float[] viewLightDirection = new float[4];
 
-  // Object vertex buffer variables.
+  /**
+   * The decoded model and texture, ready to be uploaded to OpenGL. The assets are not consumed by
+   * an upload, so they can be uploaded again after the OpenGL context was lost, or by several
+   * renderers.
+   *
+   * @see #loadAssetsInBackground(Context, String, String)
+   */
+  public static final class Assets {
+    private final MeshData mesh;
+    private final Bitmap diffuseTexture;
+
+    private Assets(MeshData mesh, Bitmap diffuseTexture) {
+      this.mesh = mesh;
+      this.diffuseTexture = diffuseTexture;
+    }
+
+    /**
+     * Reads the model and decodes the texture on the calling thread.
+     *
+     * @param context Context for loading the model and texture assets.
+     * @param objAssetName Name of the OBJ file containing the model geometry.
+     * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+     */
+    public static Assets load(Context context, String objAssetName, String diffuseTextureAssetName)
+        throws IOException {
+      MeshData mesh = MeshData.load(context, objAssetName);
+      Bitmap diffuseTexture;
+      try (InputStream textureInputStream = context.getAssets().open(diffuseTextureAssetName)) {
+        diffuseTexture = BitmapFactory.decodeStream(textureInputStream);
+      }
+      if (diffuseTexture == null) {
+        throw new IOException("Failed to decode " + diffuseTextureAssetName);
+      }
+      return new Assets(mesh, diffuseTexture);
+    }
+  }
+
+  // Object vertex buffer variables. Chunk i occupies the given byte ranges of the shared buffers.
   private int vertexBufferId;
-  private int verticesBaseAddress;
-  private int texCoordsBaseAddress;
-  private int normalsBaseAddress;
   private int indexBufferId;
-  private int indexCount;
+  private int[] chunkVertexOffsets = new int[0];
+  private int[] chunkIndexOffsets = new int[0];
+  private int[] chunkIndexCounts = new int[0];
+
+  // Assets loaded on a background thread, uploaded by the next draw() on the OpenGL thread.
+  private volatile Assets pendingAssets;
 
   private int program;
   private final int[] textures = new int[1];
 
+  // Whether the program reads model matrices and colors from instanced vertex attributes, which
+  // requires OpenGL ES 3.
+  private boolean instancing;
+
   // Shader location: model view projection matrix.
   private int modelViewUniform;
   private int modelViewProjectionUniform;
 
+  // Shader location: view and view projection matrices, when instancing.
+  private int viewUniform;
+  private int viewProjectionUniform;
+
+  // Shader location: per-instance attributes, when instancing. The matrix takes four locations.
+  private int instanceModelAttribute;
+  private int instanceColorAttribute;
+
+  private int instanceBufferId;
+  private int instanceBufferCapacityBytes;
+  private FloatBuffer instanceData =
+      ByteBuffer.allocateDirect(INITIAL_INSTANCE_CAPACITY * BYTES_PER_INSTANCE)
+          .order(ByteOrder.nativeOrder())
+          .asFloatBuffer();
+
   // Shader location: object attributes.
   private int positionAttribute;
   private int normalAttribute;
@@ -112,6 +174,8 @@ public class ObjectRenderer {
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
+  private final float[] cameraViewMatrix = new float[16];
+  private final float[] viewProjectionMatrix = new float[16];
 
   // Set some default material properties to use for lighting.
   private float ambient = 0.3f;
@@ -122,6 +186,7 @@ public class ObjectRenderer {
   // Depth-for-Occlusion parameters.
   private static final String USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG = "USE_DEPTH_FOR_OCCLUSION";
   private boolean useDepthForOcclusion = false;
+  private static final String USE_INSTANCING_SHADER_FLAG = "USE_INSTANCING";
   private float depthAspectRatio = 0.0f;
   private float[] uvTransform = null;
   private int depthTextureId;
@@ -135,12 +200,53 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    createOnGlThread(context);
+    uploadAssets(Assets.load(context, objAssetName, diffuseTextureAssetName));
+  }
+
+  /**
+   * Creates the shader program without any model. The model is provided later through {@link
+   * #setAssets(Assets)}, and nothing is drawn until then.
+   *
+   * @param context Context for loading the shader.
+   */
+  public void createOnGlThread(Context context) throws IOException {
     // Compiles and loads the shader based on the current configuration.
     compileAndLoadShaderProgram(context);
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
+    // Objects of a previous context are gone, the model must be provided again.
+    vertexBufferId = 0;
+    indexBufferId = 0;
+    instanceBufferId = 0;
+    instanceBufferCapacityBytes = 0;
+    textures[0] = 0;
+    chunkIndexCounts = new int[0];
+    Matrix.setIdentityM(modelMatrix, 0);
+  }
+
+  /**
+   * Reads the model and decodes the texture on an IO thread. Pass the result to {@link
+   * #setAssets(Assets)}, which defers the OpenGL upload to the next draw.
+   */
+  public static Single<Assets> loadAssetsInBackground(
+      Context context, String objAssetName, String diffuseTextureAssetName) {
+    return Single.fromCallable(() -> Assets.load(context, objAssetName, diffuseTextureAssetName))
+        .subscribeOn(Schedulers.io());
+  }
+
+  /**
+   * Sets the model to draw. May be called from any thread; the upload happens on the OpenGL thread
+   * at the beginning of the next {@link #draw(float[], float[], float[])}.
+   */
+  public void setAssets(Assets assets) {
+    pendingAssets = assets;
+  }
+
+  private void uploadAssets(Assets assets) {
+    Bitmap textureBitmap = assets.diffuseTexture;
+    if (textures[0] != 0) {
+      GLES20.glDeleteTextures(textures.length, textures, 0);
+    }
 
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     GLES20.glGenTextures(textures.length, textures, 0);
@@ -153,72 +259,48 @@ public class ObjectRenderer {
     GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
-    textureBitmap.recycle();
-
     ShaderUtil.checkGLError(TAG, "Texture loading");
 
-    // Read the obj file.
-    InputStream objInputStream = context.getAssets().open(objAssetName);
-    Obj obj = ObjReader.read(objInputStream);
-
-    // Prepare the Obj so that its structure is suitable for
-    // rendering with OpenGL:
-    // 1. Triangulate it
-    // 2. Make sure that texture coordinates are not ambiguous
-    // 3. Make sure that normals are not ambiguous
-    // 4. Convert it to single-indexed data
-    obj = ObjUtils.convertToRenderable(obj);
-
-    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-    // that OpenGL understands.
-
-    // Obtain the data from the OBJ, as direct buffers:
-    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-    FloatBuffer vertices = ObjData.getVertices(obj);
-    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-    FloatBuffer normals = ObjData.getNormals(obj);
-
-    // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
-    while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
+    // The mesh data is already interleaved and short indexed, so the chunks are copied into the
+    // shared buffers without any conversion.
+    MeshData mesh = assets.mesh;
+    if (vertexBufferId == 0) {
+      int[] buffers = new int[2];
+      GLES20.glGenBuffers(2, buffers, 0);
+      vertexBufferId = buffers[0];
+      indexBufferId = buffers[1];
     }
-    indices.rewind();
-
-    int[] buffers = new int[2];
-    GLES20.glGenBuffers(2, buffers, 0);
-    vertexBufferId = buffers[0];
-    indexBufferId = buffers[1];
-
-    // Load vertex buffer
-    verticesBaseAddress = 0;
-    texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
-    normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
-    final int totalBytes = normalsBaseAddress + 4 * normals.limit();
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-    // Load index buffer
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    indexCount = indices.limit();
-    GLES20.glBufferData(
-        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    int chunkCount = mesh.getChunkCount();
+    chunkVertexOffsets = new int[chunkCount];
+    chunkIndexOffsets = new int[chunkCount];
+    chunkIndexCounts = new int[chunkCount];
 
-    ShaderUtil.checkGLError(TAG, "OBJ buffer load");
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER, mesh.getVertexBytes(), null, GLES20.GL_STATIC_DRAW);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndexBytes(), null, GLES20.GL_STATIC_DRAW);
+    int vertexOffset = 0;
+    int indexOffset = 0;
+    for (int i = 0; i < chunkCount; ++i) {
+      MeshData.Chunk chunk = mesh.getChunk(i);
+      int vertexBytes = chunk.vertexCount * MeshData.BYTES_PER_VERTEX;
+      int indexBytes = chunk.indexCount * 2;
+      GLES20.glBufferSubData(
+          GLES20.GL_ARRAY_BUFFER, vertexOffset, vertexBytes, chunk.vertices.duplicate());
+      GLES20.glBufferSubData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER, indexOffset, indexBytes, chunk.indices.duplicate());
+      chunkVertexOffsets[i] = vertexOffset;
+      chunkIndexOffsets[i] = indexOffset;
+      chunkIndexCounts[i] = chunk.indexCount;
+      vertexOffset += vertexBytes;
+      indexOffset += indexBytes;
+    }
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 
-    Matrix.setIdentityM(modelMatrix, 0);
+    ShaderUtil.checkGLError(TAG, "Mesh buffer load");
   }
 
   /**
@@ -256,25 +338,33 @@ public class ObjectRenderer {
 
   private void compileAndLoadShaderProgram(Context context) throws IOException {
     // Compiles and loads the shader program based on the selected mode.
-    Map<String, Integer> defineValuesMap = new TreeMap<>();
+    instancing = ShaderUtil.isGlEs3Context();
+    Map<String, Integer> vertexDefineValuesMap = new TreeMap<>();
+    vertexDefineValuesMap.put(USE_INSTANCING_SHADER_FLAG, instancing ? 1 : 0);
+    Map<String, Integer> defineValuesMap = new TreeMap<>(vertexDefineValuesMap);
     defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
 
-    final int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    final int fragmentShader =
-        ShaderUtil.loadGLShader(
-            TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
-
-    program = GLES20.glCreateProgram();
-    GLES20.glAttachShader(program, vertexShader);
-    GLES20.glAttachShader(program, fragmentShader);
-    GLES20.glLinkProgram(program);
-    GLES20.glUseProgram(program);
+    program =
+        ShaderProgramCache.createProgram(
+            TAG,
+            context,
+            VERTEX_SHADER_NAME,
+            vertexDefineValuesMap,
+            FRAGMENT_SHADER_NAME,
+            defineValuesMap);
+    GlStateCache.useProgram(program);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
-    modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
-    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+    if (instancing) {
+      viewUniform = GLES20.glGetUniformLocation(program, "u_View");
+      viewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ViewProjection");
+      instanceModelAttribute = GLES20.glGetAttribLocation(program, "a_InstanceModel");
+      instanceColorAttribute = GLES20.glGetAttribLocation(program, "a_InstanceColor");
+    } else {
+      modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
+      modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+    }
 
     positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
     normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
@@ -352,107 +442,291 @@ public class ObjectRenderer {
       float[] cameraPerspective,
       float[] colorCorrectionRgba,
       float[] objColor) {
+    if (!uploadPendingAssets()) {
+      return;
+    }
 
     ShaderUtil.checkGLError(TAG, "Before draw");
 
     // Build the ModelView and ModelViewProjection matrices
     // for calculating object position and light.
+    System.arraycopy(cameraView, 0, cameraViewMatrix, 0, 16);
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
-    Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+
+    // The light direction follows the model orientation.
+    beginDraw(modelViewMatrix, colorCorrectionRgba);
+    if (instancing) {
+      // Without instance arrays enabled, the instance attributes read these constant values.
+      GlStateCache.disableVertexAttribArray(instanceColorAttribute);
+      for (int column = 0; column < 4; ++column) {
+        GlStateCache.disableVertexAttribArray(instanceModelAttribute + column);
+        GLES20.glVertexAttrib4fv(instanceModelAttribute + column, modelMatrix, column * 4);
+      }
+      GLES20.glVertexAttrib4fv(instanceColorAttribute, objColor, 0);
+    } else {
+      setInstanceUniforms(modelMatrix, 0, objColor, 0);
+    }
+    for (int i = 0; i < chunkIndexCounts.length; ++i) {
+      setChunkAttributes(i);
+      GLES20.glDrawElements(
+          GLES20.GL_TRIANGLES, chunkIndexCounts[i], GLES20.GL_UNSIGNED_SHORT,
+          chunkIndexOffsets[i]);
+    }
+    endDraw();
 
-    GLES20.glUseProgram(program);
+    ShaderUtil.checkGLError(TAG, "After draw");
+  }
+
+  /**
+   * Draws the model once for each of the given model matrices, with the current blend mode and
+   * material properties.
+   *
+   * <p>The shared state, the light direction and the view-projection matrix are set up once for
+   * the whole batch. On OpenGL ES 3 the instances are drawn with one instanced draw call per mesh
+   * chunk; on OpenGL ES 2 only the per-instance uniforms change between draw calls. Unlike {@link
+   * #draw(float[], float[], float[], float[])}, the light direction is fixed in world space, so
+   * that it does not depend on any single instance.
+   *
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param cameraPerspective A 4x4 projection matrix, in column-major order.
+   * @param colorCorrectionRgba Illumination intensity. Combined with diffuse and specular material
+   *     properties.
+   * @param modelMatrices {@code count} 4x4 model-to-world matrices in column-major order, packed
+   *     one after the other.
+   * @param objColors {@code count} RGBA colors packed one after the other, in the format accepted
+   *     by {@link #draw(float[], float[], float[], float[])}, or null to draw every instance
+   *     without color.
+   * @param count The number of instances to draw.
+   */
+  public void drawInstances(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] modelMatrices,
+      float[] objColors,
+      int count) {
+    if (count <= 0 || !uploadPendingAssets()) {
+      return;
+    }
+
+    ShaderUtil.checkGLError(TAG, "Before draw instances");
+
+    System.arraycopy(cameraView, 0, cameraViewMatrix, 0, 16);
+    Matrix.multiplyMM(viewProjectionMatrix, 0, cameraPerspective, 0, cameraView, 0);
+    beginDraw(cameraView, colorCorrectionRgba);
+    if (instancing) {
+      uploadInstances(modelMatrices, objColors, count);
+      GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBufferId);
+      for (int column = 0; column < 4; ++column) {
+        GlStateCache.enableVertexAttribArray(instanceModelAttribute + column);
+        GLES20.glVertexAttribPointer(
+            instanceModelAttribute + column, 4, GLES20.GL_FLOAT, false, BYTES_PER_INSTANCE,
+            column * 4 * BYTES_PER_FLOAT);
+        GLES30.glVertexAttribDivisor(instanceModelAttribute + column, 1);
+      }
+      GlStateCache.enableVertexAttribArray(instanceColorAttribute);
+      GLES20.glVertexAttribPointer(
+          instanceColorAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_INSTANCE,
+          16 * BYTES_PER_FLOAT);
+      GLES30.glVertexAttribDivisor(instanceColorAttribute, 1);
+
+      for (int i = 0; i < chunkIndexCounts.length; ++i) {
+        setChunkAttributes(i);
+        GLES30.glDrawElementsInstanced(
+            GLES20.GL_TRIANGLES, chunkIndexCounts[i], GLES20.GL_UNSIGNED_SHORT,
+            chunkIndexOffsets[i], count);
+      }
+
+      // Divisors are not part of the program, so they would leak into other renderers.
+      for (int column = 0; column < 4; ++column) {
+        GLES30.glVertexAttribDivisor(instanceModelAttribute + column, 0);
+        GlStateCache.disableVertexAttribArray(instanceModelAttribute + column);
+      }
+      GLES30.glVertexAttribDivisor(instanceColorAttribute, 0);
+      GlStateCache.disableVertexAttribArray(instanceColorAttribute);
+    } else {
+      // Attribute pointers are set once per chunk, only the instance uniforms change per draw.
+      for (int i = 0; i < chunkIndexCounts.length; ++i) {
+        setChunkAttributes(i);
+        for (int instance = 0; instance < count; ++instance) {
+          setInstanceUniforms(
+              modelMatrices, instance * 16, objColors == null ? DEFAULT_COLOR : objColors,
+              objColors == null ? 0 : instance * 4);
+          GLES20.glDrawElements(
+              GLES20.GL_TRIANGLES, chunkIndexCounts[i], GLES20.GL_UNSIGNED_SHORT,
+              chunkIndexOffsets[i]);
+        }
+      }
+    }
+    endDraw();
+
+    ShaderUtil.checkGLError(TAG, "After draw instances");
+  }
+
+  /** Uploads assets set through {@link #setAssets(Assets)}, returns whether a model is ready. */
+  private boolean uploadPendingAssets() {
+    Assets assets = pendingAssets;
+    if (assets != null) {
+      pendingAssets = null;
+      uploadAssets(assets);
+    }
+    return chunkIndexCounts.length > 0;
+  }
+
+  /**
+   * Sets up the state shared by all draw calls of the model.
+   *
+   * @param lightMatrix The matrix transforming the light direction into view space.
+   */
+  private void beginDraw(float[] lightMatrix, float[] colorCorrectionRgba) {
+    GlStateCache.useProgram(program);
 
     // Set the lighting environment properties.
-    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
+    Matrix.multiplyMV(viewLightDirection, 0, lightMatrix, 0, LIGHT_DIRECTION, 0);
     normalizeVec3(viewLightDirection);
-    GLES20.glUniform4f(
+    GlStateCache.uniform4f(
         lightingParametersUniform,
         viewLightDirection[0],
         viewLightDirection[1],
         viewLightDirection[2],
         1.f);
-    GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
-
-    // Set the object color property.
-    GLES20.glUniform4fv(colorUniform, 1, objColor, 0);
+    GlStateCache.uniform4fv(colorCorrectionParameterUniform, colorCorrectionRgba, 0);
 
     // Set the object material properties.
-    GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+    GlStateCache.uniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
 
     // Attach the object texture.
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-    GLES20.glUniform1i(textureUniform, 0);
+    GlStateCache.uniform1i(textureUniform, 0);
 
     // Occlusion parameters.
     if (useDepthForOcclusion) {
       // Attach the depth texture.
       GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
-      GLES20.glUniform1i(depthTextureUniform, 1);
+      GlStateCache.uniform1i(depthTextureUniform, 1);
 
       // Set the depth texture uv transform.
-      GLES20.glUniformMatrix3fv(depthUvTransformUniform, 1, false, uvTransform, 0);
-      GLES20.glUniform1f(depthAspectRatioUniform, depthAspectRatio);
+      GlStateCache.uniformMatrix3fv(depthUvTransformUniform, uvTransform, 0);
+      GlStateCache.uniform1f(depthAspectRatioUniform, depthAspectRatio);
     }
 
-    // Set the vertex attributes.
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-
-    GLES20.glVertexAttribPointer(
-        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, verticesBaseAddress);
-    GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
-    GLES20.glVertexAttribPointer(
-        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-    // Set the ModelViewProjection matrix in the shader.
-    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    if (instancing) {
+      GlStateCache.uniformMatrix4fv(viewUniform, cameraViewMatrix, 0);
+      GlStateCache.uniformMatrix4fv(viewProjectionUniform, viewProjectionMatrix, 0);
+    }
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glEnableVertexAttribArray(normalAttribute);
-    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+    GlStateCache.enableVertexAttribArray(positionAttribute);
+    GlStateCache.enableVertexAttribArray(normalAttribute);
+    GlStateCache.enableVertexAttribArray(texCoordAttribute);
 
     if (blendMode != null) {
-      GLES20.glEnable(GLES20.GL_BLEND);
+      GlStateCache.setBlendEnabled(true);
       switch (blendMode) {
         case Shadow:
           // Multiplicative blending function for Shadow.
-          GLES20.glDepthMask(false);
-          GLES20.glBlendFunc(GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+          GlStateCache.depthMask(false);
+          GlStateCache.blendFunc(GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
           break;
         case AlphaBlending:
           // Alpha blending function, with the depth mask enabled.
-          GLES20.glDepthMask(true);
+          GlStateCache.depthMask(true);
 
           // Textures are loaded with premultiplied alpha
           // (https://developer.android.com/reference/android/graphics/BitmapFactory.Options#inPremultiplied),
           // so we use the premultiplied alpha blend factors.
-          GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+          GlStateCache.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
           break;
       }
     }
 
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+  }
+
+  /** Restores the state changed by {@link #beginDraw(float[], float[])}. */
+  private void endDraw() {
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
 
     if (blendMode != null) {
-      GLES20.glDisable(GLES20.GL_BLEND);
-      GLES20.glDepthMask(true);
+      GlStateCache.setBlendEnabled(false);
+      GlStateCache.depthMask(true);
     }
 
     // Disable vertex arrays
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glDisableVertexAttribArray(normalAttribute);
-    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    GlStateCache.disableVertexAttribArray(positionAttribute);
+    GlStateCache.disableVertexAttribArray(normalAttribute);
+    GlStateCache.disableVertexAttribArray(texCoordAttribute);
 
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+  }
 
-    ShaderUtil.checkGLError(TAG, "After draw");
+  /**
+   * Points the vertex attributes at a mesh chunk. Each chunk has its own attribute offsets, since
+   * its indices are relative to its first vertex.
+   */
+  private void setChunkAttributes(int chunk) {
+    int vertexOffset = chunkVertexOffsets[chunk];
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES20.glVertexAttribPointer(
+        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, MeshData.BYTES_PER_VERTEX,
+        vertexOffset + MeshData.POSITION_OFFSET);
+    GLES20.glVertexAttribPointer(
+        normalAttribute, NORMAL_COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+        MeshData.BYTES_PER_VERTEX, vertexOffset + MeshData.NORMAL_OFFSET);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute, TEX_COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+        MeshData.BYTES_PER_VERTEX, vertexOffset + MeshData.TEX_COORD_OFFSET);
+  }
+
+  /** Sets the matrices and color of one instance, for programs compiled without instancing. */
+  private void setInstanceUniforms(
+      float[] modelMatrices, int matrixOffset, float[] objColors, int colorOffset) {
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraViewMatrix, 0, modelMatrices, matrixOffset);
+    Matrix.multiplyMM(
+        modelViewProjectionMatrix, 0, viewProjectionMatrix, 0, modelMatrices, matrixOffset);
+    GlStateCache.uniformMatrix4fv(modelViewUniform, modelViewMatrix, 0);
+    GlStateCache.uniformMatrix4fv(modelViewProjectionUniform, modelViewProjectionMatrix, 0);
+    GlStateCache.uniform4fv(colorUniform, objColors, colorOffset);
+  }
+
+  /** Copies the instance matrices and colors into the instance buffer. */
+  private void uploadInstances(float[] modelMatrices, float[] objColors, int count) {
+    int floats = count * FLOATS_PER_INSTANCE;
+    if (instanceData.capacity() < floats) {
+      int capacity = Math.max(floats, instanceData.capacity() * 2);
+      instanceData =
+          ByteBuffer.allocateDirect(capacity * BYTES_PER_FLOAT)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+    }
+    instanceData.clear();
+    for (int i = 0; i < count; ++i) {
+      instanceData.put(modelMatrices, i * 16, 16);
+      if (objColors == null) {
+        instanceData.put(DEFAULT_COLOR, 0, 4);
+      } else {
+        instanceData.put(objColors, i * 4, 4);
+      }
+    }
+    instanceData.flip();
+
+    if (instanceBufferId == 0) {
+      int[] buffers = new int[1];
+      GLES20.glGenBuffers(1, buffers, 0);
+      instanceBufferId = buffers[0];
+    }
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBufferId);
+    int bytes = floats * BYTES_PER_FLOAT;
+    if (bytes > instanceBufferCapacityBytes) {
+      instanceBufferCapacityBytes = Math.max(bytes, instanceBufferCapacityBytes * 2);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, instanceBufferCapacityBytes, null, GLES20.GL_STREAM_DRAW);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, bytes, instanceData);
   }
 
   private static void normalizeVec3(float[] v) {
@@ -31,12 +31,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 
 /** Renders the detected AR planes. */
@@ -100,10 +98,36 @@ public class PlaneRenderer {
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
-  private final float[] planeAngleUvMatrix =
-      new float[4]; // 2x2 rotation matrix applied to uv coords.
+  private final float[] cameraView = new float[16];
+  private final float[] planeNormal = new float[3];
+
+  /** Triangulated boundary of a plane, kept in GPU buffers until the polygon or extents change. */
+  private static final class PlaneMesh {
+    final float[] planeAngleUvMatrix = new float[4]; // 2x2 rotation matrix applied to uv coords.
+    int vertexBufferId;
+    int indexBufferId;
+    int vertexCapacityBytes;
+    int indexCapacityBytes;
+    int indexCount;
+    // The inputs the mesh was built from, compared every frame to detect changes.
+    float[] polygon = new float[0];
+    int polygonLength = -1;
+    float extentX;
+    float extentZ;
+    // Value of drawFrame when the plane was last seen alive, used to release removed planes.
+    long lastSeenFrame;
+  }
+
+  private final Map<Plane, PlaneMesh> planeMeshes = new HashMap<>();
+  // Number of planes seen so far. Each plane gets its own grid angle from this index.
+  private int planeCount = 0;
+  private long drawFrame = 0;
 
-  private final Map<Plane, Integer> planeIndexMap = new HashMap<>();
+  // Reusable arrays for sorting the visible planes by distance, without per-frame allocations.
+  private Plane[] sortPlanes = new Plane[16];
+  private Pose[] sortPoses = new Pose[16];
+  private float[] sortDistances = new float[16];
+  private int[] sortOrder = new int[16];
 
   public PlaneRenderer() {}
 
@@ -115,16 +139,9 @@ public class PlaneRenderer {
    * @param gridDistanceTextureName Name of the PNG file containing the grid texture.
    */
   public void createOnGlThread(Context context, String gridDistanceTextureName) throws IOException {
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int passthroughShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    planeProgram = GLES20.glCreateProgram();
-    GLES20.glAttachShader(planeProgram, vertexShader);
-    GLES20.glAttachShader(planeProgram, passthroughShader);
-    GLES20.glLinkProgram(planeProgram);
-    GLES20.glUseProgram(planeProgram);
+    planeProgram =
+        ShaderProgramCache.createProgram(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    GlStateCache.useProgram(planeProgram);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
@@ -156,12 +173,74 @@ public class PlaneRenderer {
     planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    // Buffers of a previous context are gone, the meshes are rebuilt on the next draw.
+    planeMeshes.clear();
+  }
+
+  /** Rebuilds the mesh of a plane if its polygon or extents changed since it was last built. */
+  private void updatePlaneMesh(PlaneMesh mesh, float extentX, float extentZ, FloatBuffer boundary) {
+    int polygonLength = boundary == null ? 0 : boundary.limit();
+    boolean changed =
+        polygonLength != mesh.polygonLength || extentX != mesh.extentX || extentZ != mesh.extentZ;
+    if (!changed && boundary != null) {
+      for (int i = 0; i < polygonLength; ++i) {
+        if (boundary.get(i) != mesh.polygon[i]) {
+          changed = true;
+          break;
+        }
+      }
+    }
+    if (!changed) {
+      return;
+    }
+
+    if (mesh.polygon.length < polygonLength) {
+      mesh.polygon = new float[polygonLength];
+    }
+    if (boundary != null) {
+      boundary.rewind();
+      boundary.get(mesh.polygon, 0, polygonLength);
+    }
+    mesh.polygonLength = polygonLength;
+    mesh.extentX = extentX;
+    mesh.extentZ = extentZ;
+
+    triangulatePlane(extentX, extentZ, boundary);
+    mesh.indexCount = indexBuffer.limit();
+    if (mesh.indexCount == 0) {
+      return;
+    }
+
+    if (mesh.vertexBufferId == 0) {
+      int[] buffers = new int[2];
+      GLES20.glGenBuffers(2, buffers, 0);
+      mesh.vertexBufferId = buffers[0];
+      mesh.indexBufferId = buffers[1];
+    }
+    int vertexBytes = vertexBuffer.limit() * BYTES_PER_FLOAT;
+    int indexBytes = indexBuffer.limit() * BYTES_PER_SHORT;
+    vertexBuffer.rewind();
+    indexBuffer.rewind();
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferId);
+    if (vertexBytes > mesh.vertexCapacityBytes) {
+      // Plane polygons grow while scanning, so leave room for more boundary vertices.
+      mesh.vertexCapacityBytes = Math.max(vertexBytes, mesh.vertexCapacityBytes * 2);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, mesh.vertexCapacityBytes, null, GLES20.GL_DYNAMIC_DRAW);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, vertexBytes, vertexBuffer);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferId);
+    if (indexBytes > mesh.indexCapacityBytes) {
+      mesh.indexCapacityBytes = Math.max(indexBytes, mesh.indexCapacityBytes * 2);
+      GLES20.glBufferData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexCapacityBytes, null, GLES20.GL_DYNAMIC_DRAW);
+    }
+    GLES20.glBufferSubData(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0, indexBytes, indexBuffer);
   }
 
-  /** Updates the plane model transform matrix and extents. */
-  private void updatePlaneParameters(
-      float[] planeMatrix, float extentX, float extentZ, FloatBuffer boundary) {
-    System.arraycopy(planeMatrix, 0, modelMatrix, 0, 16);
+  /** Fills the scratch vertex and index buffers with the triangulated plane boundary. */
+  private void triangulatePlane(float extentX, float extentZ, FloatBuffer boundary) {
     if (boundary == null) {
       vertexBuffer.limit(0);
       indexBuffer.limit(0);
@@ -244,44 +323,33 @@ public class PlaneRenderer {
     }
   }
 
-  private void draw(float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
+  private void draw(
+      PlaneMesh mesh, float[] cameraView, float[] cameraPerspective, float[] planeNormal) {
     // Build the ModelView and ModelViewProjection matrices
     // for calculating cube position and light.
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
     // Set the position of the plane
-    vertexBuffer.rewind();
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, mesh.vertexBufferId);
     GLES20.glVertexAttribPointer(
         planeXZPositionAlphaAttribute,
         COORDS_PER_VERTEX,
         GLES20.GL_FLOAT,
         false,
         BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+        0);
 
     // Set the Model and ModelViewProjection matrices in the shader.
-    GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
-    GLES20.glUniform3f(planeNormalUniform, planeNormal[0], planeNormal[1], planeNormal[2]);
-    GLES20.glUniformMatrix4fv(
-        planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    GlStateCache.uniformMatrix4fv(planeModelUniform, modelMatrix, 0);
+    GlStateCache.uniform3f(planeNormalUniform, planeNormal[0], planeNormal[1], planeNormal[2]);
+    GlStateCache.uniformMatrix4fv(planeModelViewProjectionUniform, modelViewProjectionMatrix, 0);
 
-    indexBuffer.rewind();
-    GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indexBufferId);
+    GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, mesh.indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
-  static class SortablePlane {
-    final float distance;
-    final Plane plane;
-
-    SortablePlane(float distance, Plane plane) {
-      this.distance = distance;
-      this.plane = plane;
-    }
-  }
-
   /**
    * Draws the collection of tracked planes, with closer planes hiding more distant ones.
    *
@@ -291,98 +359,158 @@ public class PlaneRenderer {
    *     Camera#getProjectionMatrix(float[], int, float, float)}
    */
   public void drawPlanes(Collection<Plane> allPlanes, Pose cameraPose, float[] cameraPerspective) {
+    ++drawFrame;
+
     // Planes must be sorted by distance from camera so that we draw closer planes first, and
     // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
-
+    int sortedCount = 0;
     for (Plane plane : allPlanes) {
-      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+      if (plane.getTrackingState() == TrackingState.STOPPED || plane.getSubsumedBy() != null) {
+        continue;
+      }
+      // Paused planes keep their mesh, since they usually resume tracking.
+      PlaneMesh mesh = planeMeshes.get(plane);
+      if (mesh != null) {
+        mesh.lastSeenFrame = drawFrame;
+      }
+      if (plane.getTrackingState() != TrackingState.TRACKING) {
         continue;
       }
 
-      float distance = calculateDistanceToPlane(plane.getCenterPose(), cameraPose);
+      Pose centerPose = plane.getCenterPose();
+      float distance = distanceToPlane(centerPose, cameraPose);
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      if (sortedCount == sortPlanes.length) {
+        int capacity = sortedCount * 2;
+        sortPlanes = Arrays.copyOf(sortPlanes, capacity);
+        sortPoses = Arrays.copyOf(sortPoses, capacity);
+        sortDistances = Arrays.copyOf(sortDistances, capacity);
+        sortOrder = Arrays.copyOf(sortOrder, capacity);
+      }
+      sortPlanes[sortedCount] = plane;
+      sortPoses[sortedCount] = centerPose;
+      sortDistances[sortedCount] = distance;
+      sortOrder[sortedCount] = sortedCount;
+      ++sortedCount;
+    }
+    // Insertion sort, farthest plane first. The order barely changes between frames, so this is
+    // close to linear.
+    for (int i = 1; i < sortedCount; ++i) {
+      int index = sortOrder[i];
+      float distance = sortDistances[index];
+      int j = i - 1;
+      while (j >= 0 && sortDistances[sortOrder[j]] < distance) {
+        sortOrder[j + 1] = sortOrder[j];
+        --j;
+      }
+      sortOrder[j + 1] = index;
     }
-    Collections.sort(
-        sortedPlanes,
-        new Comparator<SortablePlane>() {
-          @Override
-          public int compare(SortablePlane a, SortablePlane b) {
-            return Float.compare(b.distance, a.distance);
-          }
-        });
-
-    float[] cameraView = new float[16];
+    releaseRemovedPlanes();
+
     cameraPose.inverse().toMatrix(cameraView, 0);
 
     // Disable depth write.
-    GLES20.glDepthMask(false);
+    GlStateCache.depthMask(false);
 
     // Normal alpha blending with premultiplied alpha.
-    GLES20.glEnable(GLES20.GL_BLEND);
-    GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    GlStateCache.setBlendEnabled(true);
+    GlStateCache.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
 
     // Set up the shader.
-    GLES20.glUseProgram(planeProgram);
+    GlStateCache.useProgram(planeProgram);
 
     // Attach the texture.
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-    GLES20.glUniform1i(textureUniform, 0);
+    GlStateCache.uniform1i(textureUniform, 0);
 
     // Shared fragment uniforms.
-    GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
+    GlStateCache.uniform4fv(gridControlUniform, GRID_CONTROL, 0);
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+    GlStateCache.enableVertexAttribArray(planeXZPositionAlphaAttribute);
 
     ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
-      float[] planeMatrix = new float[16];
-      plane.getCenterPose().toMatrix(planeMatrix, 0);
+    for (int i = 0; i < sortedCount; ++i) {
+      int index = sortOrder[i];
+      Plane plane = sortPlanes[index];
+      Pose centerPose = sortPoses[index];
+      // Drop the references, so removed planes are not kept alive by the scratch arrays.
+      sortPlanes[index] = null;
+      sortPoses[index] = null;
 
-      float[] normal = new float[3];
+      centerPose.toMatrix(modelMatrix, 0);
       // Get transformed Y axis of plane's coordinate system.
-      plane.getCenterPose().getTransformedAxis(1, 1.0f, normal, 0);
-
-      updatePlaneParameters(
-          planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+      centerPose.getTransformedAxis(1, 1.0f, planeNormal, 0);
 
-      // Get plane index. Keep a map to assign same indices to same planes.
-      Integer planeIndex = planeIndexMap.get(plane);
-      if (planeIndex == null) {
-        planeIndex = planeIndexMap.size();
-        planeIndexMap.put(plane, planeIndex);
+      PlaneMesh mesh = planeMeshes.get(plane);
+      if (mesh == null) {
+        mesh = createPlaneMesh(planeCount++);
+        mesh.lastSeenFrame = drawFrame;
+        planeMeshes.put(plane, mesh);
       }
+      updatePlaneMesh(mesh, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+      if (mesh.indexCount == 0) {
+        continue;
+      }
+
+      GlStateCache.uniformMatrix2fv(planeUvMatrixUniform, mesh.planeAngleUvMatrix, 0);
 
-      // Each plane will have its own angle offset from others, to make them easier to
-      // distinguish. Compute a 2x2 rotation matrix from the angle.
-      float angleRadians = planeIndex * 0.144f;
-      float uScale = DOTS_PER_METER;
-      float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
-      planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
-      planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
-      planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
-      planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
-      GLES20.glUniformMatrix2fv(planeUvMatrixUniform, 1, false, planeAngleUvMatrix, 0);
-
-      draw(cameraView, cameraPerspective, normal);
+      draw(mesh, cameraView, cameraPerspective, planeNormal);
     }
 
     // Clean up the state we set
-    GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
+    GlStateCache.disableVertexAttribArray(planeXZPositionAlphaAttribute);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-    GLES20.glDisable(GLES20.GL_BLEND);
-    GLES20.glDepthMask(true);
+    GlStateCache.setBlendEnabled(false);
+    GlStateCache.depthMask(true);
 
     ShaderUtil.checkGLError(TAG, "Cleaning up after drawing planes");
   }
 
+  private static PlaneMesh createPlaneMesh(int planeIndex) {
+    PlaneMesh mesh = new PlaneMesh();
+    // Each plane will have its own angle offset from others, to make them easier to
+    // distinguish. Compute a 2x2 rotation matrix from the angle.
+    float angleRadians = planeIndex * 0.144f;
+    float uScale = DOTS_PER_METER;
+    float vScale = DOTS_PER_METER * EQUILATERAL_TRIANGLE_SCALE;
+    mesh.planeAngleUvMatrix[0] = +(float) Math.cos(angleRadians) * uScale;
+    mesh.planeAngleUvMatrix[1] = -(float) Math.sin(angleRadians) * vScale;
+    mesh.planeAngleUvMatrix[2] = +(float) Math.sin(angleRadians) * uScale;
+    mesh.planeAngleUvMatrix[3] = +(float) Math.cos(angleRadians) * vScale;
+    return mesh;
+  }
+
+  /** Deletes the buffers of planes that stopped tracking, were subsumed or disappeared. */
+  private void releaseRemovedPlanes() {
+    Iterator<PlaneMesh> iterator = planeMeshes.values().iterator();
+    while (iterator.hasNext()) {
+      PlaneMesh mesh = iterator.next();
+      if (mesh.lastSeenFrame == drawFrame) {
+        continue;
+      }
+      if (mesh.vertexBufferId != 0) {
+        GlStateCache.deleteBuffer(mesh.vertexBufferId);
+        GlStateCache.deleteBuffer(mesh.indexBufferId);
+      }
+      iterator.remove();
+    }
+  }
+
+  /** Same as {@link #calculateDistanceToPlane(Pose, Pose)}, without allocating. */
+  private float distanceToPlane(Pose planePose, Pose cameraPose) {
+    planePose.getTransformedAxis(1, 1.0f, planeNormal, 0);
+    return (cameraPose.tx() - planePose.tx()) * planeNormal[0]
+        + (cameraPose.ty() - planePose.ty()) * planeNormal[1]
+        + (cameraPose.tz() - planePose.tz()) * planeNormal[2];
+  }
+
   // Calculate the normal distance to plane from cameraPose, the given planePose should have y axis
   // parallel to plane's normal, for example plane's center pose or hit test pose.
   public static float calculateDistanceToPlane(Pose planePose, Pose cameraPose) {
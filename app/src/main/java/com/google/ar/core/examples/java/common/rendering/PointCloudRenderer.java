@@ -64,24 +64,17 @@ public class PointCloudRenderer {
     int[] buffers = new int[1];
     GLES20.glGenBuffers(1, buffers, 0);
     vbo = buffers[0];
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
 
     vboSize = INITIAL_BUFFER_POINTS * BYTES_PER_POINT;
     GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "buffer alloc");
 
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int passthroughShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    programName = GLES20.glCreateProgram();
-    GLES20.glAttachShader(programName, vertexShader);
-    GLES20.glAttachShader(programName, passthroughShader);
-    GLES20.glLinkProgram(programName);
-    GLES20.glUseProgram(programName);
+    programName =
+        ShaderProgramCache.createProgram(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    GlStateCache.useProgram(programName);
 
     ShaderUtil.checkGLError(TAG, "program");
 
@@ -104,7 +97,7 @@ public class PointCloudRenderer {
     }
     ShaderUtil.checkGLError(TAG, "before update");
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     lastTimestamp = cloud.getTimestamp();
 
     // If the VBO is not large enough to fit the new point cloud, resize it.
@@ -117,7 +110,7 @@ public class PointCloudRenderer {
     }
     GLES20.glBufferSubData(
         GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, cloud.getPoints());
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "after update");
   }
@@ -136,17 +129,17 @@ public class PointCloudRenderer {
 
     ShaderUtil.checkGLError(TAG, "Before draw");
 
-    GLES20.glUseProgram(programName);
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GlStateCache.useProgram(programName);
+    GlStateCache.enableVertexAttribArray(positionAttribute);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
-    GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
-    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
-    GLES20.glUniform1f(pointSizeUniform, 5.0f);
+    GlStateCache.uniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
+    GlStateCache.uniformMatrix4fv(modelViewProjectionUniform, modelViewProjection, 0);
+    GlStateCache.uniform1f(pointSizeUniform, 5.0f);
 
     GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.disableVertexAttribArray(positionAttribute);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "Draw");
   }
@@ -0,0 +1,262 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Creates linked shader programs, reusing the program binaries stored by previous launches.
+ *
+ * <p>Each program is keyed by a hash of its preprocessed vertex and fragment sources, including
+ * the prepended #define values. On OpenGL ES 3 contexts the linked binary is retrieved with {@code
+ * glGetProgramBinary} and written to the code cache directory, which Android clears when the app
+ * is updated. The next launch loads the binary with {@code glProgramBinary} instead of compiling.
+ *
+ * <p>Every binary file records the driver it was produced by. Binaries of another driver, and
+ * binaries the driver rejects, are deleted and the program is compiled from source. On OpenGL ES
+ * 2 contexts programs are always compiled, since {@code GL_OES_get_program_binary} is not
+ * exposed by the Android Java bindings.
+ *
+ * <p>All methods must be called on the OpenGL thread.
+ */
+public final class ShaderProgramCache {
+  private static final String TAG = ShaderProgramCache.class.getSimpleName();
+
+  private static final String CACHE_DIRECTORY = "shader_programs";
+  private static final int FILE_MAGIC = 0x53505243; // "SPRC"
+  private static final int FILE_VERSION = 1;
+
+  private static int cacheHits;
+  private static int cacheMisses;
+
+  /** Creates a program from two shader assets without additional #define values. */
+  public static int createProgram(
+      String tag, Context context, String vertexFilename, String fragmentFilename)
+      throws IOException {
+    Map<String, Integer> noDefines = Collections.emptyMap();
+    return createProgram(tag, context, vertexFilename, noDefines, fragmentFilename, noDefines);
+  }
+
+  /**
+   * Creates a linked program from two shader assets.
+   *
+   * @param vertexDefines The #define values to add to the top of the vertex shader source code.
+   * @param fragmentDefines The #define values to add to the top of the fragment shader source
+   *     code.
+   * @return The program name.
+   */
+  public static int createProgram(
+      String tag,
+      Context context,
+      String vertexFilename,
+      Map<String, Integer> vertexDefines,
+      String fragmentFilename,
+      Map<String, Integer> fragmentDefines)
+      throws IOException {
+    String vertexCode =
+        ShaderUtil.applyDefines(ShaderUtil.getPreprocessedSource(context, vertexFilename),
+            vertexDefines);
+    String fragmentCode =
+        ShaderUtil.applyDefines(ShaderUtil.getPreprocessedSource(context, fragmentFilename),
+            fragmentDefines);
+
+    boolean binariesSupported = areProgramBinariesSupported();
+    File file = null;
+    String driver = null;
+    if (binariesSupported) {
+      driver = getDriverFingerprint();
+      file = new File(new File(context.getCodeCacheDir(), CACHE_DIRECTORY),
+          hash(vertexCode, fragmentCode) + ".bin");
+      int program = loadProgramBinary(file, driver);
+      if (program != 0) {
+        ++cacheHits;
+        return program;
+      }
+    }
+    ++cacheMisses;
+
+    int vertexShader = ShaderUtil.compileShader(tag, GLES20.GL_VERTEX_SHADER, vertexCode);
+    int fragmentShader = ShaderUtil.compileShader(tag, GLES20.GL_FRAGMENT_SHADER, fragmentCode);
+    int program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    if (binariesSupported) {
+      GLES30.glProgramParameteri(
+          program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+    GLES20.glLinkProgram(program);
+    // The shaders are only flagged for deletion, and released together with the program.
+    GLES20.glDeleteShader(vertexShader);
+    GLES20.glDeleteShader(fragmentShader);
+
+    final int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] == 0) {
+      Log.e(tag, "Error linking program: " + GLES20.glGetProgramInfoLog(program));
+      GLES20.glDeleteProgram(program);
+      throw new RuntimeException("Error linking program.");
+    }
+
+    if (binariesSupported) {
+      storeProgramBinary(program, file, driver);
+    }
+    return program;
+  }
+
+  /** Number of programs loaded from stored binaries since the app started. */
+  public static int getCacheHits() {
+    return cacheHits;
+  }
+
+  /** Number of programs compiled from source since the app started. */
+  public static int getCacheMisses() {
+    return cacheMisses;
+  }
+
+  /** Returns a linked program created from the binary file, or 0 if it cannot be used. */
+  private static int loadProgramBinary(File file, String driver) {
+    if (!file.exists()) {
+      return 0;
+    }
+    int format;
+    ByteBuffer binary;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != FILE_MAGIC
+          || in.readInt() != FILE_VERSION
+          || !in.readUTF().equals(driver)) {
+        Log.i(TAG, "Discarding program binary of another driver: " + file.getName());
+        deleteFile(file);
+        return 0;
+      }
+      format = in.readInt();
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+      binary.put(bytes).position(0);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read program binary " + file.getName(), e);
+      deleteFile(file);
+      return 0;
+    }
+
+    int program = GLES20.glCreateProgram();
+    GLES30.glProgramBinary(program, format, binary, binary.capacity());
+    final int[] linkStatus = new int[1];
+    GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    if (linkStatus[0] == 0) {
+      // Drivers may reject binaries at any time, for example after an update that kept the
+      // version string.
+      Log.i(TAG, "Driver rejected program binary " + file.getName());
+      GLES20.glDeleteProgram(program);
+      deleteFile(file);
+      // glProgramBinary reports rejected binaries through GL_INVALID_ENUM or GL_INVALID_VALUE on
+      // some drivers; drain them so they are not attributed to the next renderer.
+      while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {}
+      return 0;
+    }
+    return program;
+  }
+
+  private static void storeProgramBinary(int program, File file, String driver) {
+    final int[] value = new int[1];
+    GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, value, 0);
+    if (value[0] <= 0) {
+      return;
+    }
+    ByteBuffer binary = ByteBuffer.allocateDirect(value[0]).order(ByteOrder.nativeOrder());
+    final int[] length = new int[1];
+    final int[] format = new int[1];
+    GLES30.glGetProgramBinary(program, value[0], length, 0, format, 0, binary);
+    if (length[0] <= 0) {
+      return;
+    }
+    byte[] bytes = new byte[length[0]];
+    binary.get(bytes);
+
+    // Write to a temporary file first, so that an interrupted write never leaves a truncated
+    // binary behind.
+    File directory = file.getParentFile();
+    File temporary = new File(directory, file.getName() + ".tmp");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Failed to create " + directory);
+      return;
+    }
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_VERSION);
+      out.writeUTF(driver);
+      out.writeInt(format[0]);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write program binary " + file.getName(), e);
+      deleteFile(temporary);
+      return;
+    }
+    if (!temporary.renameTo(file)) {
+      Log.w(TAG, "Failed to store program binary " + file.getName());
+      deleteFile(temporary);
+    }
+  }
+
+  private static boolean areProgramBinariesSupported() {
+    if (!ShaderUtil.isGlEs3Context()) {
+      return false;
+    }
+    final int[] formats = new int[1];
+    GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+    return formats[0] > 0;
+  }
+
+  /** Identifies the driver, binaries are only valid for the driver that produced them. */
+  private static String getDriverFingerprint() {
+    return GLES20.glGetString(GLES20.GL_VENDOR)
+        + '|'
+        + GLES20.glGetString(GLES20.GL_RENDERER)
+        + '|'
+        + GLES20.glGetString(GLES20.GL_VERSION)
+        + '|'
+        + Build.FINGERPRINT;
+  }
+
+  private static String hash(String vertexCode, String fragmentCode) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("SHA-256 is always available", e);
+    }
+    digest.update(vertexCode.getBytes(StandardCharsets.UTF_8));
+    // Separates the two sources, so that moving text between them changes the hash.
+    digest.update((byte) 0);
+    digest.update(fragmentCode.getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static void deleteFile(File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete " + file);
+    }
+  }
+
+  private ShaderProgramCache() {}
+}
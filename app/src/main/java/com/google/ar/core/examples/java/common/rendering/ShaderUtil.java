@@ -22,11 +22,52 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 /** Shader helper functions. */
 public final class ShaderUtil {
+  /** Controls how often {@link #checkGLError(String, String)} actually queries OpenGL. */
+  public enum GlErrorCheck {
+    /** Every call checks for errors. Each check stalls the pipeline until the GPU caught up. */
+    ALWAYS,
+    /** Only calls made during one frame out of every sample interval check for errors. */
+    SAMPLED,
+    /** Error checks are skipped entirely. */
+    OFF
+  }
+
+  private static final int DEFAULT_SAMPLE_INTERVAL_FRAMES = 60;
+
+  private static volatile GlErrorCheck glErrorCheck = GlErrorCheck.ALWAYS;
+  private static volatile int sampleIntervalFrames = DEFAULT_SAMPLE_INTERVAL_FRAMES;
+  private static long frameIndex = 0;
+
+  // Shader sources with resolved #include directives, keyed by asset file name.
+  private static final Map<String, String> preprocessedSources = new HashMap<>();
+
+  /**
+   * Selects how {@link #checkGLError(String, String)} behaves. {@link GlErrorCheck#SAMPLED} relies
+   * on {@link #onFrameStart()} being called once per frame.
+   *
+   * @param sampleIntervalFrames The number of frames between two checked frames, used by {@link
+   *     GlErrorCheck#SAMPLED}.
+   */
+  public static void setGlErrorCheck(GlErrorCheck mode, int sampleIntervalFrames) {
+    glErrorCheck = mode;
+    ShaderUtil.sampleIntervalFrames = Math.max(1, sampleIntervalFrames);
+  }
+
+  public static void setGlErrorCheck(GlErrorCheck mode) {
+    setGlErrorCheck(mode, DEFAULT_SAMPLE_INTERVAL_FRAMES);
+  }
+
+  /** Advances the frame counter used by sampled error checking. Call it on the OpenGL thread. */
+  public static void onFrameStart() {
+    ++frameIndex;
+  }
+
   /**
    * Converts a raw text file, saved as a resource, into an OpenGL ES shader.
    *
@@ -38,17 +79,13 @@ public final class ShaderUtil {
   public static int loadGLShader(
       String tag, Context context, int type, String filename, Map<String, Integer> defineValuesMap)
       throws IOException {
-    // Load shader source code.
-    String code = readShaderFileFromAssets(context, filename);
-
-    // Prepend any #define values specified during this run.
-    String defines = "";
-    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
-      defines += "#define " + entry.getKey() + " " + entry.getValue() + "\n";
-    }
-    code = defines + code;
+    // Load shader source code, and prepend any #define values specified during this run.
+    String code = applyDefines(getPreprocessedSource(context, filename), defineValuesMap);
+    return compileShader(tag, type, code);
+  }
 
-    // Compiles shader code.
+  /** Compiles shader source code, throws if the compilation fails. */
+  static int compileShader(String tag, int type, String code) {
     int shader = GLES20.glCreateShader(type);
     GLES20.glShaderSource(shader, code);
     GLES20.glCompileShader(shader);
@@ -81,10 +118,18 @@ public final class ShaderUtil {
   /**
    * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
    *
+   * <p>Depending on {@link #setGlErrorCheck(GlErrorCheck, int)} the check may be skipped. Errors
+   * raised while checks are skipped stay queued and are reported by the next check that runs.
+   *
    * @param label Label to report in case of error.
    * @throws RuntimeException If an OpenGL error is detected.
    */
   public static void checkGLError(String tag, String label) {
+    GlErrorCheck mode = glErrorCheck;
+    if (mode == GlErrorCheck.OFF
+        || (mode == GlErrorCheck.SAMPLED && frameIndex % sampleIntervalFrames != 0)) {
+      return;
+    }
     int lastError = GLES20.GL_NO_ERROR;
     // Drain the queue of all errors.
     int error;
@@ -97,6 +142,40 @@ public final class ShaderUtil {
     }
   }
 
+  /**
+   * Returns whether the current context is OpenGL ES 3.0 or newer, so that the {@code GLES30}
+   * entry points may be used. Must be called on the OpenGL thread.
+   */
+  static boolean isGlEs3Context() {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    return version != null && !version.startsWith("OpenGL ES 2.");
+  }
+
+  /** Prepends a #define line for every entry of the map to the shader source code. */
+  static String applyDefines(String code, Map<String, Integer> defineValuesMap) {
+    StringBuilder defines = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
+      defines.append("#define ").append(entry.getKey()).append(' ').append(entry.getValue());
+      defines.append('\n');
+    }
+    return defines.append(code).toString();
+  }
+
+  /**
+   * Returns the source of a shader asset with its #include directives resolved. Assets cannot
+   * change while the app runs, so the result is cached in memory and shared by all renderers.
+   */
+  static String getPreprocessedSource(Context context, String filename) throws IOException {
+    synchronized (preprocessedSources) {
+      String code = preprocessedSources.get(filename);
+      if (code == null) {
+        code = readShaderFileFromAssets(context, filename);
+        preprocessedSources.put(filename, code);
+      }
+      return code;
+    }
+  }
+
   /**
    * Converts a raw shader file into a string.
    *
@@ -117,7 +196,7 @@ public final class ShaderUtil {
           if (includeFilename.equals(filename)) {
             throw new IOException("Do not include the calling file.");
           }
-          sb.append(readShaderFileFromAssets(context, includeFilename));
+          sb.append(getPreprocessedSource(context, includeFilename));
         } else {
           sb.append(line).append("\n");
         }
@@ -0,0 +1,168 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.Session;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares a small number of ARCore anchors between the depth frames of a scan.
+ *
+ * <p>Frames captured within {@link #GROUP_RADIUS_METERS} of an existing anchor join its {@link
+ * Group}, up to {@link #MAX_FRAMES_PER_GROUP} frames, and store their pose relative to the anchor.
+ * ARCore then tracks one anchor per group instead of one per frame. The pose of every anchor is
+ * read once per frame by {@link #update()}, and the model matrices of the frames are only
+ * recomputed when ARCore actually moved their anchor, see {@link Group#getVersion()}.
+ *
+ * <p>A group whose anchor did not move and which did not receive frames for {@link
+ * #STABLE_UPDATES} updates is stable, and the renderer bakes its points into a single world space
+ * buffer, a few frames per draw, drawn in one batch until the anchor moves again.
+ *
+ * <p>The pool has a single user, the OpenGL thread, see {@link ScanSession#getAnchors()}.
+ */
+final class AnchorPool {
+  static final float GROUP_RADIUS_METERS = 1.0f;
+  static final int MAX_FRAMES_PER_GROUP = 32;
+  static final int STABLE_UPDATES = 60;
+
+  // Largest change of a matrix element, in meters for the translation, that is not considered a
+  // move. Smaller corrections accumulate until they exceed it.
+  private static final float POSE_EPSILON = 1e-3f;
+
+  /** Frames sharing an anchor. */
+  static final class Group {
+    final Anchor anchor;
+    /** The pose of the anchor as of the last move, as a column-major matrix. */
+    final float[] anchorMatrix = new float[16];
+    final List<DepthData> frames = new ArrayList<>();
+    private int version;
+    private int lastChangeUpdate;
+
+    // Baked world space points of the first bakedFrames frames, owned by the renderer.
+    int vbo;
+    int vboCapacityBytes;
+    int bakedFrames;
+    int bakedPoints;
+    int bakedVersion = -1;
+    /** World space bounds of the baked points: min X, Y, Z, then max X, Y, Z. */
+    final float[] bakedBounds = new float[6];
+
+    private Group(Anchor anchor, int update) {
+      this.anchor = anchor;
+      anchor.getPose().toMatrix(anchorMatrix, 0);
+      lastChangeUpdate = update;
+    }
+
+    /** Incremented every time {@link #anchorMatrix} changes. */
+    int getVersion() {
+      return version;
+    }
+
+    /** Returns whether the baked buffer holds the points of the current anchor pose. */
+    boolean isBakeCurrent() {
+      return vbo != 0 && bakedVersion == version;
+    }
+  }
+
+  private final ArrayList<Group> groups = new ArrayList<>();
+  private final float[] scratch = new float[16];
+  private int updateCount;
+
+  /**
+   * Returns the group a frame captured from the camera pose belongs to, creating a new anchor at
+   * the camera pose when no group is close enough.
+   *
+   * @param relativeMatrix Receives the camera pose relative to the anchor of the group.
+   */
+  Group acquire(Session session, Pose cameraPose, float[] relativeMatrix) {
+    Group nearest = null;
+    float nearestDistanceSquared = GROUP_RADIUS_METERS * GROUP_RADIUS_METERS;
+    for (Group group : groups) {
+      if (group.frames.size() >= MAX_FRAMES_PER_GROUP
+          || group.anchor.getTrackingState() != TrackingState.TRACKING) {
+        continue;
+      }
+      float dx = cameraPose.tx() - group.anchorMatrix[12];
+      float dy = cameraPose.ty() - group.anchorMatrix[13];
+      float dz = cameraPose.tz() - group.anchorMatrix[14];
+      float distanceSquared = dx * dx + dy * dy + dz * dz;
+      if (distanceSquared <= nearestDistanceSquared) {
+        nearest = group;
+        nearestDistanceSquared = distanceSquared;
+      }
+    }
+    if (nearest == null) {
+      nearest = new Group(session.createAnchor(cameraPose), updateCount);
+      groups.add(nearest);
+    }
+    nearest.anchor.getPose().inverse().compose(cameraPose).toMatrix(relativeMatrix, 0);
+    return nearest;
+  }
+
+  /** Adds a frame created by {@link DepthData#create} to its group. */
+  void addFrame(DepthData frame) {
+    Group group = frame.getGroup();
+    group.frames.add(frame);
+    group.lastChangeUpdate = updateCount;
+  }
+
+  /**
+   * Detaches the anchor of a group acquired for a frame that is not added after all, unless other
+   * frames joined the group.
+   */
+  void releaseIfUnused(Group group) {
+    if (group.frames.isEmpty() && groups.remove(group)) {
+      group.anchor.detach();
+    }
+  }
+
+  /**
+   * Reads the current pose of every anchor. Must be called once per frame, after {@code
+   * Session.update()}.
+   */
+  void update() {
+    ++updateCount;
+    for (Group group : groups) {
+      if (group.anchor.getTrackingState() != TrackingState.TRACKING) {
+        // The last pose is kept while the anchor is not tracked.
+        continue;
+      }
+      group.anchor.getPose().toMatrix(scratch, 0);
+      if (hasMoved(group.anchorMatrix, scratch)) {
+        System.arraycopy(scratch, 0, group.anchorMatrix, 0, 16);
+        ++group.version;
+        group.lastChangeUpdate = updateCount;
+      }
+    }
+  }
+
+  private static boolean hasMoved(float[] previous, float[] current) {
+    for (int i = 0; i < 15; ++i) {
+      if (Math.abs(previous[i] - current[i]) > POSE_EPSILON) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns whether the group has frames that are not baked and did not change for a while. */
+  boolean needsBake(Group group) {
+    return updateCount - group.lastChangeUpdate >= STABLE_UPDATES
+        && (group.bakedVersion != group.version || group.bakedFrames < group.frames.size());
+  }
+
+  /** The groups in creation order. */
+  List<Group> getGroups() {
+    return groups;
+  }
+
+  /** Detaches the anchors of all groups. The renderer must release the baked buffers first. */
+  void detachAll() {
+    for (Group group : groups) {
+      group.anchor.detach();
+    }
+    groups.clear();
+  }
+}
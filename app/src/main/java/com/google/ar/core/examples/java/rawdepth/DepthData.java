@@ -17,57 +17,98 @@
 package com.google.ar.core.examples.java.rawdepth;
 
 import android.media.Image;
+import android.opengl.Matrix;
 import android.util.Log;
 
-import com.google.ar.core.Anchor;
 import com.google.ar.core.Frame;
-import static com.google.ar.core.examples.java.rawdepth.Renderer.frameData;
 import com.google.ar.core.Session;
 import com.google.ar.core.exceptions.NotYetAvailableException;
 import java.nio.FloatBuffer;
 
 /**
  * Stores depth data from ARCore as a 3D pointcloud. Points are added by calling the Raw Depth API,
- * and reprojected into 3D space. The points are stored relative to an anchor created with each
- * instance. The color of the points are matched with the latest color image from the same frame.
+ * and reprojected into 3D space. The points are stored relative to the camera pose, which is kept
+ * relative to an anchor shared with nearby frames, see {@link AnchorPool}. The color of the points
+ * are matched with the latest color image from the same frame.
  */
 final class DepthData {
-  private final Renderer renderer = new Renderer();
   /** Buffer of point coordinates and confidence values. */
   private FloatBuffer points;
 
   /** Buffer of point RGB color values. */
   private FloatBuffer colors;
 
-  /** The anchor to the 3D position of the camera at the point of depth acquisition. */
-  private final Anchor anchor;
+  /**
+   * The group whose anchor the camera pose at the point of depth acquisition is relative to, or
+   * null for a frame without points.
+   */
+  private final AnchorPool.Group group;
+
+  /** The camera pose relative to the anchor of the group. */
+  private final float[] relativeMatrix;
+
+  /** The model matrix as of {@link #modelVersion} of the group anchor. */
+  private final float[] modelMatrix = new float[16];
+  private int modelVersion = -1;
 
   /** The timestamp in nanoseconds when the raw depth image was observed. */
   private long timestamp;
 
+  /**
+   * Bounding box of the points in the camera space of the frame, which {@link #relativeMatrix}
+   * relates to the group anchor: min X, Y, Z, then max X, Y, Z.
+   */
+  private final float[] bounds;
+
   private DepthData(
-      FloatBuffer points, FloatBuffer colors, long timestamp, Anchor cameraPoseAnchor) {
+      FloatBuffer points, FloatBuffer colors, float[] bounds, long timestamp,
+      AnchorPool.Group group, float[] relativeMatrix) {
     this.points = points;
     this.colors = colors;
+    this.bounds = bounds;
     this.timestamp = timestamp;
-    this.anchor = cameraPoseAnchor;
+    this.group = group;
+    this.relativeMatrix = relativeMatrix;
   }
 
-  public static DepthData create(Session session, Frame frame) {
+  /**
+   * Converts the raw depth image of the frame into a pointcloud, and appends its world space
+   * points to the store.
+   *
+   * @param maxNumberOfPointsToRender Depth images vary in size depending on device, and can be
+   *     large on devices with a depth camera. To ensure smooth framerate, we cap the number of
+   *     points each frame, see {@link PointBudgetController#getPointsPerFrame()}.
+   * @param scan Provides the anchor of the frame and the filter of the pixels already scanned, and
+   *     receives the points, see {@link ScanSession#getPoints()}.
+   * @return The frame, or null if depth is not available yet or the scan is not running. Only
+   *     frames with points are anchored, since empty frames are not added to the scan.
+   */
+  public static DepthData create(
+      Session session, ScanSession scan, Frame frame, int maxNumberOfPointsToRender) {
+    if (!scan.isRunning()) {
+      return null;
+    }
     try (Image cameraImage = frame.acquireCameraImage();
          Image depthImage = frame.acquireRawDepthImage16Bits();
          Image confidenceImage = frame.acquireRawDepthConfidenceImage()) {
-      // Depth images vary in size depending on device, and can be large on devices with a depth
-      // camera. To ensure smooth framerate, we cap the number of points each frame.
-      final int maxNumberOfPointsToRender = 15000;
-      PointCloudHelper.convertImageToDepthAndColors(cameraImage, depthImage, confidenceImage,
-                                                    frame, maxNumberOfPointsToRender);
-
-      Anchor cameraPoseAnchor = session.createAnchor(frame.getCamera().getPose());
-      return new DepthData(frameData.get(frameData.size()-1).points,
-              frameData.get(frameData.size()-1).colors,
+      FrameData converted =
+          PointCloudHelper.convertImageToDepthAndColors(cameraImage, depthImage, confidenceImage,
+                                                        frame, maxNumberOfPointsToRender,
+                                                        scan.getPoints(),
+                                                        scan.getNoveltyFilter());
+
+      float[] relativeMatrix = null;
+      AnchorPool.Group group = null;
+      if (converted.bounds[0] <= converted.bounds[3]) {
+        relativeMatrix = new float[16];
+        group = scan.getAnchors().acquire(session, frame.getCamera().getPose(), relativeMatrix);
+      }
+      return new DepthData(converted.points,
+              converted.colors,
+              converted.bounds,
               depthImage.getTimestamp(),
-              cameraPoseAnchor);
+              group,
+              relativeMatrix);
     } catch (NotYetAvailableException e) {
       // This normally means that depth data is not available yet. This is normal so we will not
       // spam the logcat with this.
@@ -100,17 +141,66 @@ final class DepthData {
     return colors;
   }
 
-  /** Returns the anchor corresponding to the camera pose where the depth data was acquired. */
-  public Anchor getAnchor() {
-    return anchor;
+  /** Returns the timestamp in nanoseconds when the raw depth image was observed. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** Returns the group whose anchor the frame is relative to, or null if it has no points. */
+  public AnchorPool.Group getGroup() {
+    return group;
+  }
+
+  /** Returns whether the frame has no points, and therefore no valid bounds. */
+  public boolean isEmpty() {
+    return bounds[0] > bounds[3];
+  }
+
+  /**
+   * Returns the distance of the center of the points along the view direction of the camera, in
+   * meters, or 0 if the frame has no points.
+   */
+  public float getSceneDistance() {
+    // The camera looks along the negative Z axis of the camera space of the frame.
+    return isEmpty() ? 0.0f : -(bounds[2] + bounds[5]) / 2;
+  }
+
+  /**
+   * Computes the world space axis aligned bounding box of the points. The box is derived from the
+   * bounds recorded during conversion and the anchor pose, so it follows anchor updates.
+   *
+   * @param modelMatrix The model matrix of this frame, see {@link #getModelMatrix(float[])}.
+   * @param worldBounds Receives min X, Y, Z, then max X, Y, Z.
+   */
+  public void getWorldBounds(float[] modelMatrix, float[] worldBounds) {
+    float[] m = modelMatrix;
+    for (int axis = 0; axis < 3; ++axis) {
+      // Transform the box extents axis by axis, see "Transforming Axis-Aligned Bounding Boxes",
+      // Graphics Gems, 1990.
+      float min = m[12 + axis];
+      float max = m[12 + axis];
+      for (int column = 0; column < 3; ++column) {
+        float a = m[column * 4 + axis] * bounds[column];
+        float b = m[column * 4 + axis] * bounds[column + 3];
+        min += Math.min(a, b);
+        max += Math.max(a, b);
+      }
+      worldBounds[axis] = min;
+      worldBounds[axis + 3] = max;
+    }
   }
 
   /**
    * Retrieves the linearized column-major 4x4 matrix representing the transform from pointcloud to
-   * the session coordinates.
+   * the session coordinates. The matrix is only recomputed after the anchor of the group moved,
+   * see {@link AnchorPool#update()}. Must not be called for a frame without points.
    */
   public void getModelMatrix(float[] modelMatrix) {
-    anchor.getPose().toMatrix(modelMatrix, 0);
+    if (modelVersion != group.getVersion()) {
+      Matrix.multiplyMM(this.modelMatrix, 0, group.anchorMatrix, 0, relativeMatrix, 0);
+      modelVersion = group.getVersion();
+    }
+    System.arraycopy(this.modelMatrix, 0, modelMatrix, 0, 16);
   }
 
 }
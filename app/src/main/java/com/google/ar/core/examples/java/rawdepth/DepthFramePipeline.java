@@ -0,0 +1,149 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.util.Log;
+import io.reactivex.rxjava3.core.BackpressureOverflowStrategy;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.FlowableTransformer;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.functions.Consumer;
+import io.reactivex.rxjava3.functions.Function;
+import io.reactivex.rxjava3.processors.PublishProcessor;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes the converted depth frames to optional processing stages, such as recording or
+ * streaming, as a {@link Flowable} with bounded buffers.
+ *
+ * <p>Conversion and accumulation into the {@link ScanSession} stay on the OpenGL thread, since the
+ * camera images are only valid during the frame and the renderer draws the accumulated points in
+ * the same frame. Every converted frame is then offered to the pipeline as an immutable {@link
+ * FrameSnapshot}. Each {@link Sink} receives the frames through its own buffer of {@link
+ * #SINK_BUFFER_FRAMES} frames and processes them one at a time on its own scheduler. When a sink
+ * falls behind, its oldest buffered frame is dropped, so a slow sink never blocks the OpenGL thread
+ * or the other sinks. Sinks that must see every frame, such as the saved file, are attached with
+ * {@link #addLosslessSink} instead, whose buffer is unbounded. A snapshot only references the
+ * buffers of its frame, which the scan keeps anyway, so a backlog costs little memory. Without
+ * sinks, {@link #publish} returns before allocating anything.
+ */
+final class DepthFramePipeline {
+  private static final String TAG = DepthFramePipeline.class.getSimpleName();
+
+  /** Frames buffered by each sink before the oldest ones are dropped. */
+  static final int SINK_BUFFER_FRAMES = 8;
+
+  /** A converted depth frame together with its pose at capture time. */
+  static final class FrameSnapshot {
+    /** X, Y, Z and confidence per point, in the frame space. Read-only. */
+    final FloatBuffer points;
+    /** Red, green and blue per point, in [0, 1]. Read-only. */
+    final FloatBuffer colors;
+    /** Transform from the frame space to the world space when the frame was captured. */
+    final float[] modelMatrix;
+    /** Timestamp of the raw depth image in nanoseconds. */
+    final long timestampNs;
+
+    FrameSnapshot(FloatBuffer points, FloatBuffer colors, float[] modelMatrix, long timestampNs) {
+      this.points = points;
+      this.colors = colors;
+      this.modelMatrix = modelMatrix;
+      this.timestampNs = timestampNs;
+    }
+
+    int getPointCount() {
+      return points.remaining() / Renderer.POSITION_FLOATS_PER_POINT;
+    }
+  }
+
+  /** A processing stage attached with {@link #addSink}. */
+  static final class Sink {
+    private final PublishProcessor<Boolean> closeSignal;
+    private final Completable done;
+
+    private Sink(PublishProcessor<Boolean> closeSignal, Completable done) {
+      this.closeSignal = closeSignal;
+      this.done = done;
+    }
+
+    /**
+     * Stops sending new frames to the sink. The returned completable completes once the frames
+     * already buffered are processed, or fails with the error of the sink.
+     */
+    Completable close() {
+      closeSignal.onNext(true);
+      return done;
+    }
+  }
+
+  private final PublishProcessor<FrameSnapshot> frames = PublishProcessor.create();
+
+  /**
+   * Offers a frame to the sinks. Frames without points are filtered out here. Must be called on
+   * the OpenGL thread, while the anchor of the frame is valid.
+   */
+  void publish(DepthData depth) {
+    if (!frames.hasSubscribers() || depth.isEmpty()) {
+      return;
+    }
+    float[] modelMatrix = new float[16];
+    depth.getModelMatrix(modelMatrix);
+    frames.onNext(
+        new FrameSnapshot(
+            depth.getPoints().asReadOnlyBuffer(),
+            depth.getColors().asReadOnlyBuffer(),
+            modelMatrix,
+            depth.getTimestamp()));
+  }
+
+  /**
+   * Attaches a stage that processes each frame asynchronously, one frame at a time.
+   *
+   * @param name Used in the log when frames are dropped.
+   * @param stage Returns a completable that processes the frame. The next frame is requested once
+   *     it completes.
+   */
+  Sink addSink(String name, Function<FrameSnapshot, Completable> stage) {
+    AtomicLong dropped = new AtomicLong();
+    return attach(
+        name,
+        frames ->
+            frames.onBackpressureBuffer(
+                SINK_BUFFER_FRAMES,
+                () -> Log.w(TAG, name + " fell behind, dropped " + dropped.incrementAndGet()
+                    + " frames"),
+                BackpressureOverflowStrategy.DROP_OLDEST),
+        stage);
+  }
+
+  /**
+   * Like {@link #addSink(String, Function)}, but the frames are buffered without bound while the
+   * sink falls behind, so that it processes every frame.
+   */
+  Sink addLosslessSink(String name, Function<FrameSnapshot, Completable> stage) {
+    return attach(name, Flowable::onBackpressureBuffer, stage);
+  }
+
+  private Sink attach(
+      String name,
+      FlowableTransformer<FrameSnapshot, FrameSnapshot> buffer,
+      Function<FrameSnapshot, Completable> stage) {
+    PublishProcessor<Boolean> closeSignal = PublishProcessor.create();
+    Completable done =
+        frames
+            .takeUntil(closeSignal)
+            .compose(buffer)
+            .concatMapCompletable(stage, 1)
+            .doOnError(error -> Log.e(TAG, name + " failed", error))
+            .cache();
+    // Subscribed right away, so that the sink receives the frames published from now on.
+    done.subscribe(() -> {}, error -> {});
+    return new Sink(closeSignal, done);
+  }
+
+  /** Attaches a stage that consumes each frame synchronously on the given scheduler. */
+  Sink addSink(String name, Scheduler scheduler, Consumer<FrameSnapshot> stage) {
+    return addSink(
+        name, frame -> Completable.fromAction(() -> stage.accept(frame)).subscribeOn(scheduler));
+  }
+}
@@ -5,9 +5,12 @@ import java.nio.FloatBuffer;
 public class FrameData {
     FloatBuffer points;
     FloatBuffer colors;
+    /** Bounding box of the points in the frame local space: min X, Y, Z, then max X, Y, Z. */
+    float[] bounds;
 
-    FrameData(FloatBuffer points, FloatBuffer colors){
+    FrameData(FloatBuffer points, FloatBuffer colors, float[] bounds){
         this.points = points;
         this.colors = colors;
+        this.bounds = bounds;
     }
 }
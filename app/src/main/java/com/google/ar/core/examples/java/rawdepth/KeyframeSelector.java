@@ -0,0 +1,117 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import com.google.ar.core.Pose;
+
+/**
+ * Decides which depth frames are integrated into the scan, by comparing the camera pose to the one
+ * of the last accepted keyframe.
+ *
+ * <p>Converting a frame costs CPU time, and keeping it costs memory and draw time for the rest of
+ * the scan, while a frame seen from nearly the same pose adds almost no new surface. A frame is
+ * therefore only accepted when the camera moved more than {@link #MIN_TRANSLATION_METERS}, turned
+ * more than {@link #MIN_ROTATION_DEGREES}, or when less than {@link #MAX_VIEW_OVERLAP} of the view
+ * of the last keyframe is still in sight. The overlap is estimated by projecting the center of the
+ * last keyframe's view, at the distance of its points, into the current view: the further it moved
+ * from the image center, the less the two views share.
+ *
+ * <p>The selector has a single user, the OpenGL thread, see {@link ScanSession#getKeyframes()}.
+ */
+final class KeyframeSelector {
+  static final float MIN_TRANSLATION_METERS = 0.10f;
+  static final float MIN_ROTATION_DEGREES = 10.0f;
+  static final float MAX_VIEW_OVERLAP = 0.8f;
+
+  // Distance of the scene assumed until a keyframe with points was accepted.
+  private static final float DEFAULT_SCENE_DISTANCE_METERS = 1.5f;
+  private static final float MIN_SCENE_DISTANCE_METERS = 0.2f;
+  private static final float MIN_ROTATION_COS_HALF =
+      (float) Math.cos(Math.toRadians(MIN_ROTATION_DEGREES) / 2);
+
+  private Pose keyframePose;
+  // The center of the keyframe's view in world space, at the distance of its points.
+  private final float[] keyframeTarget = new float[3];
+  private final float[] target = new float[3];
+  private int acceptedFrames;
+  private int skippedFrames;
+
+  /**
+   * Returns whether a frame captured from the pose adds enough to the scan to be converted. The
+   * frame is counted as skipped when it does not; when it does, the caller reports the result of
+   * the conversion with {@link #onAccepted}.
+   *
+   * @param cameraPose The display oriented camera pose of the frame.
+   * @param projectionMatrix The projection matrix of the display, which gives the field of view.
+   */
+  boolean shouldAccept(Pose cameraPose, float[] projectionMatrix) {
+    if (keyframePose == null || isNovel(cameraPose, projectionMatrix)) {
+      return true;
+    }
+    ++skippedFrames;
+    return false;
+  }
+
+  private boolean isNovel(Pose pose, float[] projectionMatrix) {
+    float dx = pose.tx() - keyframePose.tx();
+    float dy = pose.ty() - keyframePose.ty();
+    float dz = pose.tz() - keyframePose.tz();
+    if (dx * dx + dy * dy + dz * dz > MIN_TRANSLATION_METERS * MIN_TRANSLATION_METERS) {
+      return true;
+    }
+    // The cosine of half the angle between two rotations is the absolute dot product of their
+    // quaternions.
+    float cosHalfAngle =
+        Math.abs(
+            pose.qx() * keyframePose.qx()
+                + pose.qy() * keyframePose.qy()
+                + pose.qz() * keyframePose.qz()
+                + pose.qw() * keyframePose.qw());
+    if (cosHalfAngle < MIN_ROTATION_COS_HALF) {
+      return true;
+    }
+    return estimateViewOverlap(pose, projectionMatrix) < MAX_VIEW_OVERLAP;
+  }
+
+  /**
+   * Estimates the fraction of the keyframe's view that is still visible from the pose, in [0, 1].
+   */
+  float estimateViewOverlap(Pose pose, float[] projectionMatrix) {
+    pose.inverse().transformPoint(keyframeTarget, 0, target, 0);
+    if (target[2] >= -MIN_SCENE_DISTANCE_METERS) {
+      // The keyframe's view center is behind the camera.
+      return 0.0f;
+    }
+    // Normalized device coordinates of the keyframe's view center, the view spans [-1, 1].
+    float x = projectionMatrix[0] * target[0] / -target[2];
+    float y = projectionMatrix[5] * target[1] / -target[2];
+    return Math.max(0.0f, 1.0f - Math.abs(x) / 2) * Math.max(0.0f, 1.0f - Math.abs(y) / 2);
+  }
+
+  /**
+   * Makes the accepted frame the new keyframe.
+   *
+   * @param cameraPose The pose passed to {@link #shouldAccept}.
+   * @param sceneDistance Distance of the frame's points along the view direction, in meters, or 0
+   *     if it has none.
+   */
+  void onAccepted(Pose cameraPose, float sceneDistance) {
+    if (sceneDistance < MIN_SCENE_DISTANCE_METERS) {
+      sceneDistance = DEFAULT_SCENE_DISTANCE_METERS;
+    }
+    keyframePose = cameraPose;
+    target[0] = 0.0f;
+    target[1] = 0.0f;
+    target[2] = -sceneDistance;
+    cameraPose.transformPoint(target, 0, keyframeTarget, 0);
+    ++acceptedFrames;
+  }
+
+  /** Number of frames accepted as keyframes since the scan started. */
+  int getAcceptedFrames() {
+    return acceptedFrames;
+  }
+
+  /** Number of frames skipped because they were too similar to the last keyframe. */
+  int getSkippedFrames() {
+    return skippedFrames;
+  }
+}
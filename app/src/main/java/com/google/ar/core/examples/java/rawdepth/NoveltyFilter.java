@@ -0,0 +1,148 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.opengl.Matrix;
+import com.google.ar.core.Pose;
+import com.google.ar.core.examples.java.common.rendering.Frustum;
+import java.util.Arrays;
+
+/**
+ * Skips the depth pixels that observe surfaces already in the scan, before they are converted.
+ *
+ * <p>Before a frame is converted, {@link #prepare} splats the level-of-detail hierarchy of the scan
+ * into a depth buffer of {@link #CELL_PIXELS} x {@link #CELL_PIXELS} depth pixels per cell, seen
+ * from the pose of the frame. The nodes are chosen like for drawing, with the cells as pixels and
+ * a budget of {@link #SPLAT_POINT_BUDGET} points, and every point covers the cells of its point
+ * size, so the buffer is closed wherever the scan is. Each cell keeps the nearest depth. {@link
+ * #isNovel} then accepts a pixel only if its cell is empty, or if its depth differs from the cell
+ * by more than {@link #MIN_DEPTH_TOLERANCE_METERS}, or {@link #RELATIVE_DEPTH_TOLERANCE} of the
+ * depth for distant pixels. When rescanning a known area almost all pixels are skipped, while new
+ * surfaces and surfaces that changed are still added.
+ *
+ * <p>The filter has a single user, the OpenGL thread, see {@link ScanSession#getNoveltyFilter()}.
+ */
+final class NoveltyFilter {
+  static final int CELL_PIXELS = 4;
+  static final int SPLAT_POINT_BUDGET = 50000;
+  static final float MIN_DEPTH_TOLERANCE_METERS = 0.03f;
+  static final float RELATIVE_DEPTH_TOLERANCE = 0.05f;
+
+  private static final float NEAR_METERS = 0.1f;
+  // Farther than the range of the raw depth images.
+  private static final float FAR_METERS = 10.0f;
+  // Largest splat radius in cells.
+  private static final int MAX_SPLAT_RADIUS = 2;
+
+  private final PointLodOctree map;
+  private final Frustum frustum = new Frustum();
+  private final float[] view = new float[16];
+  private final float[] cameraToWorld = new float[16];
+  private final float[] projection = new float[16];
+  private final float[] viewProjection = new float[16];
+
+  // Depth buffer of the last prepare() call, in meters, infinite where the scan has no points.
+  private float[] cellDepths = new float[0];
+  private int columns;
+  private int rows;
+  private long novelPixels;
+  private long explainedPixels;
+
+  /** @param map The hierarchy of the scan, see {@link ScanSession#getLod()}. */
+  NoveltyFilter(PointLodOctree map) {
+    this.map = map;
+  }
+
+  /**
+   * Splats the scan into the depth buffer of a depth image taken from the pose.
+   *
+   * @param cameraPose Pose of the depth camera, whose space the depth image is unprojected into.
+   * @param fx Focal length in depth pixels, and likewise the other intrinsics.
+   */
+  void prepare(
+      Pose cameraPose, float fx, float fy, float cx, float cy, int imageWidth, int imageHeight) {
+    columns = (imageWidth + CELL_PIXELS - 1) / CELL_PIXELS;
+    rows = (imageHeight + CELL_PIXELS - 1) / CELL_PIXELS;
+    if (cellDepths.length < columns * rows) {
+      cellDepths = new float[columns * rows];
+    }
+    Arrays.fill(cellDepths, 0, columns * rows, Float.POSITIVE_INFINITY);
+    if (map.getTotalPoints() == 0) {
+      return;
+    }
+
+    cameraPose.toMatrix(cameraToWorld, 0);
+    Matrix.invertM(view, 0, cameraToWorld, 0);
+    // The depth image looks along the negative Z axis, with image rows going down the Y axis.
+    float scale = NEAR_METERS;
+    Matrix.frustumM(projection, 0, -cx / fx * scale, (imageWidth - cx) / fx * scale,
+        -(imageHeight - cy) / fy * scale, cy / fy * scale, NEAR_METERS, FAR_METERS);
+    Matrix.multiplyMM(viewProjection, 0, projection, 0, view, 0);
+    frustum.set(viewProjection);
+    float cellFx = fx / CELL_PIXELS;
+    float cellFy = fy / CELL_PIXELS;
+    float cellCx = cx / CELL_PIXELS;
+    float cellCy = cy / CELL_PIXELS;
+    // The renderer selects its nodes again on every draw, so the selection can be reused here.
+    map.selectNodes(frustum, cameraToWorld[12], cameraToWorld[13], cameraToWorld[14], cellFy,
+        SPLAT_POINT_BUDGET);
+
+    float[] v = view;
+    for (int i = 0; i < map.getSelectedCount(); ++i) {
+      PointLodOctree.Node node = map.getSelectedNode(i);
+      int radius = Math.min(MAX_SPLAT_RADIUS, Math.round(map.getSelectedPointSize(i) / 2));
+      float[] data = node.data;
+      for (int p = 0; p < node.numPoints; ++p) {
+        int offset = p * PointLodOctree.FLOATS_PER_POINT;
+        float x = data[offset];
+        float y = data[offset + 1];
+        float z = data[offset + 2];
+        float depth = -(v[2] * x + v[6] * y + v[10] * z + v[14]);
+        if (depth < NEAR_METERS) {
+          continue;
+        }
+        float column = cellFx * (v[0] * x + v[4] * y + v[8] * z + v[12]) / depth + cellCx;
+        float row = cellCy - cellFy * (v[1] * x + v[5] * y + v[9] * z + v[13]) / depth;
+        splat((int) Math.floor(column), (int) Math.floor(row), radius, depth);
+      }
+    }
+  }
+
+  private void splat(int column, int row, int radius, float depth) {
+    int minRow = Math.max(row - radius, 0);
+    int maxRow = Math.min(row + radius, rows - 1);
+    int minColumn = Math.max(column - radius, 0);
+    int maxColumn = Math.min(column + radius, columns - 1);
+    for (int r = minRow; r <= maxRow; ++r) {
+      for (int c = minColumn; c <= maxColumn; ++c) {
+        int cell = r * columns + c;
+        if (depth < cellDepths[cell]) {
+          cellDepths[cell] = depth;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether the pixel of the depth image passed to the last {@link #prepare} call adds new
+   * or changed surface to the scan.
+   */
+  boolean isNovel(int x, int y, float depthMeters) {
+    float mapDepth = cellDepths[(y / CELL_PIXELS) * columns + x / CELL_PIXELS];
+    float tolerance = Math.max(MIN_DEPTH_TOLERANCE_METERS, RELATIVE_DEPTH_TOLERANCE * depthMeters);
+    if (Math.abs(depthMeters - mapDepth) > tolerance) {
+      ++novelPixels;
+      return true;
+    }
+    ++explainedPixels;
+    return false;
+  }
+
+  /** Number of pixels accepted since the scan started. */
+  long getNovelPixels() {
+    return novelPixels;
+  }
+
+  /** Number of pixels skipped since the scan started, because the scan already had them. */
+  long getExplainedPixels() {
+    return explainedPixels;
+  }
+}
@@ -0,0 +1,142 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.util.Log;
+import com.google.ar.core.examples.java.common.io.CompressedPointCloud;
+import com.google.ar.core.examples.java.common.io.PlyWriter;
+import com.google.ar.core.examples.java.common.io.PointCloudExporter;
+import com.google.ar.core.examples.java.common.io.PointCloudExporters;
+import com.google.ar.core.examples.java.common.io.QuantizedPointCloud;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the export throughput of every {@link PlyWriter.Format} and {@link
+ * PointCloudExporters exporter}, and of {@link CompressedPointCloud} and {@link
+ * QuantizedPointCloud} in both directions, on the device storage.
+ *
+ * <p>A synthetic point cloud is exported several times per format, and the best run is reported,
+ * which filters out interference from other IO and from the garbage collector. Exported files are
+ * deleted after each run.
+ *
+ * <p>Random synthetic points are the worst case for the Morton delta coding of {@link
+ * QuantizedPointCloud}, so the benchmark runs on the current scan when there is one.
+ */
+final class PlyExportBenchmark {
+  private static final String TAG = PlyExportBenchmark.class.getSimpleName();
+
+  private static final int RUNS_PER_FORMAT = 3;
+
+  /**
+   * Runs the benchmark. Performs heavy IO, so it must not be called on the UI thread.
+   *
+   * @param directory The directory in which the temporary exports are written.
+   * @param points The points to export, a real scan or {@link #createPoints synthetic points}.
+   * @return One line per format with the file size, duration and throughput.
+   */
+  static String run(File directory, PointStore.Snapshot points) throws IOException {
+    StringBuilder report = new StringBuilder();
+    for (PlyWriter.Format format : PlyWriter.Format.values()) {
+      measure(report, format.toString(), points,
+          new File(directory, "benchmark_" + format.name().toLowerCase(Locale.US) + ".ply"),
+          file -> PlyWriter.write(points, file, format), null);
+    }
+    for (PointCloudExporter exporter : PointCloudExporters.all()) {
+      if (exporter == PointCloudExporters.PLY) {
+        // Measured above.
+        continue;
+      }
+      measure(report, exporter.getName(), points,
+          new File(directory, "benchmark" + exporter.getFileExtension()),
+          file -> exporter.write(points, file), null);
+    }
+    measure(report, "COMPRESSED", points,
+        new File(directory, "benchmark" + CompressedPointCloud.FILE_EXTENSION),
+        file -> CompressedPointCloud.write(points, file), CompressedPointCloud::read);
+    measure(report, "QUANTIZED", points,
+        new File(directory, "benchmark" + QuantizedPointCloud.FILE_EXTENSION),
+        file ->
+            QuantizedPointCloud.write(
+                points, file, QuantizedPointCloud.DEFAULT_PRECISION_METERS),
+        QuantizedPointCloud::read);
+    return report.toString();
+  }
+
+  /** Writes or reads a benchmark file. */
+  private interface FileOperation {
+    void run(File file) throws IOException;
+  }
+
+  /**
+   * Writes the file {@link #RUNS_PER_FORMAT} times, and reads it back after every write if the
+   * format has a reader, then reports the best runs.
+   *
+   * @param read Reads the file, or null for formats that are only exported.
+   */
+  private static void measure(StringBuilder report, String label, PointStore.Snapshot points,
+      File file, FileOperation write, FileOperation read) throws IOException {
+    long bestWriteNanos = Long.MAX_VALUE;
+    long bestReadNanos = Long.MAX_VALUE;
+    long bytes = 0;
+    for (int run = 0; run < RUNS_PER_FORMAT; ++run) {
+      long start = System.nanoTime();
+      write.run(file);
+      bestWriteNanos = Math.min(bestWriteNanos, System.nanoTime() - start);
+      bytes = file.length();
+      if (read != null) {
+        start = System.nanoTime();
+        read.run(file);
+        bestReadNanos = Math.min(bestReadNanos, System.nanoTime() - start);
+      }
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete " + file);
+      }
+    }
+    if (read == null) {
+      appendLine(report, label, points.size(), bytes, bestWriteNanos);
+    } else {
+      appendLine(report, label + " write", points.size(), bytes, bestWriteNanos);
+      appendLine(report, label + " read", points.size(), bytes, bestReadNanos);
+    }
+  }
+
+  private static void appendLine(
+      StringBuilder report, String label, int numPoints, long bytes, long nanos) {
+    double seconds = nanos / 1e9;
+    String line =
+        String.format(
+            Locale.US,
+            "%s: %d points, %.1f MB (%.2f bytes per point) in %.0f ms, %.1f MB/s",
+            label,
+            numPoints,
+            bytes / 1e6,
+            (double) bytes / Math.max(1, numPoints),
+            seconds * 1000,
+            bytes / 1e6 / seconds);
+    Log.i(TAG, line);
+    if (report.length() > 0) {
+      report.append('\n');
+    }
+    report.append(line);
+  }
+
+  /** Creates points spread over a room sized volume, with a fixed seed for repeatable results. */
+  static PointStore.Snapshot createPoints(int numPoints) {
+    Random random = new Random(42);
+    PointStore store = new PointStore();
+    for (int i = 0; i < numPoints; ++i) {
+      store.add(
+          random.nextFloat() * 8 - 4,
+          random.nextFloat() * 3,
+          random.nextFloat() * 8 - 4,
+          random.nextInt(256),
+          random.nextInt(256),
+          random.nextInt(256));
+    }
+    store.publish();
+    return store.snapshot();
+  }
+
+  private PlyExportBenchmark() {}
+}
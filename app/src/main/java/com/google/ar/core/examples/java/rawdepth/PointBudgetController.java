@@ -0,0 +1,221 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.util.Log;
+
+/**
+ * Closed-loop controller that sizes the depth point budgets to hold a target frame rate.
+ *
+ * <p>Each frame the caller reports the CPU time spent converting the raw depth image into points
+ * and the time spent issuing the point cloud draw calls. The controller smooths these values and
+ * the overall frame interval, and then scales two budgets:
+ *
+ * <ul>
+ *   <li>the number of points extracted from each new depth image, which bounds conversion cost;
+ *   <li>the total number of accumulated points drawn every frame, which bounds draw cost.
+ * </ul>
+ *
+ * <p>Budgets only move after the frame time stayed outside the hysteresis band for several
+ * consecutive frames, so a single slow frame does not cause visible quality changes. Every
+ * adjustment is logged together with the measurements that caused it.
+ */
+final class PointBudgetController {
+  private static final String TAG = PointBudgetController.class.getSimpleName();
+
+  /** Describes the last decision taken by the controller. */
+  public enum State {
+    /** Frame time is inside the hysteresis band; budgets are unchanged. */
+    STEADY,
+    /** Frame time exceeded the target and a budget was reduced. */
+    REDUCING,
+    /** Frame time was below the target and a budget was increased. */
+    RECOVERING,
+    /** Frame time exceeds the target but both budgets are already at their lower bound. */
+    AT_MINIMUM
+  }
+
+  private static final int DEFAULT_POINTS_PER_FRAME = 15000;
+  private static final int DEFAULT_MIN_POINTS_PER_FRAME = 2000;
+  private static final int DEFAULT_MAX_POINTS_PER_FRAME = 60000;
+  private static final int DEFAULT_TOTAL_POINTS = 500000;
+  private static final int DEFAULT_MIN_TOTAL_POINTS = 50000;
+  private static final int DEFAULT_MAX_TOTAL_POINTS = 3000000;
+
+  // Smoothing factor of the exponentially weighted moving averages.
+  private static final float SMOOTHING = 0.1f;
+  // The frame time must stay above (1 + OVER_MARGIN) * target for this many frames to reduce.
+  private static final float OVER_MARGIN = 0.10f;
+  private static final int FRAMES_BEFORE_REDUCE = 5;
+  // The frame time must stay below (1 - UNDER_MARGIN) * target for this many frames to increase.
+  private static final float UNDER_MARGIN = 0.20f;
+  private static final int FRAMES_BEFORE_INCREASE = 30;
+  private static final float MAX_FRAME_INTERVAL_MS = 500.0f;
+  private static final float REDUCE_FACTOR = 0.8f;
+  private static final float INCREASE_FACTOR = 1.1f;
+
+  private final float targetFrameTimeMs;
+
+  private int minPointsPerFrame = DEFAULT_MIN_POINTS_PER_FRAME;
+  private int maxPointsPerFrame = DEFAULT_MAX_POINTS_PER_FRAME;
+  private int minTotalPoints = DEFAULT_MIN_TOTAL_POINTS;
+  private int maxTotalPoints = DEFAULT_MAX_TOTAL_POINTS;
+
+  private int pointsPerFrame = DEFAULT_POINTS_PER_FRAME;
+  private int totalPoints = DEFAULT_TOTAL_POINTS;
+
+  private float conversionMs;
+  private float drawMs;
+  private float frameMs;
+  private long lastFrameStartNanos;
+
+  private int framesOver;
+  private int framesUnder;
+  private State state = State.STEADY;
+  private String lastReason = "initial budgets";
+
+  /** @param targetFps The frame rate the controller tries to hold. */
+  public PointBudgetController(float targetFps) {
+    this.targetFrameTimeMs = 1000.0f / targetFps;
+  }
+
+  /** Sets the bounds of the number of points extracted from each depth image. */
+  public void setPointsPerFrameBounds(int min, int max) {
+    minPointsPerFrame = min;
+    maxPointsPerFrame = max;
+    pointsPerFrame = clamp(pointsPerFrame, min, max);
+  }
+
+  /** Sets the bounds of the total number of accumulated points rendered every frame. */
+  public void setTotalPointsBounds(int min, int max) {
+    minTotalPoints = min;
+    maxTotalPoints = max;
+    totalPoints = clamp(totalPoints, min, max);
+  }
+
+  /**
+   * Marks the start of a frame. The interval between consecutive calls is the measured frame
+   * time, which includes GPU back-pressure reported through buffer swaps.
+   */
+  public void onFrameStart(long nowNanos) {
+    float intervalMs = (nowNanos - lastFrameStartNanos) / 1e6f;
+    // Long gaps mean rendering was paused, for example while not scanning, so they are ignored.
+    if (lastFrameStartNanos != 0 && intervalMs < MAX_FRAME_INTERVAL_MS) {
+      frameMs = smooth(frameMs, intervalMs);
+    }
+    lastFrameStartNanos = nowNanos;
+  }
+
+  /** Reports the CPU time spent converting the current depth image into points. */
+  public void reportConversionTime(long nanos) {
+    conversionMs = smooth(conversionMs, nanos / 1e6f);
+  }
+
+  /** Reports the time spent issuing the point cloud draw calls of the current frame. */
+  public void reportDrawTime(long nanos) {
+    drawMs = smooth(drawMs, nanos / 1e6f);
+  }
+
+  /** Updates the budgets from the measurements of the finished frame. */
+  public void onFrameEnd() {
+    if (frameMs == 0) {
+      return;
+    }
+    if (frameMs > targetFrameTimeMs * (1 + OVER_MARGIN)) {
+      framesUnder = 0;
+      if (++framesOver >= FRAMES_BEFORE_REDUCE) {
+        framesOver = 0;
+        reduce();
+      }
+    } else if (frameMs < targetFrameTimeMs * (1 - UNDER_MARGIN)) {
+      framesOver = 0;
+      if (++framesUnder >= FRAMES_BEFORE_INCREASE) {
+        framesUnder = 0;
+        increase();
+      }
+    } else {
+      framesOver = 0;
+      framesUnder = 0;
+      state = State.STEADY;
+    }
+  }
+
+  /** Cuts the budget of whichever stage currently dominates the frame time. */
+  private void reduce() {
+    boolean conversionBound = conversionMs >= drawMs;
+    if (conversionBound && pointsPerFrame > minPointsPerFrame) {
+      pointsPerFrame = clamp((int) (pointsPerFrame * REDUCE_FACTOR), minPointsPerFrame,
+          maxPointsPerFrame);
+      onAdjusted(State.REDUCING, "conversion bound, reduced points per frame");
+    } else if (totalPoints > minTotalPoints) {
+      totalPoints = clamp((int) (totalPoints * REDUCE_FACTOR), minTotalPoints, maxTotalPoints);
+      onAdjusted(State.REDUCING, "draw bound, reduced total rendered points");
+    } else if (pointsPerFrame > minPointsPerFrame) {
+      pointsPerFrame = clamp((int) (pointsPerFrame * REDUCE_FACTOR), minPointsPerFrame,
+          maxPointsPerFrame);
+      onAdjusted(State.REDUCING, "total at minimum, reduced points per frame");
+    } else if (state != State.AT_MINIMUM) {
+      onAdjusted(State.AT_MINIMUM, "over target with both budgets at minimum");
+    }
+  }
+
+  /** Restores the budget of whichever stage currently has the most headroom. */
+  private void increase() {
+    boolean conversionCheaper = conversionMs < drawMs;
+    if (conversionCheaper && pointsPerFrame < maxPointsPerFrame) {
+      pointsPerFrame = clamp((int) (pointsPerFrame * INCREASE_FACTOR) + 1, minPointsPerFrame,
+          maxPointsPerFrame);
+      onAdjusted(State.RECOVERING, "headroom, increased points per frame");
+    } else if (totalPoints < maxTotalPoints) {
+      totalPoints = clamp((int) (totalPoints * INCREASE_FACTOR) + 1, minTotalPoints,
+          maxTotalPoints);
+      onAdjusted(State.RECOVERING, "headroom, increased total rendered points");
+    } else if (pointsPerFrame < maxPointsPerFrame) {
+      pointsPerFrame = clamp((int) (pointsPerFrame * INCREASE_FACTOR) + 1, minPointsPerFrame,
+          maxPointsPerFrame);
+      onAdjusted(State.RECOVERING, "total at maximum, increased points per frame");
+    } else {
+      state = State.STEADY;
+    }
+  }
+
+  private void onAdjusted(State newState, String reason) {
+    state = newState;
+    lastReason = reason;
+    Log.i(TAG, toString());
+  }
+
+  /** Returns the maximum number of points to extract from the next depth image. */
+  public int getPointsPerFrame() {
+    return pointsPerFrame;
+  }
+
+  /** Returns the maximum number of accumulated points to render each frame. */
+  public int getTotalPoints() {
+    return totalPoints;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /** Returns a human readable description of the last budget change. */
+  public String getLastReason() {
+    return lastReason;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s (%s): frame %.1f ms / target %.1f ms, conversion %.1f ms, draw %.1f ms,"
+            + " points per frame %d, total points %d",
+        state, lastReason, frameMs, targetFrameTimeMs, conversionMs, drawMs, pointsPerFrame,
+        totalPoints);
+  }
+
+  private static float smooth(float average, float sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+
+  private static int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
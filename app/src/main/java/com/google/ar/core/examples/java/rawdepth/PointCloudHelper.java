@@ -16,9 +16,6 @@
 
 package com.google.ar.core.examples.java.rawdepth;
 
-import static com.google.ar.core.examples.java.rawdepth.Renderer.frameData;
-import static com.google.ar.core.examples.java.rawdepth.Renderer.particleData;
-
 import android.media.Image;
 import android.media.Image.Plane;
 import android.opengl.Matrix;
@@ -50,9 +47,15 @@ public final class PointCloudHelper {
      * Creates a linear buffer of 3D point positions in the world space and the corresponding
      * confidence values and RGB color values corresponding to the values in the depth image.
      * Pixels with the depth value equal to zero are not included in the output.
+     *
+     * @param pointStore Receives the world space points of the frame, published all at once.
+     * @param noveltyFilter Skips the pixels already in the scan, or null to convert all pixels.
+     * @return The points in the frame local space, with their colors and bounds.
      */
-    public static void convertImageToDepthAndColors(Image cameraImage, Image depthImage, Image confidenceImage,
-                                                    Frame frame, int pointLimit) {
+    public static FrameData convertImageToDepthAndColors(Image cameraImage, Image depthImage,
+                                                         Image confidenceImage, Frame frame,
+                                                         int pointLimit, PointStore pointStore,
+                                                         NoveltyFilter noveltyFilter) {
         /**
          *  Common Property
          *
@@ -85,6 +88,10 @@ public final class PointCloudHelper {
                 intrinsics.getPrincipalPoint()[0] * depthWidth / intrinsicsDimensions[0];
         float cy =
                 intrinsics.getPrincipalPoint()[1] * depthHeight / intrinsicsDimensions[1];
+        if (noveltyFilter != null) {
+            noveltyFilter.prepare(frame.getCamera().getPose(), fx, fy, cx, cy, depthWidth,
+                    depthHeight);
+        }
 
         /**
          *   Color property
@@ -132,6 +139,11 @@ public final class PointCloudHelper {
 
         float rgb[] = new float[3];
 
+        // Bounding box of the points, used to skip the whole frame when it is out of view.
+        float[] bounds = {
+                Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
         for (int y = 0; y < depthHeight; y += step) {
             for (int x = 0; x < depthWidth; x += step) {
                 // Depth images are tightly packed, so it's OK to not use row and pixel strides.
@@ -151,6 +163,10 @@ public final class PointCloudHelper {
                 }
 
                 float depthMeters = depthMillimeters / 1000.0f;
+                if (noveltyFilter != null && !noveltyFilter.isNovel(x, y, depthMeters)) {
+                    // The scan already has this surface.
+                    continue;
+                }
 
                 float _x = depthMeters * (x - cx) / fx;
                 float _y = depthMeters * (cy - y) / fy;
@@ -198,6 +214,12 @@ public final class PointCloudHelper {
 
                 points.put(_x); points.put(_y); points.put(_z);
                 points.put(confidenceNormalized); // Confidence
+                bounds[0] = Math.min(bounds[0], _x);
+                bounds[1] = Math.min(bounds[1], _y);
+                bounds[2] = Math.min(bounds[2], _z);
+                bounds[3] = Math.max(bounds[3], _x);
+                bounds[4] = Math.max(bounds[4], _y);
+                bounds[5] = Math.max(bounds[5], _z);
 
                 // Retrieve the color at this point.
                 int colorX = x * colorWidth / depthWidth;
@@ -219,14 +241,16 @@ public final class PointCloudHelper {
                 int gIntValue = floatToUnsignedInt(rgb[1]);
                 int bIntValue = floatToUnsignedInt(rgb[2]);
 
-                //particleData.add(new Particle(_x, _y, _z, rIntValue, gIntValue, bIntValue));
-                particleData.add(new Particle(worldCoordinatesInWorldSpace[0], worldCoordinatesInWorldSpace[1], worldCoordinatesInWorldSpace[2], rIntValue, gIntValue, bIntValue));
+                pointStore.add(worldCoordinatesInWorldSpace[0], worldCoordinatesInWorldSpace[1], worldCoordinatesInWorldSpace[2], rIntValue, gIntValue, bIntValue);
             }
         }
 
-        points.rewind();
-        colors.rewind();
-        frameData.add(new FrameData(points, colors));
+        // Only the written part of the buffers holds points, pixels without depth were skipped.
+        points.flip();
+        colors.flip();
+        // Exports see the points of a frame all at once, or not at all.
+        pointStore.publish();
+        return new FrameData(points, colors, bounds);
     }
 
     /**
@@ -0,0 +1,337 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Merges the world space points of overlapping depth frames into a set of unique surface samples.
+ *
+ * <p>Sweeping the same surface several times adds the same points again with every frame. Each
+ * incoming point is looked up in a spatial hash of cells twice the {@link #getTolerance()
+ * tolerance} wide. Any sample within the tolerance lies in one of the 2 x 2 x 2 cells around the
+ * cell corner nearest to the point, so only these eight cells are searched. The point is merged
+ * into the first sample found within the tolerance, which moves to the confidence weighted mean of
+ * its position and color, and to the list of another cell when it crosses a cell border, so that
+ * every sample stays in the cell of its position. Otherwise it is appended as a new sample. The
+ * weight of a sample is capped at {@link #MAX_WEIGHT}, so samples keep following later, refined
+ * observations.
+ *
+ * <p>Samples are stored in chunks of primitive arrays, and the hash is an open-addressing table of
+ * cell keys to the head of a per-cell list of samples, so adding a point allocates nothing. All
+ * work runs on a dedicated thread, fed through {@link #append} by a lossless sink of the {@link
+ * DepthFramePipeline}, so frames queue up rather than being lost when it falls behind. A desktop
+ * JVM merges about 5 million points per second on one core; {@link #getPointsPerSecond()} gives
+ * the rate measured on the device.
+ */
+final class PointDeduplicator {
+  /** Default merge distance, in meters. */
+  static final float DEFAULT_TOLERANCE_METERS = 0.01f;
+
+  /** Sum of the confidences beyond which a sample does not gain weight anymore. */
+  static final float MAX_WEIGHT = 32.0f;
+
+  // Weight of a point without confidence, so that it still counts.
+  private static final float MIN_POINT_WEIGHT = 1e-3f;
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_POINTS = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_POINTS - 1;
+  private static final int INITIAL_TABLE_SIZE = 1 << 16;
+  // Cell coordinates are packed into 21 bits per axis.
+  private static final int CELL_BITS = 21;
+  private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+  private static final long EMPTY_KEY = -1L;
+  private static final int NO_SAMPLE = -1;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Scheduler scheduler = Schedulers.from(executor);
+  private final float tolerance;
+  private final float toleranceSquared;
+  private final float inverseCellSize;
+
+  // Deduplication thread state.
+  // X, Y, Z, then red, green, blue in [0, 1], per sample.
+  private float[][] attributes = new float[16][];
+  private float[][] weights = new float[16][];
+  // Next sample in the list of the same cell.
+  private int[][] nextInCell = new int[16][];
+  private int size;
+  private long[] cellKeys;
+  private int[] cellHeads;
+  // 64 minus the log2 of the table size, so that the hash keeps the top bits of the product.
+  private int hashShift;
+  private int cellCount;
+  private long inputPoints;
+  private long busyNanos;
+
+  PointDeduplicator() {
+    this(DEFAULT_TOLERANCE_METERS);
+  }
+
+  PointDeduplicator(float tolerance) {
+    this.tolerance = tolerance;
+    this.toleranceSquared = tolerance * tolerance;
+    this.inverseCellSize = 1.0f / (2 * tolerance);
+    allocateTable(INITIAL_TABLE_SIZE);
+  }
+
+  float getTolerance() {
+    return tolerance;
+  }
+
+  /** Returns a completable that merges the points of the frame on the deduplication thread. */
+  Completable append(DepthFramePipeline.FrameSnapshot frame) {
+    return Completable.fromAction(() -> add(frame)).subscribeOn(scheduler);
+  }
+
+  /**
+   * Returns a copy of the samples, taken on the deduplication thread after the frames appended
+   * before this call.
+   */
+  Single<PointStore.Snapshot> snapshot() {
+    return Single.fromCallable(this::copySamples).subscribeOn(scheduler);
+  }
+
+  /** Stops the deduplication thread once the work queued before this call is done. */
+  void close() {
+    executor.shutdown();
+  }
+
+  /** Merges the points of a frame. Must be called on a single thread. */
+  void add(DepthFramePipeline.FrameSnapshot frame) {
+    long start = System.nanoTime();
+    float[] m = frame.modelMatrix;
+    FloatBuffer points = frame.points;
+    FloatBuffer colors = frame.colors;
+    int pointBase = points.position();
+    int colorBase = colors.position();
+    for (int i = 0; i < frame.getPointCount(); ++i) {
+      int p = pointBase + i * Renderer.POSITION_FLOATS_PER_POINT;
+      int c = colorBase + i * Renderer.COLOR_FLOATS_PER_POINT;
+      float x = points.get(p);
+      float y = points.get(p + 1);
+      float z = points.get(p + 2);
+      add(
+          m[0] * x + m[4] * y + m[8] * z + m[12],
+          m[1] * x + m[5] * y + m[9] * z + m[13],
+          m[2] * x + m[6] * y + m[10] * z + m[14],
+          points.get(p + 3),
+          colors.get(c),
+          colors.get(c + 1),
+          colors.get(c + 2));
+    }
+    busyNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Merges a world space point into the samples, see the class comment. Must be called on a single
+   * thread.
+   */
+  void add(float x, float y, float z, float confidence, float r, float g, float b) {
+    ++inputPoints;
+    float weight = Math.max(confidence, MIN_POINT_WEIGHT);
+    float cx = x * inverseCellSize;
+    float cy = y * inverseCellSize;
+    float cz = z * inverseCellSize;
+    int ix = (int) Math.floor(cx);
+    int iy = (int) Math.floor(cy);
+    int iz = (int) Math.floor(cz);
+    // The neighbor cell on the side of the nearest cell corner, per axis.
+    int nx = cx - ix < 0.5f ? ix - 1 : ix + 1;
+    int ny = cy - iy < 0.5f ? iy - 1 : iy + 1;
+    int nz = cz - iz < 0.5f ? iz - 1 : iz + 1;
+    for (int corner = 0; corner < 8; ++corner) {
+      int slot =
+          findSlot(
+              cellKey(
+                  (corner & 1) == 0 ? ix : nx,
+                  (corner & 2) == 0 ? iy : ny,
+                  (corner & 4) == 0 ? iz : nz));
+      if (cellKeys[slot] == EMPTY_KEY) {
+        continue;
+      }
+      for (int sample = cellHeads[slot]; sample != NO_SAMPLE; ) {
+        float[] a = attributes[sample >>> CHUNK_SHIFT];
+        int offset = (sample & CHUNK_MASK) * 6;
+        float dx = a[offset] - x;
+        float dy = a[offset + 1] - y;
+        float dz = a[offset + 2] - z;
+        if (dx * dx + dy * dy + dz * dz <= toleranceSquared) {
+          merge(sample, x, y, z, weight, r, g, b);
+          return;
+        }
+        sample = nextInCell[sample >>> CHUNK_SHIFT][sample & CHUNK_MASK];
+      }
+    }
+    append(cellKey(ix, iy, iz), x, y, z, weight, r, g, b);
+  }
+
+  private void merge(
+      int sample, float x, float y, float z, float weight, float r, float g, float b) {
+    float[] w = weights[sample >>> CHUNK_SHIFT];
+    int index = sample & CHUNK_MASK;
+    float total = w[index] + weight;
+    float t = weight / total;
+    float[] a = attributes[sample >>> CHUNK_SHIFT];
+    int offset = index * 6;
+    long oldKey = cellKeyOf(a[offset], a[offset + 1], a[offset + 2]);
+    a[offset] += (x - a[offset]) * t;
+    a[offset + 1] += (y - a[offset + 1]) * t;
+    a[offset + 2] += (z - a[offset + 2]) * t;
+    a[offset + 3] += (r - a[offset + 3]) * t;
+    a[offset + 4] += (g - a[offset + 4]) * t;
+    a[offset + 5] += (b - a[offset + 5]) * t;
+    w[index] = Math.min(total, MAX_WEIGHT);
+    long newKey = cellKeyOf(a[offset], a[offset + 1], a[offset + 2]);
+    if (newKey != oldKey) {
+      unlink(oldKey, sample);
+      link(newKey, sample);
+    }
+  }
+
+  private long cellKeyOf(float x, float y, float z) {
+    return cellKey(
+        (int) Math.floor(x * inverseCellSize),
+        (int) Math.floor(y * inverseCellSize),
+        (int) Math.floor(z * inverseCellSize));
+  }
+
+  /** Removes the sample from the list of its cell. An emptied cell keeps its slot in the table. */
+  private void unlink(long key, int sample) {
+    int slot = findSlot(key);
+    int next = nextInCell[sample >>> CHUNK_SHIFT][sample & CHUNK_MASK];
+    if (cellHeads[slot] == sample) {
+      cellHeads[slot] = next;
+      return;
+    }
+    for (int previous = cellHeads[slot]; previous != NO_SAMPLE; ) {
+      int[] links = nextInCell[previous >>> CHUNK_SHIFT];
+      if (links[previous & CHUNK_MASK] == sample) {
+        links[previous & CHUNK_MASK] = next;
+        return;
+      }
+      previous = links[previous & CHUNK_MASK];
+    }
+  }
+
+  /** Adds the sample to the list of the cell, growing the table when needed. */
+  private void link(long key, int sample) {
+    int slot = findSlot(key);
+    if (cellKeys[slot] == EMPTY_KEY) {
+      cellKeys[slot] = key;
+      cellHeads[slot] = NO_SAMPLE;
+      ++cellCount;
+    }
+    nextInCell[sample >>> CHUNK_SHIFT][sample & CHUNK_MASK] = cellHeads[slot];
+    cellHeads[slot] = sample;
+    // The table is kept at most half full, so that probe sequences stay short.
+    if (cellCount * 2 > cellKeys.length) {
+      rehash(cellKeys.length * 2);
+    }
+  }
+
+  private void append(
+      long key, float x, float y, float z, float weight, float r, float g, float b) {
+    int chunk = size >>> CHUNK_SHIFT;
+    int index = size & CHUNK_MASK;
+    if (index == 0) {
+      if (chunk == attributes.length) {
+        attributes = Arrays.copyOf(attributes, chunk * 2);
+        weights = Arrays.copyOf(weights, chunk * 2);
+        nextInCell = Arrays.copyOf(nextInCell, chunk * 2);
+      }
+      attributes[chunk] = new float[CHUNK_POINTS * 6];
+      weights[chunk] = new float[CHUNK_POINTS];
+      nextInCell[chunk] = new int[CHUNK_POINTS];
+    }
+    float[] a = attributes[chunk];
+    int offset = index * 6;
+    a[offset] = x;
+    a[offset + 1] = y;
+    a[offset + 2] = z;
+    a[offset + 3] = r;
+    a[offset + 4] = g;
+    a[offset + 5] = b;
+    weights[chunk][index] = weight;
+    link(key, size);
+    ++size;
+  }
+
+  private static long cellKey(int x, int y, int z) {
+    return ((long) (x & CELL_MASK) << (2 * CELL_BITS))
+        | ((long) (y & CELL_MASK) << CELL_BITS)
+        | (z & CELL_MASK);
+  }
+
+  /** Returns the slot of the key, or the empty slot where it would be inserted. */
+  private int findSlot(long key) {
+    int mask = cellKeys.length - 1;
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> hashShift);
+    while (cellKeys[slot] != EMPTY_KEY && cellKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocateTable(int tableSize) {
+    cellKeys = new long[tableSize];
+    Arrays.fill(cellKeys, EMPTY_KEY);
+    cellHeads = new int[tableSize];
+    hashShift = 64 - Integer.numberOfTrailingZeros(tableSize);
+  }
+
+  private void rehash(int tableSize) {
+    long[] keys = cellKeys;
+    int[] heads = cellHeads;
+    allocateTable(tableSize);
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != EMPTY_KEY) {
+        int slot = findSlot(keys[i]);
+        cellKeys[slot] = keys[i];
+        cellHeads[slot] = heads[i];
+      }
+    }
+  }
+
+  /** Number of samples. */
+  int size() {
+    return size;
+  }
+
+  /** Number of points added, merged or not. */
+  long getInputPoints() {
+    return inputPoints;
+  }
+
+  /** Points of the frames added per second of deduplication thread time. */
+  long getPointsPerSecond() {
+    return busyNanos > 0 ? inputPoints * 1000000000L / busyNanos : 0;
+  }
+
+  private PointStore.Snapshot copySamples() {
+    int chunkCount = (size + PointStore.CHUNK_POINTS - 1) / PointStore.CHUNK_POINTS;
+    float[][] positions = new float[chunkCount][PointStore.CHUNK_POINTS * 3];
+    int[][] colors = new int[chunkCount][PointStore.CHUNK_POINTS];
+    for (int i = 0; i < size; ++i) {
+      float[] a = attributes[i >>> CHUNK_SHIFT];
+      int offset = (i & CHUNK_MASK) * 6;
+      float[] p = positions[i / PointStore.CHUNK_POINTS];
+      int out = i % PointStore.CHUNK_POINTS;
+      p[out * 3] = a[offset];
+      p[out * 3 + 1] = a[offset + 1];
+      p[out * 3 + 2] = a[offset + 2];
+      colors[i / PointStore.CHUNK_POINTS][out] =
+          (toByte(a[offset + 3]) << 16) | (toByte(a[offset + 4]) << 8) | toByte(a[offset + 5]);
+    }
+    return PointStore.wrap(positions, colors, size);
+  }
+
+  private static int toByte(float value) {
+    return Math.max(0, Math.min(255, Math.round(value * 255)));
+  }
+}
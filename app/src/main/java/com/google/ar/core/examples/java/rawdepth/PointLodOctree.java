@@ -0,0 +1,527 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import com.google.ar.core.examples.java.common.io.PlyReader;
+import com.google.ar.core.examples.java.common.rendering.Frustum;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Level-of-detail hierarchy over the accumulated world space points.
+ *
+ * <p>This is a nested octree in the style of Potree: every node keeps a representative subsample
+ * of the points falling into its cube, at most one point per cell of a {@code GRID_SIZE}^3 grid.
+ * Points landing in an occupied cell are passed down to the child octant, so the points of a node
+ * and all of its ancestors together form the full resolution data at that location, while each
+ * node alone is a uniformly thinned version of it.
+ *
+ * <p>At draw time {@link #selectNodes} walks the hierarchy front to back by projected size,
+ * rejects nodes outside the view frustum and refines nodes whose point spacing covers more than
+ * {@link #MAX_SCREEN_SPACE_ERROR_PX} pixels, until the global point budget is spent.
+ *
+ * <p>All methods must be called on the OpenGL thread, except while building a hierarchy that is
+ * not yet drawn, which may happen on any single thread.
+ */
+final class PointLodOctree {
+  /** Interleaved per point layout: X, Y, Z, confidence, red, green, blue. */
+  public static final int FLOATS_PER_POINT =
+      Renderer.POSITION_FLOATS_PER_POINT + Renderer.COLOR_FLOATS_PER_POINT;
+
+  static final int GRID_SIZE = 32;
+  private static final int INITIAL_NODE_POINTS = 64;
+  // Nodes smaller than this are not subdivided further, points in occupied cells are dropped.
+  static final float MIN_HALF_SIZE_METERS = 0.02f;
+  private static final float INITIAL_HALF_SIZE_METERS = 4.0f;
+  // Points this far from the origin are treated as outliers and not inserted.
+  private static final float MAX_EXTENT_METERS = 1000.0f;
+
+  /** Nodes whose point spacing projects to more pixels than this are refined. */
+  private static final float MAX_SCREEN_SPACE_ERROR_PX = 1.5f;
+  private static final float MIN_POINT_SIZE_PX = 1.0f;
+  private static final float MAX_POINT_SIZE_PX = 24.0f;
+
+  /** A cube of the hierarchy with its representative subsample. */
+  static final class Node {
+    final float centerX;
+    final float centerY;
+    final float centerZ;
+    final float halfSize;
+    final Node[] children = new Node[8];
+
+    // Occupancy of the subsampling grid cells, one bit per cell. Allocated on the first insertion,
+    // so that out-of-core nodes, which never receive insertions, do not pay for it.
+    private long[] occupiedCells;
+    float[] data = new float[INITIAL_NODE_POINTS * FLOATS_PER_POINT];
+    int numPoints;
+    // Number of points stored in this node and all of its descendants.
+    int subtreePoints;
+
+    // Tight bounds of the points of this node and all of its descendants.
+    float minX = Float.POSITIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY;
+    float minZ = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY;
+    float maxY = Float.NEGATIVE_INFINITY;
+    float maxZ = Float.NEGATIVE_INFINITY;
+
+    // OpenGL buffer holding the uploaded points, managed by the renderer.
+    int vbo;
+    int vboCapacityBytes;
+    int uploadedPoints;
+
+    Node(float centerX, float centerY, float centerZ, float halfSize) {
+      this.centerX = centerX;
+      this.centerY = centerY;
+      this.centerZ = centerZ;
+      this.halfSize = halfSize;
+    }
+
+    /** Distance between neighboring points of the subsample. */
+    float spacing() {
+      return 2 * halfSize / GRID_SIZE;
+    }
+
+    boolean isEmpty() {
+      return minX > maxX;
+    }
+
+    /** Returns whether points were added since the last upload. */
+    boolean isDirty() {
+      return uploadedPoints != numPoints;
+    }
+
+    /** Drops the subsampling grid once no more points will be inserted, see PointTileBuilder. */
+    void releaseGrid() {
+      occupiedCells = null;
+    }
+
+    private boolean contains(float x, float y, float z) {
+      return Math.abs(x - centerX) <= halfSize
+          && Math.abs(y - centerY) <= halfSize
+          && Math.abs(z - centerZ) <= halfSize;
+    }
+
+    int octant(float x, float y, float z) {
+      return (x >= centerX ? 1 : 0) | (y >= centerY ? 2 : 0) | (z >= centerZ ? 4 : 0);
+    }
+
+    Node getOrCreateChild(int octant) {
+      if (children[octant] == null) {
+        float quarter = halfSize / 2;
+        children[octant] =
+            new Node(
+                centerX + ((octant & 1) != 0 ? quarter : -quarter),
+                centerY + ((octant & 2) != 0 ? quarter : -quarter),
+                centerZ + ((octant & 4) != 0 ? quarter : -quarter),
+                quarter);
+      }
+      return children[octant];
+    }
+
+    /** Marks the grid cell of the point as occupied, and returns false if it already was. */
+    boolean occupyCell(float x, float y, float z) {
+      if (occupiedCells == null) {
+        occupiedCells = new long[GRID_SIZE * GRID_SIZE * GRID_SIZE / 64];
+      }
+      float scale = GRID_SIZE / (2 * halfSize);
+      int cellX = Math.min(GRID_SIZE - 1, Math.max(0, (int) ((x - centerX + halfSize) * scale)));
+      int cellY = Math.min(GRID_SIZE - 1, Math.max(0, (int) ((y - centerY + halfSize) * scale)));
+      int cellZ = Math.min(GRID_SIZE - 1, Math.max(0, (int) ((z - centerZ + halfSize) * scale)));
+      int cell = (cellZ * GRID_SIZE + cellY) * GRID_SIZE + cellX;
+      long mask = 1L << (cell & 63);
+      if ((occupiedCells[cell >> 6] & mask) != 0) {
+        return false;
+      }
+      occupiedCells[cell >> 6] |= mask;
+      return true;
+    }
+
+    void append(float x, float y, float z, float confidence, float r, float g, float b) {
+      if ((numPoints + 1) * FLOATS_PER_POINT > data.length) {
+        float[] grown = new float[data.length * 2];
+        System.arraycopy(data, 0, grown, 0, numPoints * FLOATS_PER_POINT);
+        data = grown;
+      }
+      int offset = numPoints * FLOATS_PER_POINT;
+      data[offset] = x;
+      data[offset + 1] = y;
+      data[offset + 2] = z;
+      data[offset + 3] = confidence;
+      data[offset + 4] = r;
+      data[offset + 5] = g;
+      data[offset + 6] = b;
+      ++numPoints;
+    }
+
+    void expandBounds(float x, float y, float z) {
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      minZ = Math.min(minZ, z);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+      maxZ = Math.max(maxZ, z);
+    }
+  }
+
+  private Node root;
+  private int totalPoints;
+
+  // Loads the points of out-of-core nodes during selection, null when all points are in memory.
+  private NodeLoader loader;
+
+  // Nodes chosen by the last call to selectNodes() and the point size to draw each one with.
+  private Node[] selectedNodes = new Node[64];
+  private float[] selectedPointSizes = new float[64];
+  private int selectedCount;
+  private int selectedPoints;
+  private int culledNodes;
+  private int culledPoints;
+
+  // Nodes visited by the current insertion, reused between calls.
+  private Node[] insertPath = new Node[32];
+
+  // Max-heap of candidate nodes ordered by projected size, reused between frames.
+  private Node[] heapNodes = new Node[64];
+  private float[] heapPriorities = new float[64];
+  private int heapSize;
+
+  /**
+   * Inserts the points of a depth frame.
+   *
+   * @param points Point positions and confidences in the frame local space, see {@link
+   *     DepthData#getPoints()}.
+   * @param colors Point RGB values, see {@link DepthData#getColors()}.
+   * @param modelMatrix The transform from the frame local space into world space.
+   */
+  public void insert(FloatBuffer points, FloatBuffer colors, float[] modelMatrix) {
+    float[] m = modelMatrix;
+    int numPoints = points.remaining() / Renderer.POSITION_FLOATS_PER_POINT;
+    int positionBase = points.position();
+    int colorBase = colors.position();
+    for (int i = 0; i < numPoints; ++i) {
+      int p = positionBase + i * Renderer.POSITION_FLOATS_PER_POINT;
+      int c = colorBase + i * Renderer.COLOR_FLOATS_PER_POINT;
+      float x = points.get(p);
+      float y = points.get(p + 1);
+      float z = points.get(p + 2);
+      insert(
+          m[0] * x + m[4] * y + m[8] * z + m[12],
+          m[1] * x + m[5] * y + m[9] * z + m[13],
+          m[2] * x + m[6] * y + m[10] * z + m[14],
+          points.get(p + 3),
+          colors.get(c),
+          colors.get(c + 1),
+          colors.get(c + 2));
+    }
+  }
+
+  /**
+   * Inserts the vertices of a PLY file, read through its property views without an intermediate
+   * copy of the file. Every vertex is still copied into the node arrays, {@link #FLOATS_PER_POINT}
+   * floats per point, so scans that do not fit in memory must be converted with {@link
+   * PointTileBuilder} instead. Colors default to white and confidence to 1 when the file does not
+   * have them.
+   */
+  public void insert(PlyReader ply) throws IOException {
+    PlyReader.Property x = ply.getProperty("x");
+    PlyReader.Property y = ply.getProperty("y");
+    PlyReader.Property z = ply.getProperty("z");
+    if (x == null || y == null || z == null) {
+      throw new IOException("PLY vertices have no position");
+    }
+    PlyReader.Property red = ply.getProperty("red");
+    PlyReader.Property green = ply.getProperty("green");
+    PlyReader.Property blue = ply.getProperty("blue");
+    boolean hasColor = red != null && green != null && blue != null;
+    PlyReader.Property confidence = ply.getProperty("confidence");
+    for (int i = 0; i < ply.getVertexCount(); ++i) {
+      insert(
+          x.getFloat(i),
+          y.getFloat(i),
+          z.getFloat(i),
+          confidence != null ? confidence.getFloat(i) : 1.0f,
+          hasColor ? red.getInt(i) / 255.0f : 1.0f,
+          hasColor ? green.getInt(i) / 255.0f : 1.0f,
+          hasColor ? blue.getInt(i) / 255.0f : 1.0f);
+    }
+  }
+
+  /** Inserts a single world space point. */
+  public void insert(float x, float y, float z, float confidence, float r, float g, float b) {
+    if (Math.abs(x) > MAX_EXTENT_METERS
+        || Math.abs(y) > MAX_EXTENT_METERS
+        || Math.abs(z) > MAX_EXTENT_METERS) {
+      return;
+    }
+    if (root == null) {
+      root = new Node(x, y, z, INITIAL_HALF_SIZE_METERS);
+    }
+    while (!root.contains(x, y, z)) {
+      growRootTowards(x, y, z);
+    }
+
+    Node node = root;
+    int depth = 0;
+    while (true) {
+      node.expandBounds(x, y, z);
+      if (depth == insertPath.length) {
+        Node[] path = new Node[depth * 2];
+        System.arraycopy(insertPath, 0, path, 0, depth);
+        insertPath = path;
+      }
+      insertPath[depth++] = node;
+      if (node.occupyCell(x, y, z)) {
+        node.append(x, y, z, confidence, r, g, b);
+        ++totalPoints;
+        for (int i = 0; i < depth; ++i) {
+          ++insertPath[i].subtreePoints;
+          insertPath[i] = null;
+        }
+        return;
+      }
+      if (node.halfSize < MIN_HALF_SIZE_METERS) {
+        // The cell is already represented at the finest level, drop the duplicate.
+        for (int i = 0; i < depth; ++i) {
+          insertPath[i] = null;
+        }
+        return;
+      }
+      node = node.getOrCreateChild(node.octant(x, y, z));
+    }
+  }
+
+  /** Replaces the root by a twice as large node that has the old root as one of its octants. */
+  private void growRootTowards(float x, float y, float z) {
+    Node oldRoot = root;
+    float half = oldRoot.halfSize;
+    Node newRoot =
+        new Node(
+            oldRoot.centerX + (x >= oldRoot.centerX ? half : -half),
+            oldRoot.centerY + (y >= oldRoot.centerY ? half : -half),
+            oldRoot.centerZ + (z >= oldRoot.centerZ ? half : -half),
+            2 * half);
+    newRoot.children[newRoot.octant(oldRoot.centerX, oldRoot.centerY, oldRoot.centerZ)] = oldRoot;
+    newRoot.subtreePoints = oldRoot.subtreePoints;
+    if (!oldRoot.isEmpty()) {
+      newRoot.expandBounds(oldRoot.minX, oldRoot.minY, oldRoot.minZ);
+      newRoot.expandBounds(oldRoot.maxX, oldRoot.maxY, oldRoot.maxZ);
+    }
+    root = newRoot;
+  }
+
+  /**
+   * Chooses the nodes to draw for the current view.
+   *
+   * @param frustum The view frustum, nodes entirely outside of it are skipped.
+   * @param cameraX World space X coordinate of the camera.
+   * @param cameraY World space Y coordinate of the camera.
+   * @param cameraZ World space Z coordinate of the camera.
+   * @param pixelsPerUnitAtUnitDistance Screen size in pixels of a one meter long segment at one
+   *     meter distance, i.e. {@code projection[5] * viewportHeight / 2}.
+   * @param pointBudget The maximum number of points to select.
+   */
+  public void selectNodes(Frustum frustum, float cameraX, float cameraY, float cameraZ,
+      float pixelsPerUnitAtUnitDistance, int pointBudget) {
+    selectedCount = 0;
+    selectedPoints = 0;
+    culledNodes = 0;
+    culledPoints = 0;
+    heapSize = 0;
+    if (root == null) {
+      return;
+    }
+    push(root, Float.POSITIVE_INFINITY);
+    while (heapSize > 0) {
+      float priority = heapPriorities[0];
+      Node node = pop();
+      if (node.isEmpty()) {
+        continue;
+      }
+      if (!frustum.intersectsBox(node.minX, node.minY, node.minZ, node.maxX, node.maxY,
+          node.maxZ)) {
+        ++culledNodes;
+        culledPoints += node.subtreePoints;
+        continue;
+      }
+      // Nodes whose points are still on disk are skipped together with their subtree, so the
+      // scan refines progressively as the loads complete.
+      if (loader != null && !loader.ensureLoaded(node, priority)) {
+        continue;
+      }
+      if (selectedPoints + node.numPoints > pointBudget) {
+        break;
+      }
+      float spacingPx =
+          node.spacing() * pixelsPerUnitAtUnitDistance
+              / distanceToBounds(node, cameraX, cameraY, cameraZ);
+      boolean refine = spacingPx > MAX_SCREEN_SPACE_ERROR_PX;
+      if (refine) {
+        for (Node child : node.children) {
+          if (child != null && !child.isEmpty()) {
+            push(child,
+                child.spacing() * pixelsPerUnitAtUnitDistance
+                    / distanceToBounds(child, cameraX, cameraY, cameraZ));
+          }
+        }
+      }
+      if (node.numPoints > 0) {
+        // Refined nodes are interleaved with the points of their children, which halves the
+        // spacing of the combined point set.
+        float pointSize = refine ? spacingPx / 2 : spacingPx;
+        select(node, Math.max(MIN_POINT_SIZE_PX, Math.min(MAX_POINT_SIZE_PX, pointSize)));
+      }
+    }
+    if (loader != null) {
+      loader.afterSelection();
+    }
+  }
+
+  private static float distanceToBounds(Node node, float x, float y, float z) {
+    float dx = Math.max(Math.max(node.minX - x, x - node.maxX), 0);
+    float dy = Math.max(Math.max(node.minY - y, y - node.maxY), 0);
+    float dz = Math.max(Math.max(node.minZ - z, z - node.maxZ), 0);
+    // Avoid division by zero when the camera is inside the node.
+    return Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz), 0.05f);
+  }
+
+  private void select(Node node, float pointSize) {
+    if (selectedCount == selectedNodes.length) {
+      Node[] nodes = new Node[selectedCount * 2];
+      System.arraycopy(selectedNodes, 0, nodes, 0, selectedCount);
+      selectedNodes = nodes;
+      float[] sizes = new float[selectedCount * 2];
+      System.arraycopy(selectedPointSizes, 0, sizes, 0, selectedCount);
+      selectedPointSizes = sizes;
+    }
+    selectedNodes[selectedCount] = node;
+    selectedPointSizes[selectedCount] = pointSize;
+    ++selectedCount;
+    selectedPoints += node.numPoints;
+  }
+
+  private void push(Node node, float priority) {
+    if (heapSize == heapNodes.length) {
+      Node[] nodes = new Node[heapSize * 2];
+      System.arraycopy(heapNodes, 0, nodes, 0, heapSize);
+      heapNodes = nodes;
+      float[] priorities = new float[heapSize * 2];
+      System.arraycopy(heapPriorities, 0, priorities, 0, heapSize);
+      heapPriorities = priorities;
+    }
+    int i = heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (heapPriorities[parent] >= priority) {
+        break;
+      }
+      heapNodes[i] = heapNodes[parent];
+      heapPriorities[i] = heapPriorities[parent];
+      i = parent;
+    }
+    heapNodes[i] = node;
+    heapPriorities[i] = priority;
+  }
+
+  private Node pop() {
+    Node top = heapNodes[0];
+    --heapSize;
+    Node last = heapNodes[heapSize];
+    float lastPriority = heapPriorities[heapSize];
+    heapNodes[heapSize] = null;
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && heapPriorities[child + 1] > heapPriorities[child]) {
+        ++child;
+      }
+      if (heapPriorities[child] <= lastPriority) {
+        break;
+      }
+      heapNodes[i] = heapNodes[child];
+      heapPriorities[i] = heapPriorities[child];
+      i = child;
+    }
+    if (heapSize > 0) {
+      heapNodes[i] = last;
+      heapPriorities[i] = lastPriority;
+    }
+    return top;
+  }
+
+  /** Number of nodes chosen by the last call to {@link #selectNodes}. */
+  public int getSelectedCount() {
+    return selectedCount;
+  }
+
+  public Node getSelectedNode(int index) {
+    return selectedNodes[index];
+  }
+
+  /** Point size in pixels to draw the selected node with. */
+  public float getSelectedPointSize(int index) {
+    return selectedPointSizes[index];
+  }
+
+  /** Number of points in the nodes chosen by the last call to {@link #selectNodes}. */
+  public int getSelectedPoints() {
+    return selectedPoints;
+  }
+
+  /** Number of nodes rejected by frustum culling in the last call to {@link #selectNodes}. */
+  public int getCulledNodes() {
+    return culledNodes;
+  }
+
+  /** Number of points in the subtrees rejected by the last call to {@link #selectNodes}. */
+  public int getCulledPoints() {
+    return culledPoints;
+  }
+
+  /** Number of points stored in the hierarchy. */
+  public int getTotalPoints() {
+    return totalPoints;
+  }
+
+  /** Calls the visitor for every node, parents before children. */
+  public void forEachNode(NodeVisitor visitor) {
+    if (root != null) {
+      visit(root, visitor);
+    }
+  }
+
+  private static void visit(Node node, NodeVisitor visitor) {
+    visitor.visit(node);
+    for (Node child : node.children) {
+      if (child != null) {
+        visit(child, visitor);
+      }
+    }
+  }
+
+  /** Callback of {@link #forEachNode}. */
+  interface NodeVisitor {
+    void visit(Node node);
+  }
+
+  /** Provides the points of out-of-core nodes, see {@link PointTileSet}. */
+  interface NodeLoader {
+    /**
+     * Returns whether the points of the node are in memory, and requests them otherwise.
+     *
+     * @param priority Projected point spacing of the node, larger values are more urgent.
+     */
+    boolean ensureLoaded(Node node, float priority);
+
+    /** Called at the end of every {@link #selectNodes} call. */
+    void afterSelection();
+  }
+
+  /** Replaces the hierarchy by nodes whose points are provided by the loader. */
+  void setOutOfCore(Node root, int totalPoints, NodeLoader loader) {
+    this.root = root;
+    this.totalPoints = totalPoints;
+    this.loader = loader;
+  }
+}
@@ -0,0 +1,148 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import java.util.Arrays;
+
+/**
+ * Append-only store of the colored world space points accumulated while scanning.
+ *
+ * <p>Points are written into fixed size chunks of primitive arrays by a single writer thread, and
+ * made visible to other threads in batches by {@link #publish()}. Published points are never
+ * modified, and full chunks are never moved, so a {@link Snapshot} is just the chunk directory and
+ * the point count at the time of the last publish. Readers on other threads can therefore
+ * serialize a consistent view while scanning continues, without copying points and without
+ * blocking the writer.
+ *
+ * <p>{@link #add} and {@link #publish()} must be called on the writer thread, the other methods
+ * on any thread.
+ */
+public final class PointStore {
+  /** Number of points per chunk. */
+  public static final int CHUNK_POINTS = 1 << 16;
+
+  private static final int INITIAL_CHUNKS = 16;
+
+  /** An immutable view of the points published so far. */
+  public static final class Snapshot {
+    private final Chunk[] chunks;
+    private final int size;
+
+    private Snapshot(Chunk[] chunks, int size) {
+      this.chunks = chunks;
+      this.size = size;
+    }
+
+    /** Number of points in the snapshot. */
+    public int size() {
+      return size;
+    }
+
+    /** Number of chunks holding the points of the snapshot, the last one may be partial. */
+    public int getChunkCount() {
+      return (size + CHUNK_POINTS - 1) / CHUNK_POINTS;
+    }
+
+    /** Number of points of the snapshot in the given chunk. */
+    public int getChunkSize(int chunk) {
+      return Math.min(CHUNK_POINTS, size - chunk * CHUNK_POINTS);
+    }
+
+    /**
+     * X, Y, Z of the points of the given chunk. Only the first {@link #getChunkSize} points belong
+     * to the snapshot, the array must not be modified.
+     */
+    public float[] getPositions(int chunk) {
+      return chunks[chunk].positions;
+    }
+
+    /**
+     * Colors of the points of the given chunk, packed as 0xRRGGBB. Only the first {@link
+     * #getChunkSize} points belong to the snapshot, the array must not be modified.
+     */
+    public int[] getColors(int chunk) {
+      return chunks[chunk].colors;
+    }
+  }
+
+  private static final class Chunk {
+    final float[] positions;
+    final int[] colors;
+
+    Chunk() {
+      this(new float[CHUNK_POINTS * 3], new int[CHUNK_POINTS]);
+    }
+
+    Chunk(float[] positions, int[] colors) {
+      this.positions = positions;
+      this.colors = colors;
+    }
+  }
+
+  /**
+   * Creates a snapshot over points decoded elsewhere, for example read back from a file.
+   *
+   * @param positions X, Y, Z per point, one array per chunk of {@link #CHUNK_POINTS} points.
+   * @param colors Packed 0xRRGGBB per point, one array per chunk.
+   * @param size Total number of points, every chunk but the last must be full.
+   */
+  public static Snapshot wrap(float[][] positions, int[][] colors, int size) {
+    Chunk[] chunks = new Chunk[positions.length];
+    for (int i = 0; i < chunks.length; ++i) {
+      chunks[i] = new Chunk(positions[i], colors[i]);
+    }
+    return new Snapshot(chunks, size);
+  }
+
+  // Writer state. The directory array is copied when it grows, so snapshots holding the previous
+  // directory are unaffected.
+  private Chunk[] chunks = new Chunk[INITIAL_CHUNKS];
+  private int size;
+
+  private volatile Snapshot published = new Snapshot(chunks, 0);
+  private volatile boolean clearRequested;
+
+  /** Appends a point, visible to readers after the next {@link #publish()}. */
+  public void add(float x, float y, float z, int r, int g, int b) {
+    int chunkIndex = size / CHUNK_POINTS;
+    int offset = size % CHUNK_POINTS;
+    if (offset == 0) {
+      if (chunkIndex == chunks.length) {
+        chunks = Arrays.copyOf(chunks, chunks.length * 2);
+      }
+      chunks[chunkIndex] = new Chunk();
+    }
+    Chunk chunk = chunks[chunkIndex];
+    chunk.positions[offset * 3] = x;
+    chunk.positions[offset * 3 + 1] = y;
+    chunk.positions[offset * 3 + 2] = z;
+    chunk.colors[offset] = (r << 16) | (g << 8) | b;
+    ++size;
+  }
+
+  /**
+   * Makes the points added since the last call visible to {@link #snapshot()}. If {@link #clear()}
+   * was called in the meantime, the points are discarded instead.
+   */
+  public synchronized void publish() {
+    if (clearRequested) {
+      clearRequested = false;
+      chunks = new Chunk[INITIAL_CHUNKS];
+      size = 0;
+    }
+    // The volatile write orders the point writes above before any read through the snapshot.
+    published = new Snapshot(chunks, size);
+  }
+
+  /** Returns the points published so far. The snapshot stays valid and unchanged forever. */
+  public Snapshot snapshot() {
+    return published;
+  }
+
+  /**
+   * Removes all points. Snapshots taken before keep their points. The writer drops its state on
+   * its next {@link #publish()}, the snapshot is emptied right away.
+   */
+  public synchronized void clear() {
+    clearRequested = true;
+    published = new Snapshot(new Chunk[0], 0);
+  }
+}
@@ -0,0 +1,369 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import com.google.ar.core.examples.java.common.io.PlyReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes the tile files read by {@link PointTileSet}.
+ *
+ * <p>The hierarchy is the same as the one of {@link PointLodOctree}, but it is built top-down with
+ * bounded memory, so scans larger than the heap can be converted. Every node reads its input
+ * points once: it keeps the ones that fall into a free cell of its subsampling grid and spills the
+ * others to one temporary file per child octant. Once the input is consumed, the points of the
+ * node are appended to the output and released, and the children are built one after the other
+ * from their spill files. Only the points of a single node and the write buffers of its children
+ * are held in memory at any time.
+ */
+final class PointTileBuilder {
+  // Size of the read and write buffers of the output and the spill files.
+  private static final int BUFFER_BYTES = 1 << 16;
+
+  /** Receives the points of a {@link PointSource}. Colors and confidence are in [0, 1]. */
+  interface PointConsumer {
+    void accept(float x, float y, float z, float confidence, float r, float g, float b)
+        throws IOException;
+  }
+
+  /** Points that can be iterated several times. */
+  interface PointSource {
+    void forEach(PointConsumer consumer) throws IOException;
+  }
+
+  /** The points of a snapshot, for example of the live {@link PointStore}, with confidence 1. */
+  static PointSource sourceOf(PointStore.Snapshot points) {
+    return consumer -> {
+      for (int chunk = 0; chunk < points.getChunkCount(); ++chunk) {
+        float[] positions = points.getPositions(chunk);
+        int[] colors = points.getColors(chunk);
+        for (int i = 0; i < points.getChunkSize(chunk); ++i) {
+          int color = colors[i];
+          consumer.accept(
+              positions[i * 3],
+              positions[i * 3 + 1],
+              positions[i * 3 + 2],
+              1.0f,
+              ((color >> 16) & 0xff) / 255.0f,
+              ((color >> 8) & 0xff) / 255.0f,
+              (color & 0xff) / 255.0f);
+        }
+      }
+    };
+  }
+
+  /**
+   * The vertices of a PLY file, read through its memory-mapped property views. Colors default to
+   * white and confidence to 1 when the file does not have them.
+   */
+  static PointSource sourceOf(PlyReader ply) throws IOException {
+    PlyReader.Property x = ply.getProperty("x");
+    PlyReader.Property y = ply.getProperty("y");
+    PlyReader.Property z = ply.getProperty("z");
+    if (x == null || y == null || z == null) {
+      throw new IOException("PLY vertices have no position");
+    }
+    PlyReader.Property red = ply.getProperty("red");
+    PlyReader.Property green = ply.getProperty("green");
+    PlyReader.Property blue = ply.getProperty("blue");
+    boolean hasColor = red != null && green != null && blue != null;
+    PlyReader.Property confidence = ply.getProperty("confidence");
+    return consumer -> {
+      for (int i = 0; i < ply.getVertexCount(); ++i) {
+        consumer.accept(
+            x.getFloat(i),
+            y.getFloat(i),
+            z.getFloat(i),
+            confidence != null ? confidence.getFloat(i) : 1.0f,
+            hasColor ? red.getInt(i) / 255.0f : 1.0f,
+            hasColor ? green.getInt(i) / 255.0f : 1.0f,
+            hasColor ? blue.getInt(i) / 255.0f : 1.0f);
+      }
+    };
+  }
+
+  private final File tempDir;
+  private final FileChannel output;
+  private final ByteBuffer outputBuffer =
+      ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final IdentityHashMap<PointLodOctree.Node, Long> pointOffsets = new IdentityHashMap<>();
+  private long outputPosition = PointTileSet.HEADER_BYTES;
+  private int nodeCount;
+  private int spillFileCount;
+
+  private PointTileBuilder(FileChannel output, File tempDir) {
+    this.output = output;
+    this.tempDir = tempDir;
+  }
+
+  /**
+   * Builds the tile file of the points, see {@link PointTileSet} for the layout. The file is only
+   * replaced once it is complete.
+   *
+   * @param tempDir Directory for the spill files, which are deleted as soon as they are consumed.
+   *     It needs free space for about twice the points at 16 bytes each.
+   */
+  static void build(PointSource source, File file, File tempDir) throws IOException {
+    float[] bounds = {
+      Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+      Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY
+    };
+    int[] totalPoints = new int[1];
+    source.forEach(
+        (x, y, z, confidence, r, g, b) -> {
+          bounds[0] = Math.min(bounds[0], x);
+          bounds[1] = Math.min(bounds[1], y);
+          bounds[2] = Math.min(bounds[2], z);
+          bounds[3] = Math.max(bounds[3], x);
+          bounds[4] = Math.max(bounds[4], y);
+          bounds[5] = Math.max(bounds[5], z);
+          ++totalPoints[0];
+        });
+
+    // The file is built under a temporary name, so that an interrupted build never leaves a tile
+    // file without a header.
+    File partial = new File(file.getPath() + ".tmp");
+    boolean complete = false;
+    try (RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        FileChannel channel = raf.getChannel()) {
+      channel.truncate(0);
+      PointTileBuilder builder = new PointTileBuilder(channel, tempDir);
+      PointLodOctree.Node root = null;
+      if (totalPoints[0] > 0) {
+        float halfSize =
+            Math.max(
+                    Math.max(bounds[3] - bounds[0], bounds[4] - bounds[1]),
+                    bounds[5] - bounds[2])
+                / 2;
+        // The root is slightly larger than the bounds, so that no point lies on its border.
+        root =
+            new PointLodOctree.Node(
+                (bounds[0] + bounds[3]) / 2,
+                (bounds[1] + bounds[4]) / 2,
+                (bounds[2] + bounds[5]) / 2,
+                Math.max(halfSize * 1.001f, PointLodOctree.MIN_HALF_SIZE_METERS));
+        builder.process(root, source);
+      }
+      builder.finish(root);
+      complete = true;
+    } finally {
+      if (!complete) {
+        partial.delete();
+      }
+    }
+    if (!partial.renameTo(file)) {
+      partial.delete();
+      throw new IOException("Failed to rename " + partial + " to " + file);
+    }
+  }
+
+  /** Reads the input of the node once, writes its points and then builds its children. */
+  private void process(PointLodOctree.Node node, PointSource input) throws IOException {
+    SpillFile[] spills = new SpillFile[8];
+    try {
+      input.forEach(
+          (x, y, z, confidence, r, g, b) -> {
+            node.expandBounds(x, y, z);
+            if (node.occupyCell(x, y, z)) {
+              node.append(x, y, z, confidence, r, g, b);
+              return;
+            }
+            if (node.halfSize < PointLodOctree.MIN_HALF_SIZE_METERS) {
+              // The cell is already represented at the finest level, drop the duplicate.
+              return;
+            }
+            int octant = node.octant(x, y, z);
+            if (spills[octant] == null) {
+              spills[octant] = new SpillFile(new File(tempDir, "tile" + spillFileCount++ + ".tmp"));
+            }
+            spills[octant].write(x, y, z, confidence, r, g, b);
+          });
+      for (SpillFile spill : spills) {
+        if (spill != null) {
+          spill.closeWriter();
+        }
+      }
+
+      writePoints(node);
+      node.subtreePoints = node.numPoints;
+      for (int octant = 0; octant < 8; ++octant) {
+        if (spills[octant] != null) {
+          PointLodOctree.Node child = node.getOrCreateChild(octant);
+          process(child, spills[octant]);
+          spills[octant].delete();
+          spills[octant] = null;
+          node.subtreePoints += child.subtreePoints;
+        }
+      }
+    } finally {
+      for (SpillFile spill : spills) {
+        if (spill != null) {
+          spill.closeWriter();
+          spill.delete();
+        }
+      }
+    }
+  }
+
+  /** Appends the points of the node to the output and releases them. */
+  private void writePoints(PointLodOctree.Node node) throws IOException {
+    pointOffsets.put(node, outputPosition + outputBuffer.position());
+    float[] data = node.data;
+    for (int i = 0; i < node.numPoints; ++i) {
+      if (outputBuffer.remaining() < PointTileSet.RECORD_BYTES) {
+        flushOutput();
+      }
+      int offset = i * PointLodOctree.FLOATS_PER_POINT;
+      PointTileSet.writeRecord(
+          outputBuffer,
+          data[offset],
+          data[offset + 1],
+          data[offset + 2],
+          data[offset + 3],
+          data[offset + 4],
+          data[offset + 5],
+          data[offset + 6]);
+    }
+    node.data = null;
+    node.releaseGrid();
+    ++nodeCount;
+  }
+
+  /** Writes the hierarchy after the points, and then the header. */
+  private void finish(PointLodOctree.Node root) throws IOException {
+    long hierarchyOffset = outputPosition + outputBuffer.position();
+    if (root != null) {
+      writeHierarchy(root);
+    }
+    flushOutput();
+
+    ByteBuffer header =
+        ByteBuffer.allocate(PointTileSet.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header
+        .put(PointTileSet.MAGIC)
+        .putInt(PointTileSet.VERSION)
+        .putInt(nodeCount)
+        .putInt(root != null ? root.subtreePoints : 0)
+        .putLong(hierarchyOffset);
+    header.flip();
+    long position = 0;
+    while (header.hasRemaining()) {
+      position += output.write(header, position);
+    }
+    output.force(false);
+  }
+
+  private void writeHierarchy(PointLodOctree.Node node) throws IOException {
+    if (outputBuffer.remaining() < PointTileSet.HIERARCHY_ENTRY_BYTES) {
+      flushOutput();
+    }
+    int childMask = 0;
+    for (int octant = 0; octant < 8; ++octant) {
+      if (node.children[octant] != null) {
+        childMask |= 1 << octant;
+      }
+    }
+    outputBuffer
+        .putFloat(node.centerX)
+        .putFloat(node.centerY)
+        .putFloat(node.centerZ)
+        .putFloat(node.halfSize)
+        .put((byte) childMask)
+        .putInt(node.numPoints)
+        .putInt(node.subtreePoints)
+        .putFloat(node.minX)
+        .putFloat(node.minY)
+        .putFloat(node.minZ)
+        .putFloat(node.maxX)
+        .putFloat(node.maxY)
+        .putFloat(node.maxZ)
+        .putLong(pointOffsets.get(node));
+    for (PointLodOctree.Node child : node.children) {
+      if (child != null) {
+        writeHierarchy(child);
+      }
+    }
+  }
+
+  private void flushOutput() throws IOException {
+    outputBuffer.flip();
+    while (outputBuffer.hasRemaining()) {
+      outputPosition += output.write(outputBuffer, outputPosition);
+    }
+    outputBuffer.clear();
+  }
+
+  /** Points passed down to a child octant, written and then read back sequentially. */
+  private static final class SpillFile implements PointSource {
+    private final File file;
+    private RandomAccessFile writer;
+    private final ByteBuffer buffer =
+        ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    SpillFile(File file) throws IOException {
+      this.file = file;
+      writer = new RandomAccessFile(file, "rw");
+      writer.setLength(0);
+    }
+
+    void write(float x, float y, float z, float confidence, float r, float g, float b)
+        throws IOException {
+      if (buffer.remaining() < PointTileSet.RECORD_BYTES) {
+        flush();
+      }
+      PointTileSet.writeRecord(buffer, x, y, z, confidence, r, g, b);
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      FileChannel channel = writer.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    void closeWriter() throws IOException {
+      if (writer != null) {
+        try {
+          flush();
+        } finally {
+          writer.close();
+          writer = null;
+        }
+      }
+    }
+
+    @Override
+    public void forEach(PointConsumer consumer) throws IOException {
+      float[] point = new float[PointLodOctree.FLOATS_PER_POINT];
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+          FileChannel channel = raf.getChannel()) {
+        buffer.clear();
+        while (channel.read(buffer) >= 0 || buffer.position() > 0) {
+          buffer.flip();
+          if (buffer.remaining() < PointTileSet.RECORD_BYTES) {
+            // Only a partial record is left at the end of the file.
+            break;
+          }
+          while (buffer.remaining() >= PointTileSet.RECORD_BYTES) {
+            PointTileSet.readRecord(buffer, point, 0);
+            consumer.accept(
+                point[0], point[1], point[2], point[3], point[4], point[5], point[6]);
+          }
+          buffer.compact();
+        }
+      } finally {
+        buffer.clear();
+      }
+    }
+
+    void delete() {
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.util.Log;
+import com.google.ar.core.examples.java.common.rendering.GlStateCache;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Out-of-core {@link PointLodOctree}, whose node points stay on disk until the view needs them.
+ *
+ * <p>A tile file, written by {@link PointTileBuilder}, holds the points of every node as a
+ * separately addressable block, followed by the hierarchy. Opening it only reads the hierarchy.
+ * During {@link PointLodOctree#selectNodes} the missing nodes that the view would refine into are
+ * requested with their projected point spacing as priority, and read on the IO scheduler, the most
+ * urgent first. When the nodes in memory exceed {@link #MAX_RESIDENT_POINTS}, the ones that were
+ * not selected for the longest time are evicted, together with their GPU buffers. The file layout,
+ * all little endian:
+ *
+ * <pre>
+ * header:     "RDPT", int version, int node count, int point count, long hierarchy offset
+ * points:     per node, 16 byte records: float X, Y, Z, uchar red, green, blue, confidence
+ * hierarchy:  per node in pre-order: float center X, Y, Z, half size, byte child mask,
+ *             int points, int subtree points, float min X, Y, Z, max X, Y, Z, long points offset
+ * </pre>
+ */
+final class PointTileSet implements PointLodOctree.NodeLoader {
+  private static final String TAG = PointTileSet.class.getSimpleName();
+
+  public static final String FILE_EXTENSION = ".tiles";
+
+  static final byte[] MAGIC = "RDPT".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 24;
+  static final int RECORD_BYTES = 16;
+  static final int HIERARCHY_ENTRY_BYTES = 4 * 4 + 1 + 2 * 4 + 6 * 4 + 8;
+
+  /** Nodes in memory are evicted beyond this many points, about 56 MB of node data. */
+  private static final int MAX_RESIDENT_POINTS = 2000000;
+  // Reads queued on the IO scheduler at the same time.
+  private static final int MAX_LOADS_IN_FLIGHT = 4;
+
+  private static final float[] NO_POINTS = new float[0];
+
+  /** The points of a node in the file, and their loading state. */
+  private static final class Tile {
+    final PointLodOctree.Node node;
+    final long offset;
+    final int points;
+
+    // Set by the IO thread, installed into the node on the GL thread.
+    volatile float[] loadedData;
+    volatile boolean failed;
+    boolean requested;
+    boolean resident;
+    float priority;
+    long lastUsedFrame;
+
+    Tile(PointLodOctree.Node node, long offset, int points) {
+      this.node = node;
+      this.offset = offset;
+      this.points = points;
+    }
+  }
+
+  private final File file;
+  private final PointLodOctree hierarchy = new PointLodOctree();
+  private final IdentityHashMap<PointLodOctree.Node, Tile> tiles = new IdentityHashMap<>();
+
+  // GL thread state.
+  private final ArrayList<Tile> requests = new ArrayList<>();
+  private final ArrayList<Tile> residentTiles = new ArrayList<>();
+  private int residentPoints;
+  private long frame;
+  private final AtomicInteger loadsInFlight = new AtomicInteger();
+
+  private PointTileSet(File file) {
+    this.file = file;
+  }
+
+  /** Reads the hierarchy of a tile file. The points are loaded on demand while drawing. */
+  static PointTileSet open(File file) throws IOException {
+    PointTileSet tileSet = new PointTileSet(file);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = read(channel, 0, HEADER_BYTES);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+        throw new IOException("Unsupported tile file " + file);
+      }
+      int nodeCount = header.getInt();
+      int totalPoints = header.getInt();
+      long hierarchyOffset = header.getLong();
+      ByteBuffer entries = read(channel, hierarchyOffset, nodeCount * HIERARCHY_ENTRY_BYTES);
+      PointLodOctree.Node root = nodeCount > 0 ? tileSet.readNode(entries) : null;
+      tileSet.hierarchy.setOutOfCore(root, totalPoints, tileSet);
+    }
+    return tileSet;
+  }
+
+  /** The hierarchy to draw, see {@link Renderer#setLoadedScan(PointLodOctree)}. */
+  PointLodOctree getHierarchy() {
+    return hierarchy;
+  }
+
+  private PointLodOctree.Node readNode(ByteBuffer entries) throws IOException {
+    if (!entries.hasRemaining()) {
+      throw new IOException("Truncated hierarchy in " + file);
+    }
+    PointLodOctree.Node node =
+        new PointLodOctree.Node(
+            entries.getFloat(), entries.getFloat(), entries.getFloat(), entries.getFloat());
+    int childMask = entries.get() & 0xff;
+    int points = entries.getInt();
+    node.subtreePoints = entries.getInt();
+    node.expandBounds(entries.getFloat(), entries.getFloat(), entries.getFloat());
+    node.expandBounds(entries.getFloat(), entries.getFloat(), entries.getFloat());
+    long offset = entries.getLong();
+    node.data = NO_POINTS;
+    if (points > 0) {
+      tiles.put(node, new Tile(node, offset, points));
+    }
+    for (int octant = 0; octant < 8; ++octant) {
+      if ((childMask & (1 << octant)) != 0) {
+        node.children[octant] = readNode(entries);
+      }
+    }
+    return node;
+  }
+
+  @Override
+  public boolean ensureLoaded(PointLodOctree.Node node, float priority) {
+    Tile tile = tiles.get(node);
+    if (tile == null) {
+      // Nodes without points of their own only group their children.
+      return true;
+    }
+    tile.lastUsedFrame = frame;
+    if (tile.resident) {
+      return true;
+    }
+    float[] data = tile.loadedData;
+    if (data != null) {
+      tile.loadedData = null;
+      tile.resident = true;
+      node.data = data;
+      node.numPoints = tile.points;
+      node.uploadedPoints = 0;
+      residentTiles.add(tile);
+      residentPoints += tile.points;
+      return true;
+    }
+    if (!tile.requested && !tile.failed) {
+      tile.priority = priority;
+      requests.add(tile);
+    }
+    return false;
+  }
+
+  @Override
+  public void afterSelection() {
+    if (!requests.isEmpty()) {
+      Collections.sort(requests, (a, b) -> Float.compare(b.priority, a.priority));
+      for (Tile tile : requests) {
+        if (loadsInFlight.get() >= MAX_LOADS_IN_FLIGHT) {
+          break;
+        }
+        tile.requested = true;
+        loadsInFlight.incrementAndGet();
+        Schedulers.io().scheduleDirect(() -> load(tile));
+      }
+      requests.clear();
+    }
+    evictIfNeeded();
+    ++frame;
+  }
+
+  /** Reads the points of the tile, on the IO scheduler. */
+  private void load(Tile tile) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer records = read(channel, tile.offset, tile.points * RECORD_BYTES);
+      float[] data = new float[tile.points * PointLodOctree.FLOATS_PER_POINT];
+      for (int i = 0; i < tile.points; ++i) {
+        readRecord(records, data, i * PointLodOctree.FLOATS_PER_POINT);
+      }
+      tile.loadedData = data;
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to load a tile of " + file, e);
+      tile.failed = true;
+    } finally {
+      loadsInFlight.decrementAndGet();
+    }
+  }
+
+  /** Releases the least recently selected nodes, never the ones selected by this frame. */
+  private void evictIfNeeded() {
+    if (residentPoints <= MAX_RESIDENT_POINTS) {
+      return;
+    }
+    Collections.sort(residentTiles, (a, b) -> Long.compare(a.lastUsedFrame, b.lastUsedFrame));
+    int evicted = 0;
+    while (residentPoints > MAX_RESIDENT_POINTS && evicted < residentTiles.size()) {
+      Tile tile = residentTiles.get(evicted);
+      if (tile.lastUsedFrame == frame) {
+        break;
+      }
+      PointLodOctree.Node node = tile.node;
+      if (node.vbo != 0) {
+        GlStateCache.deleteBuffer(node.vbo);
+        node.vbo = 0;
+        node.vboCapacityBytes = 0;
+      }
+      node.data = NO_POINTS;
+      node.numPoints = 0;
+      node.uploadedPoints = 0;
+      tile.resident = false;
+      tile.requested = false;
+      residentPoints -= tile.points;
+      ++evicted;
+    }
+    residentTiles.subList(0, evicted).clear();
+  }
+
+  /** Appends a point record, see the class comment. */
+  static void writeRecord(
+      ByteBuffer buffer, float x, float y, float z, float confidence, float r, float g, float b) {
+    buffer.putFloat(x);
+    buffer.putFloat(y);
+    buffer.putFloat(z);
+    buffer.put(toUnsignedByte(r));
+    buffer.put(toUnsignedByte(g));
+    buffer.put(toUnsignedByte(b));
+    buffer.put(toUnsignedByte(confidence));
+  }
+
+  /** Reads a point record into the {@link PointLodOctree#FLOATS_PER_POINT} layout. */
+  static void readRecord(ByteBuffer buffer, float[] point, int offset) {
+    point[offset] = buffer.getFloat();
+    point[offset + 1] = buffer.getFloat();
+    point[offset + 2] = buffer.getFloat();
+    float r = (buffer.get() & 0xff) / 255.0f;
+    float g = (buffer.get() & 0xff) / 255.0f;
+    float b = (buffer.get() & 0xff) / 255.0f;
+    point[offset + 3] = (buffer.get() & 0xff) / 255.0f;
+    point[offset + 4] = r;
+    point[offset + 5] = g;
+    point[offset + 6] = b;
+  }
+
+  private static byte toUnsignedByte(float value) {
+    return (byte) Math.max(0, Math.min(255, Math.round(value * 255)));
+  }
+
+  static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
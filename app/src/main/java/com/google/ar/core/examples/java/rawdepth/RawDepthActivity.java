@@ -16,19 +16,24 @@
 
 package com.google.ar.core.examples.java.rawdepth;
 
+import android.app.ActivityManager;
 import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.PopupMenu;
+import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.google.ar.core.ArCoreApk;
 import com.google.ar.core.Camera;
 import com.google.ar.core.Config;
 import com.google.ar.core.Frame;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.TrackingState;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
@@ -36,7 +41,17 @@ import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
+import com.google.ar.core.examples.java.common.io.CompressedPointCloud;
+import com.google.ar.core.examples.java.common.io.PlyReader;
+import com.google.ar.core.examples.java.common.io.PointCloudExporter;
+import com.google.ar.core.examples.java.common.io.PointCloudExporters;
 import com.google.ar.core.examples.java.common.io.PlyWriter;
+import com.google.ar.core.examples.java.common.io.StreamingPlyWriter;
+import com.google.ar.core.examples.java.common.io.TiledPlyExporter;
+import com.google.ar.core.examples.java.common.rendering.GlStateCache;
+import com.google.ar.core.examples.java.common.rendering.GpuProfiler;
+import com.google.ar.core.examples.java.common.rendering.ShaderProgramCache;
+import com.google.ar.core.examples.java.common.rendering.ShaderUtil;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.NotYetAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
@@ -44,7 +59,15 @@ import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -58,6 +81,7 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
   private ImageView btn_camera;
+  private TextView perfOverlay;
 
   private boolean installRequested;
   private boolean depthReceived;
@@ -67,11 +91,45 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   private DisplayRotationHelper displayRotationHelper;
   private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
 
-  private final Renderer renderer = new Renderer();
+  private final ScanSession scanSession = new ScanSession();
+  private final Renderer renderer = new Renderer(scanSession);
+
+  // Optional stages fed with the converted frames, see DepthFramePipeline.
+  private final DepthFramePipeline framePipeline = new DepthFramePipeline();
+  // The PLY export of the scan in progress, accessed on the UI thread.
+  private StreamingPlyWriter plyStream;
+  private DepthFramePipeline.Sink plySink;
+  // Journal of the scan in progress, for restoring it after the process is killed.
+  private ScanJournal scanJournal;
+  private DepthFramePipeline.Sink journalSink;
+  // Merges the points seen by several frames, for the exports of the stopped scan.
+  private PointDeduplicator pointDeduplicator;
+  private DepthFramePipeline.Sink deduplicationSink;
+
+  // Sizes the depth point budgets to hold 30 fps on the current device.
+  private final PointBudgetController pointBudgetController = new PointBudgetController(30.0f);
+
+  // Per-renderer CPU submit time, GPU time and draw calls, shown in the overlay and the log.
+  private final GpuProfiler gpuProfiler = new GpuProfiler();
+  private final int pointCloudSection = gpuProfiler.addSection("Point cloud");
 
   // This lock prevents accessing the frame images while Session is paused.
   private final Object frameInUseLock = new Object();
 
+  // Size of the synthetic point cloud exported by the debug export benchmark.
+  private static final int EXPORT_BENCHMARK_POINTS = 1000000;
+  // Interchange formats written in addition to the PLY file when a scan stops.
+  private static final List<PointCloudExporter> EXPORTERS_ON_STOP =
+      Arrays.asList(PointCloudExporters.PCD, PointCloudExporters.LAS, PointCloudExporters.GLB);
+  // Scans with more points are also exported as spatial tiles, see TiledPlyExporter.
+  private static final int TILED_EXPORT_MIN_POINTS = 5000000;
+  // Saved scans with more points are drawn out-of-core, see PointTileSet.
+  private static final int MAX_IN_MEMORY_SCAN_POINTS = 5000000;
+
+  // Culling statistics are logged once every this many rendered frames.
+  private static final int STATS_LOG_INTERVAL_FRAMES = 60;
+  private int renderedFrames = 0;
+
   /** The current raw depth image timestamp. */
   private long depthTimestamp = -1;
 
@@ -87,13 +145,45 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
+    // glGetError() stalls the pipeline, so release builds only check one frame out of every 60.
+    ShaderUtil.setGlErrorCheck(
+        BuildConfig.DEBUG ? ShaderUtil.GlErrorCheck.ALWAYS : ShaderUtil.GlErrorCheck.SAMPLED);
     surfaceView = findViewById(R.id.surfaceview);
     btn_camera =  findViewById(R.id.btn_camera);
+    perfOverlay = findViewById(R.id.perf_overlay);
+    perfOverlay.setVisibility(BuildConfig.DEBUG ? View.VISIBLE : View.GONE);
+    btn_camera.setOnLongClickListener(
+        view -> {
+          if (_state != CameraState.RUNNING) {
+            return false;
+          }
+          showSnapshotMenu(view);
+          return true;
+        });
+    findViewById(R.id.btn_switch)
+        .setOnLongClickListener(
+            view -> {
+              if (_state != CameraState.IDLE) {
+                return false;
+              }
+              loadLatestScan();
+              return true;
+            });
+    if (BuildConfig.DEBUG) {
+      findViewById(R.id.btn_blind)
+          .setOnLongClickListener(
+              view -> {
+                runExportBenchmark();
+                return true;
+              });
+    }
     displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
 
     // Set up rendering.
     surfaceView.setPreserveEGLContextOnPause(true);
-    surfaceView.setEGLContextClientVersion(2);
+    // An OpenGL ES 3 context runs the same shaders, and additionally exposes the timer queries
+    // used by the GPU profiler.
+    surfaceView.setEGLContextClientVersion(isGlEs3Supported() ? 3 : 2);
     surfaceView.setEGLConfigChooser(8, 8, 8, 0, 16, 0);
     surfaceView.setRenderer(this);
     surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
@@ -101,6 +191,13 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
 
     installRequested = false;
     depthReceived = false;
+    recoverInterruptedExports();
+  }
+
+  private boolean isGlEs3Supported() {
+    ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+    return activityManager != null
+        && activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
   }
 
   public void onClick(View view) {
@@ -109,19 +206,41 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
         switch(_state){
           case IDLE :
             btn_camera.setImageResource(R.drawable.camera_button_recording);
+            renderer.setLoadedScan(null);
+            scanSession.reset();
+            scanSession.start();
+            File plyFile = PlyWriter.newPlyFile(getFilesDir());
+            StreamingPlyWriter stream = new StreamingPlyWriter(plyFile);
+            plyStream = stream;
+            // The saved file and the journal must not miss frames when the storage stalls.
+            plySink =
+                framePipeline.addLosslessSink(
+                    "PLY export",
+                    frame -> stream.write(frame.points, frame.colors, frame.modelMatrix));
+            // Named like the PLY file, which tells the recovery whether the file was saved.
+            String scanName = plyFile.getName().substring(0, plyFile.getName().lastIndexOf('.'));
+            scanJournal = new ScanJournal(getJournalRoot(), scanName);
+            journalSink = framePipeline.addLosslessSink("Journal", scanJournal::append);
+            pointDeduplicator = new PointDeduplicator();
+            deduplicationSink =
+                framePipeline.addLosslessSink("Deduplication", pointDeduplicator::append);
             _state = CameraState.RUNNING;
             break;
           case RUNNING :
             btn_camera.setImageResource(R.drawable.camera_button);
             _state = CameraState.IDLE;
+            scanSession.stop();
             saveAsPly();
-            renderer.stopScanning();
+            exportDeduplicatedScan(scanSession.snapshot());
+            scanSession.reset();
             break;
         }
         break;
       case R.id.btn_blind:
         break;
       case R.id.btn_switch:
+        // Toggles between full resolution and level-of-detail rendering of the scan.
+        renderer.setLodEnabled(!renderer.isLodEnabled());
         break;
       default:
         break;
@@ -129,12 +248,282 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   }
 
   private void saveAsPly(){
-    PlyWriter plyWriter = new PlyWriter(this, Renderer.particleData);
-    plyWriter.writePLYFileInBackground();
+    StreamingPlyWriter stream = plyStream;
+    DepthFramePipeline.Sink sink = plySink;
+    ScanJournal journal = scanJournal;
+    DepthFramePipeline.Sink journaling = journalSink;
+    plyStream = null;
+    plySink = null;
+    scanJournal = null;
+    journalSink = null;
+    if (stream == null) {
+      return;
+    }
+    Completable journalClosed = journaling.close().onErrorComplete();
+    // The points were written while scanning, only the buffered frames and the header are left.
+    sink.close()
+        .onErrorComplete()
+        .andThen(Single.defer(stream::finish))
+        .subscribe(
+            file -> {
+              Toast.makeText(this, "Saved " + file.getName(), Toast.LENGTH_SHORT).show();
+              // The journal is only dropped once the scan is safely saved.
+              journalClosed
+                  .andThen(journal.delete())
+                  .subscribe(() -> {}, error -> Log.e(TAG, "Failed to delete the journal", error));
+            },
+            error -> {
+              Log.e(TAG, "Failed to export the point cloud", error);
+              Toast.makeText(this, "Failed to save the point cloud", Toast.LENGTH_LONG).show();
+            });
+  }
+
+  /**
+   * Exports the samples of the {@link PointDeduplicator} once it merged the remaining frames, or
+   * all captured points if deduplication failed.
+   */
+  private void exportDeduplicatedScan(PointStore.Snapshot allPoints) {
+    PointDeduplicator deduplicator = pointDeduplicator;
+    DepthFramePipeline.Sink sink = deduplicationSink;
+    pointDeduplicator = null;
+    deduplicationSink = null;
+    if (deduplicator == null) {
+      exportScan(allPoints);
+      return;
+    }
+    sink.close()
+        .andThen(deduplicator.snapshot())
+        .doFinally(deduplicator::close)
+        .observeOn(AndroidSchedulers.mainThread())
+        .subscribe(
+            samples -> {
+              Log.d(TAG, "Deduplicated " + deduplicator.getInputPoints() + " points into "
+                  + samples.size() + " samples, at " + deduplicator.getPointsPerSecond()
+                  + " points/s");
+              exportScan(samples);
+            },
+            error -> {
+              Log.e(TAG, "Failed to deduplicate the points", error);
+              exportScan(allPoints);
+            });
+  }
+
+  /**
+   * Writes the scan in the formats of {@link #EXPORTERS_ON_STOP}, next to the PLY file, so it can
+   * be opened by other tools without a conversion step. Large scans are additionally split into
+   * spatial tiles.
+   */
+  private void exportScan(PointStore.Snapshot points) {
+    List<PointCloudExporter> exporters = new ArrayList<>(EXPORTERS_ON_STOP);
+    if (points.size() > TILED_EXPORT_MIN_POINTS) {
+      exporters.add(new TiledPlyExporter());
+    }
+    for (PointCloudExporter exporter : exporters) {
+      PointCloudExporters.exportInBackground(this, exporter, points)
+          .subscribe(
+              file -> Log.d(TAG, "Exported " + file.getName()),
+              error -> {
+                Log.e(TAG, "Failed to export the point cloud as " + exporter.getName(), error);
+                Toast.makeText(
+                        this,
+                        "Failed to export the point cloud as " + exporter.getName(),
+                        Toast.LENGTH_LONG)
+                    .show();
+              });
+    }
+  }
+
+  /** Loads the most recently saved PLY scan, and shows it until the next scan starts. */
+  private void loadLatestScan() {
+    File latest = null;
+    File[] files = getFilesDir().listFiles((dir, name) -> name.endsWith(".ply"));
+    if (files != null) {
+      for (File file : files) {
+        if (latest == null || file.lastModified() > latest.lastModified()) {
+          latest = file;
+        }
+      }
+    }
+    if (latest == null) {
+      Toast.makeText(this, "No saved scan", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    File scanFile = latest;
+    long loadStart = System.nanoTime();
+    Single.fromCallable(
+            () -> {
+              PlyReader ply = PlyReader.open(scanFile);
+              if (ply.getVertexCount() <= MAX_IN_MEMORY_SCAN_POINTS) {
+                // The vertices are read from the mapped file and copied into the LOD hierarchy,
+                // which holds all of them in memory.
+                PointLodOctree scan = new PointLodOctree();
+                scan.insert(ply);
+                return scan;
+              }
+              // Larger scans are converted once into a tile file, whose nodes are then loaded
+              // and evicted while drawing.
+              String name = scanFile.getName();
+              File tiles =
+                  new File(
+                      getFilesDir(),
+                      name.substring(0, name.lastIndexOf('.')) + PointTileSet.FILE_EXTENSION);
+              if (!tiles.exists() || tiles.lastModified() < scanFile.lastModified()) {
+                PointTileBuilder.build(PointTileBuilder.sourceOf(ply), tiles, getCacheDir());
+              }
+              PointTileSet tileSet;
+              try {
+                tileSet = PointTileSet.open(tiles);
+              } catch (IOException e) {
+                // A tile file left unreadable by an older version is built again.
+                Log.w(TAG, "Rebuilding unreadable " + tiles, e);
+                PointTileBuilder.build(PointTileBuilder.sourceOf(ply), tiles, getCacheDir());
+                tileSet = PointTileSet.open(tiles);
+              }
+              return tileSet.getHierarchy();
+            })
+        .subscribeOn(Schedulers.io())
+        .observeOn(AndroidSchedulers.mainThread())
+        .subscribe(
+            scan -> {
+              renderer.setLoadedScan(scan);
+              String message =
+                  "Loaded " + scan.getTotalPoints() + " points of " + scanFile.getName() + " in "
+                      + (System.nanoTime() - loadStart) / 1000000 + " ms";
+              Log.d(TAG, message);
+              Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+            },
+            error -> {
+              Log.e(TAG, "Failed to load " + scanFile, error);
+              Toast.makeText(this, "Failed to load the scan", Toast.LENGTH_LONG).show();
+            });
+  }
+
+  /**
+   * Offers to export the points captured so far, while scanning continues, as a PLY file or as a
+   * smaller {@link CompressedPointCloud} file.
+   */
+  private void showSnapshotMenu(View anchor) {
+    PopupMenu menu = new PopupMenu(this, anchor);
+    MenuItem ply = menu.getMenu().add("Save snapshot as PLY");
+    menu.getMenu().add("Save compressed snapshot (" + CompressedPointCloud.FILE_EXTENSION + ")");
+    menu.setOnMenuItemClickListener(
+        item -> {
+          // The snapshot is fixed when it is taken, the GL thread keeps appending to the store.
+          PointStore.Snapshot points = scanSession.snapshot();
+          saveSnapshot(
+              item == ply
+                  ? new PlyWriter(this, points).writePLYFileInBackground()
+                  : CompressedPointCloud.writeInBackground(this, points));
+          return true;
+        });
+    menu.show();
+  }
+
+  /** Reports the export of a snapshot taken while scanning continues. */
+  private void saveSnapshot(Single<File> export) {
+    export.subscribe(
+        file -> Toast.makeText(this, "Saved " + file.getName(), Toast.LENGTH_SHORT).show(),
+        error -> {
+          Log.e(TAG, "Failed to export the point cloud", error);
+          Toast.makeText(this, "Failed to save the point cloud", Toast.LENGTH_LONG).show();
+        });
+  }
+
+  /**
+   * Measures the export throughput of every format, see {@link PlyExportBenchmark}. Runs on the
+   * current scan if there is one, otherwise on synthetic points.
+   */
+  private void runExportBenchmark() {
+    Toast.makeText(this, "Running export benchmark", Toast.LENGTH_SHORT).show();
+    PointStore.Snapshot scan = scanSession.snapshot();
+    Single.fromCallable(
+            () ->
+                PlyExportBenchmark.run(
+                    getCacheDir(),
+                    scan.size() > 0
+                        ? scan
+                        : PlyExportBenchmark.createPoints(EXPORT_BENCHMARK_POINTS)))
+        .subscribeOn(Schedulers.io())
+        .observeOn(AndroidSchedulers.mainThread())
+        .subscribe(
+            report -> Toast.makeText(this, report, Toast.LENGTH_LONG).show(),
+            error -> Log.e(TAG, "Export benchmark failed", error));
+  }
+
+  /**
+   * Completes the exports interrupted by the death of a previous process, then restores the
+   * interrupted scan from its journal, which only saves the scan if its export was lost.
+   */
+  private void recoverInterruptedExports() {
+    Single.fromCallable(() -> StreamingPlyWriter.recoverAll(getFilesDir()))
+        .subscribeOn(Schedulers.io())
+        .observeOn(AndroidSchedulers.mainThread())
+        .doFinally(this::recoverInterruptedScan)
+        .subscribe(
+            files -> {
+              if (!files.isEmpty()) {
+                Toast.makeText(this, "Recovered " + files.size() + " interrupted scans",
+                    Toast.LENGTH_LONG).show();
+              }
+            },
+            error -> Log.e(TAG, "Failed to recover the interrupted exports", error));
+  }
+
+  private File getJournalRoot() {
+    return new File(getFilesDir(), "scan_journal");
+  }
+
+  /**
+   * Shows the scan journaled by a previous process that was killed while scanning. ARCore starts a
+   * new world space in every session, so the scan is shown like a loaded one instead of being
+   * continued. The journal shares the name of the streamed PLY file of its scan. That file is
+   * normally completed by {@link #recoverInterruptedExports()}, otherwise the journal saves it. The
+   * journal is only deleted once the PLY file exists.
+   */
+  private void recoverInterruptedScan() {
+    File root = getJournalRoot();
+    Single.fromCallable(
+            () -> {
+              ScanJournal.Recovery recovery = ScanJournal.recover(root);
+              PointLodOctree scan = new PointLodOctree();
+              if (recovery == null) {
+                return scan;
+              }
+              File file = new File(getFilesDir(), recovery.getName() + ".ply");
+              if (!file.exists()) {
+                // Written under a temporary name, so that a partial file is never loaded as a scan.
+                File temp = new File(file.getPath() + ".tmp");
+                PlyWriter.write(recovery.points, temp, PlyWriter.Format.BINARY_LITTLE_ENDIAN);
+                if (!temp.renameTo(file)) {
+                  throw new IOException("Failed to rename " + temp + " to " + file);
+                }
+              }
+              recovery.delete();
+              PointTileBuilder.sourceOf(recovery.points).forEach(scan::insert);
+              return scan;
+            })
+        .subscribeOn(Schedulers.io())
+        .observeOn(AndroidSchedulers.mainThread())
+        .subscribe(
+            scan -> {
+              if (scan.getTotalPoints() > 0) {
+                renderer.setLoadedScan(scan);
+                Toast.makeText(this, "Restored " + scan.getTotalPoints()
+                    + " points of an interrupted scan", Toast.LENGTH_LONG).show();
+              }
+            },
+            error -> Log.e(TAG, "Failed to restore the interrupted scan", error));
   }
 
   @Override
   protected void onDestroy() {
+    // Completes the file of a scan in progress, the points captured so far are kept.
+    saveAsPly();
+    if (pointDeduplicator != null) {
+      // The deduplication thread stops once the buffered frames are merged.
+      deduplicationSink.close().onErrorComplete().doFinally(pointDeduplicator::close).subscribe();
+    }
+    scanSession.close();
     if (session != null) {
       // Explicitly close ARCore Session to release native resources.
       // Review the API reference for important considerations before calling close() in apps with
@@ -260,10 +649,15 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   @Override
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+    // A new context starts with default state, whatever the cache remembers from the old one.
+    GlStateCache.invalidate();
+    gpuProfiler.createOnGlThread();
 
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
     try {
       renderer.createOnGlThread(/*context=*/ this);
+      Log.d(TAG, "Shader programs loaded from cache " + ShaderProgramCache.getCacheHits()
+          + ", compiled " + ShaderProgramCache.getCacheMisses());
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
     }
@@ -273,10 +667,14 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
   public void onSurfaceChanged(GL10 gl, int width, int height) {
     displayRotationHelper.onSurfaceChanged(width, height);
     GLES20.glViewport(0, 0, width, height);
+    renderer.setViewportSize(width, height);
   }
 
   @Override
   public void onDrawFrame(GL10 gl) {
+    ShaderUtil.onFrameStart();
+    gpuProfiler.beginFrame();
+
     // Clear screen to notify driver it should not load any pixels from previous frame.
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
@@ -284,7 +682,9 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
       return;
     }
 
-    if(_state == CameraState.RUNNING){
+    // A loaded scan is shown in the live camera pose, without capturing new depth.
+    if (_state == CameraState.RUNNING || renderer.hasLoadedScan()) {
+      pointBudgetController.onFrameStart(System.nanoTime());
       // Synchronize prevents session.update() call while paused, see note in onPause().
       synchronized (frameInUseLock) {
         // Notify ARCore that the view size changed so that the perspective matrix can be adjusted.
@@ -310,6 +710,8 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
             // If not tracking, do not render the point cloud.
             return;
           }
+          // Picks up the anchor poses refined by this update.
+          scanSession.getAnchors().update();
 
           // Check if the frame contains new depth data or a 3D reprojection of the previous data. See
           // documentation of acquireRawDepthImage16Bits for more details.
@@ -322,25 +724,57 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
             containsNewDepthData = false;
           }
 
-          if (containsNewDepthData) {
+          float[] projectionMatrix = new float[16];
+          camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+          float[] viewMatrix = new float[16];
+          camera.getViewMatrix(viewMatrix, 0);
+
+          // Frames seen from nearly the pose of the last keyframe are neither converted nor
+          // anchored.
+          KeyframeSelector keyframes = scanSession.getKeyframes();
+          Pose cameraPose = camera.getDisplayOrientedPose();
+          if (_state == CameraState.RUNNING
+              && containsNewDepthData
+              && keyframes.shouldAccept(cameraPose, projectionMatrix)) {
             // Get Raw Depth data of the current frame.
-            final DepthData depth = DepthData.create(session, frame);
+            long conversionStart = System.nanoTime();
+            final DepthData depth =
+                DepthData.create(
+                    session, scanSession, frame, pointBudgetController.getPointsPerFrame());
+            pointBudgetController.reportConversionTime(System.nanoTime() - conversionStart);
 
             // Skip rendering the current frame if an exception arises during depth data processing.
             // For example, before depth estimation finishes initializing.
             if (depth != null) {
               depthReceived = true;
-              renderer.update(depth);
+              keyframes.onAccepted(cameraPose, depth.getSceneDistance());
+              framePipeline.publish(depth);
+              scanSession.addFrame(depth);
             }
           }
 
-          float[] projectionMatrix = new float[16];
-          camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
-          float[] viewMatrix = new float[16];
-          camera.getViewMatrix(viewMatrix, 0);
-
           // Visualize depth points.
+          long drawStart = System.nanoTime();
+          renderer.setMaxRenderedPoints(pointBudgetController.getTotalPoints());
+          gpuProfiler.begin(pointCloudSection);
           renderer.draw(viewMatrix, projectionMatrix);
+          gpuProfiler.end(pointCloudSection, renderer.getDrawCallCount());
+          pointBudgetController.reportDrawTime(System.nanoTime() - drawStart);
+          pointBudgetController.onFrameEnd();
+          GlStateCache.endFrame();
+          if (++renderedFrames % STATS_LOG_INTERVAL_FRAMES == 0) {
+            Log.d(TAG, "Frustum culled " + renderer.getCulledChunks() + " chunks ("
+                + renderer.getCulledPoints() + " points) of " + scanSession.getFrames().size()
+                + " frames");
+            Log.d(TAG, "Keyframes accepted " + keyframes.getAcceptedFrames() + ", skipped "
+                + keyframes.getSkippedFrames());
+            NoveltyFilter novelty = scanSession.getNoveltyFilter();
+            Log.d(TAG, "Novel depth pixels " + novelty.getNovelPixels() + ", already scanned "
+                + novelty.getExplainedPixels());
+            Log.d(TAG, "GL state calls issued " + GlStateCache.getIssuedCallsLastFrame()
+                + ", skipped " + GlStateCache.getAvoidedCallsLastFrame());
+            reportPerformance(gpuProfiler.getSummary());
+          }
 
           // Hide all user notifications when the frame has been rendered successfully.
           messageSnackbarHelper.hide(this);
@@ -351,4 +785,11 @@ public class RawDepthActivity extends AppCompatActivity implements GLSurfaceView
       }
     }
   }
+
+  private void reportPerformance(String summary) {
+    Log.d(TAG, summary);
+    if (BuildConfig.DEBUG) {
+      runOnUiThread(() -> perfOverlay.setText(summary));
+    }
+  }
 }
@@ -22,12 +22,13 @@ import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.util.Log;
 
-import com.google.ar.core.examples.java.common.io.PlyWriter;
+import com.google.ar.core.examples.java.common.rendering.Frustum;
+import com.google.ar.core.examples.java.common.rendering.GlStateCache;
+import com.google.ar.core.examples.java.common.rendering.ShaderProgramCache;
 import com.google.ar.core.examples.java.common.rendering.ShaderUtil;
 import java.io.IOException;
 import java.nio.FloatBuffer;
-import java.sql.Array;
-import java.util.ArrayList;
+import java.util.List;
 
 /** Renders the data from Raw Depth API as 3D points. */
 final class Renderer {
@@ -40,18 +41,16 @@ final class Renderer {
   private static final int POSITION_BYTES_PER_POINT = BYTES_PER_FLOAT * POSITION_FLOATS_PER_POINT;
   private static final int COLOR_BYTES_PER_POINT = BYTES_PER_FLOAT * COLOR_FLOATS_PER_POINT;
   private static final int INITIAL_BUFFER_POINTS = 1000;
+  private static final int LOD_BYTES_PER_POINT = BYTES_PER_FLOAT * PointLodOctree.FLOATS_PER_POINT;
+  // Points of the frames baked into a group buffer per draw, whole frames are always baked.
+  private static final int MAX_BAKE_POINTS_PER_FRAME = 50000;
 
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/depth_point_cloud.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/depth_point_cloud.frag";
 
-  /**
-   * The list of pointcloud frames to render. Each item in the list represents a single raw depth
-   * frame, taken at different times and poses.
-   */
-  private ArrayList<DepthData> depthFrames = new ArrayList<DepthData>();
-  public static ArrayList<FrameData> frameData = new ArrayList<>();
-  public static ArrayList<Particle> particleData = new ArrayList<>();
+  /** The scan to render, its frames and hierarchy are read on the OpenGL thread. */
+  private final ScanSession scan;
 
   private int positionAttribute;
   private int positionBuffer;
@@ -68,6 +67,39 @@ final class Renderer {
 
   private int numPoints = 0;
 
+  /** The maximum number of accumulated points drawn each frame, newest frames first. */
+  private int maxRenderedPoints = Integer.MAX_VALUE;
+
+  /**
+   * Whether the level-of-detail hierarchy of the scan is drawn instead of the per-frame buffers,
+   * see {@link #setLodEnabled(boolean)}.
+   */
+  private volatile boolean lodEnabled = false;
+  private final Frustum frustum = new Frustum();
+  private int viewportHeight = 1;
+
+  // A saved scan drawn instead of the live one, see setLoadedScan(). It is built on a loader
+  // thread and adopted by the GL thread on the next draw.
+  private PointLodOctree loadedScan;
+  private volatile PointLodOctree pendingScan;
+  private volatile boolean loadedScanChanged = false;
+
+  // Temporary matrices allocated here to reduce number of allocations for each frame.
+  private final float[] viewProjection = new float[16];
+  private final float[] cameraToWorld = new float[16];
+  private final float[] worldBounds = new float[6];
+  private final float[] bakeModelMatrix = new float[16];
+  private float[] bakeScratch = new float[0];
+  private float[] bakePoints = new float[0];
+  private float[] bakeColors = new float[0];
+
+  // Frames, baked anchor groups or LOD nodes, and points rejected by frustum culling during the
+  // last draw() call.
+  private int culledChunks;
+  private int culledPoints;
+  // Draw calls issued by the last draw() call.
+  private int drawCalls;
+
   /**
    * The minimum confidence value of a depth image pixel to be rendered as a point. The initial
    * value is selected to remove only the most unreliable depth values. Low confidence points are
@@ -75,7 +107,9 @@ final class Renderer {
    */
   private final float minConfidence = 0.1f;
 
-  public Renderer() {}
+  public Renderer(ScanSession scan) {
+    this.scan = scan;
+  }
 
   /**
    * Allocates and initializes OpenGL resources needed by the plane renderer. Must be called on the
@@ -91,28 +125,21 @@ final class Renderer {
     positionBuffer = buffers[0];
     colorBuffer = buffers[1];
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
     positionBufferSize = INITIAL_BUFFER_POINTS * POSITION_BYTES_PER_POINT;
     GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, positionBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
     colorBufferSize = INITIAL_BUFFER_POINTS * COLOR_BYTES_PER_POINT;
     GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, colorBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
 
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "Create");
 
-    int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    int passthroughShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
-
-    programName = GLES20.glCreateProgram();
-    GLES20.glAttachShader(programName, vertexShader);
-    GLES20.glAttachShader(programName, passthroughShader);
-    GLES20.glLinkProgram(programName);
-    GLES20.glUseProgram(programName);
+    programName =
+        ShaderProgramCache.createProgram(TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME);
+    GlStateCache.useProgram(programName);
 
     ShaderUtil.checkGLError(TAG, "Program");
 
@@ -126,11 +153,58 @@ final class Renderer {
   }
 
   /**
-   * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
-   * cloud will be ignored.
+   * Shows a saved scan instead of the live one, or the live scan again when null. The hierarchy
+   * may be built on any thread, but must not be modified after this call. Its points are uploaded
+   * to the GPU node by node, as the nodes get selected for drawing.
    */
-  public void update(DepthData depth) {
-    depthFrames.add(depth);
+  public void setLoadedScan(PointLodOctree scan) {
+    pendingScan = scan;
+    loadedScanChanged = true;
+  }
+
+  /** Returns whether a saved scan is shown, see {@link #setLoadedScan(PointLodOctree)}. */
+  public boolean hasLoadedScan() {
+    return pendingScan != null;
+  }
+
+  /** Number of frames, baked anchor groups or LOD nodes skipped by frustum culling last draw. */
+  public int getCulledChunks() {
+    return culledChunks;
+  }
+
+  /** Number of points skipped by frustum culling during the last draw. */
+  public int getCulledPoints() {
+    return culledPoints;
+  }
+
+  /** Number of draw calls issued during the last draw. */
+  public int getDrawCallCount() {
+    return drawCalls;
+  }
+
+  /**
+   * Selects whether the accumulated points are drawn through the level-of-detail hierarchy, or
+   * frame by frame at full resolution.
+   */
+  public void setLodEnabled(boolean lodEnabled) {
+    this.lodEnabled = lodEnabled;
+  }
+
+  public boolean isLodEnabled() {
+    return lodEnabled;
+  }
+
+  /** Updates the viewport height used to compute the screen-space error of the LOD nodes. */
+  public void setViewportSize(int width, int height) {
+    viewportHeight = height;
+  }
+
+  /**
+   * Limits the number of points drawn each frame. When the accumulated frames exceed the limit,
+   * the oldest frames are skipped.
+   */
+  public void setMaxRenderedPoints(int maxRenderedPoints) {
+    this.maxRenderedPoints = maxRenderedPoints;
   }
 
   /**
@@ -142,68 +216,351 @@ final class Renderer {
    *     com.google.ar.core.Camera#getProjectionMatrix(float[], int, float, float)}.
    */
   public void draw(float[] viewMatrix, float[] projectionMatrix) {
-    if (depthFrames.isEmpty()) {
+    adoptLoadedScanIfChanged();
+    drawCalls = 0;
+    List<DepthData> depthFrames = scan.getFrames();
+    if (depthFrames.isEmpty() && loadedScan == null) {
       return;
     }
 
     // Move the camera backwards by 1 meter, to help convey 3D depth of the point cloud.
     moveCameraAlongLocalZAxis(viewMatrix, -1f);
 
+    if (loadedScan != null) {
+      drawLod(loadedScan, viewMatrix, projectionMatrix);
+      return;
+    }
+    if (lodEnabled) {
+      drawLod(scan.getLod(), viewMatrix, projectionMatrix);
+      return;
+    }
+
+    AnchorPool anchors = scan.getAnchors();
+    bakeNextStableGroup(anchors);
+
     float[] modelMatrix = new float[16];
     float[] modelView = new float[16];
     float[] modelViewProjection = new float[16];
 
+    Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+    frustum.set(viewProjection);
+    culledChunks = 0;
+    culledPoints = 0;
+
     ShaderUtil.checkGLError(TAG, "Draw");
 
-    for (DepthData depthFrame : depthFrames) {
-      numPoints = depthFrame.getPoints().remaining() / POSITION_FLOATS_PER_POINT;
-      // Resize the position buffer if needed.
-      while (numPoints * POSITION_BYTES_PER_POINT > positionBufferSize) {
-        positionBufferSize *= 2;
+    // State shared by all frames is set once, redundant calls are filtered by GlStateCache.
+    GlStateCache.useProgram(programName);
+    GlStateCache.enableVertexAttribArray(positionAttribute);
+    GlStateCache.enableVertexAttribArray(colorAttribute);
+    GlStateCache.uniform1f(pointSizeUniform, 5.0f);
+    GlStateCache.uniform1f(confidenceThresholdUniform, minConfidence);
+
+    // Newest anchor groups first, and within a group the frames that are not baked yet first.
+    int renderedPoints = 0;
+    List<AnchorPool.Group> groups = anchors.getGroups();
+    groups:
+    for (int g = groups.size() - 1; g >= 0; --g) {
+      AnchorPool.Group group = groups.get(g);
+      boolean baked = group.isBakeCurrent();
+      for (int i = group.frames.size() - 1; i >= (baked ? group.bakedFrames : 0); --i) {
+        DepthData depthFrame = group.frames.get(i);
+        numPoints = depthFrame.getPoints().remaining() / POSITION_FLOATS_PER_POINT;
+        if (depthFrame.isEmpty()) {
+          continue;
+        }
+
+        // Skip frames entirely outside of the view before touching any buffers.
+        depthFrame.getModelMatrix(modelMatrix);
+        depthFrame.getWorldBounds(modelMatrix, worldBounds);
+        if (!frustum.intersectsBox(worldBounds[0], worldBounds[1], worldBounds[2],
+            worldBounds[3], worldBounds[4], worldBounds[5])) {
+          ++culledChunks;
+          culledPoints += numPoints;
+          continue;
+        }
+
+        if (renderedPoints + numPoints > maxRenderedPoints) {
+          break groups;
+        }
+        renderedPoints += numPoints;
+        // Resize the position buffer if needed.
+        while (numPoints * POSITION_BYTES_PER_POINT > positionBufferSize) {
+          positionBufferSize *= 2;
+        }
+        GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
+        GLES20.glBufferData(
+            GLES20.GL_ARRAY_BUFFER, positionBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
+
+        GLES20.glBufferSubData(
+            GLES20.GL_ARRAY_BUFFER, 0, numPoints * POSITION_BYTES_PER_POINT,
+            depthFrame.getPoints());
+
+        // Resize the color buffer if needed.
+        while (numPoints * COLOR_BYTES_PER_POINT > colorBufferSize) {
+          colorBufferSize *= 2;
+        }
+        GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, colorBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBufferSubData(
+            GLES20.GL_ARRAY_BUFFER, 0, numPoints * COLOR_BYTES_PER_POINT, depthFrame.getColors());
+
+        Matrix.multiplyMM(modelView, 0, viewMatrix, 0, modelMatrix, 0);
+        Matrix.multiplyMM(modelViewProjection, 0, projectionMatrix, 0, modelView, 0);
+
+        GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
+        GLES20.glVertexAttribPointer(
+            positionAttribute, 4, GLES20.GL_FLOAT, false, POSITION_BYTES_PER_POINT, 0);
+
+        GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
+        GLES20.glVertexAttribPointer(
+            colorAttribute, 3, GLES20.GL_FLOAT, false, COLOR_BYTES_PER_POINT, 0);
+
+        GlStateCache.uniformMatrix4fv(modelViewProjectionUniform, modelViewProjection, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
+        ++drawCalls;
       }
-      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
-      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, positionBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
-
-      GLES20.glBufferSubData(
-          GLES20.GL_ARRAY_BUFFER, 0, numPoints * POSITION_BYTES_PER_POINT, depthFrame.getPoints());
 
-      // Resize the color buffer if needed.
-      while (numPoints * COLOR_BYTES_PER_POINT > colorBufferSize) {
-        colorBufferSize *= 2;
+      if (!baked || group.bakedPoints == 0) {
+        continue;
       }
-      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
-      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, colorBufferSize, null, GLES20.GL_DYNAMIC_DRAW);
-      GLES20.glBufferSubData(
-          GLES20.GL_ARRAY_BUFFER, 0, numPoints * COLOR_BYTES_PER_POINT, depthFrame.getColors());
-
-      depthFrame.getModelMatrix(modelMatrix);
+      float[] bounds = group.bakedBounds;
+      if (!frustum.intersectsBox(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4],
+          bounds[5])) {
+        ++culledChunks;
+        culledPoints += group.bakedPoints;
+        continue;
+      }
+      if (renderedPoints + group.bakedPoints > maxRenderedPoints) {
+        break;
+      }
+      renderedPoints += group.bakedPoints;
+      // The baked points are in world space, and drawn in a single call.
+      GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, group.vbo);
+      GLES20.glVertexAttribPointer(
+          positionAttribute, 4, GLES20.GL_FLOAT, false, LOD_BYTES_PER_POINT, 0);
+      GLES20.glVertexAttribPointer(
+          colorAttribute, 3, GLES20.GL_FLOAT, false, LOD_BYTES_PER_POINT,
+          POSITION_BYTES_PER_POINT);
+      GlStateCache.uniformMatrix4fv(modelViewProjectionUniform, viewProjection, 0);
+      GLES20.glDrawArrays(GLES20.GL_POINTS, 0, group.bakedPoints);
+      ++drawCalls;
+    }
 
-      Matrix.multiplyMM(modelView, 0, viewMatrix, 0, modelMatrix, 0);
-      Matrix.multiplyMM(modelViewProjection, 0, projectionMatrix, 0, modelView, 0);
+    GlStateCache.disableVertexAttribArray(positionAttribute);
+    GlStateCache.disableVertexAttribArray(colorAttribute);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-      GLES20.glUseProgram(programName);
+    ShaderUtil.checkGLError(TAG, "Draw complete");
+  }
 
-      GLES20.glEnableVertexAttribArray(positionAttribute);
-      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, positionBuffer);
+  /**
+   * Draws the nodes of the level-of-detail hierarchy selected for the current view, within the
+   * {@link #setMaxRenderedPoints(int)} budget.
+   */
+  private void drawLod(PointLodOctree lod, float[] viewMatrix, float[] projectionMatrix) {
+    Matrix.multiplyMM(viewProjection, 0, projectionMatrix, 0, viewMatrix, 0);
+    frustum.set(viewProjection);
+    Matrix.invertM(cameraToWorld, 0, viewMatrix, 0);
+    float pixelsPerUnit = projectionMatrix[5] * viewportHeight / 2;
+    lod.selectNodes(frustum, cameraToWorld[12], cameraToWorld[13], cameraToWorld[14],
+        pixelsPerUnit, maxRenderedPoints);
+    culledChunks = lod.getCulledNodes();
+    culledPoints = lod.getCulledPoints();
+
+    ShaderUtil.checkGLError(TAG, "Draw LOD");
+
+    GlStateCache.useProgram(programName);
+    GlStateCache.uniformMatrix4fv(modelViewProjectionUniform, viewProjection, 0);
+    GlStateCache.uniform1f(confidenceThresholdUniform, minConfidence);
+    GlStateCache.enableVertexAttribArray(positionAttribute);
+    GlStateCache.enableVertexAttribArray(colorAttribute);
+
+    for (int i = 0; i < lod.getSelectedCount(); ++i) {
+      PointLodOctree.Node node = lod.getSelectedNode(i);
+      uploadLodNode(node);
+      GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, node.vbo);
       GLES20.glVertexAttribPointer(
-          positionAttribute, 4, GLES20.GL_FLOAT, false, POSITION_BYTES_PER_POINT, 0);
-
-      GLES20.glEnableVertexAttribArray(colorAttribute);
-      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, colorBuffer);
+          positionAttribute, 4, GLES20.GL_FLOAT, false, LOD_BYTES_PER_POINT, 0);
       GLES20.glVertexAttribPointer(
-          colorAttribute, 4, GLES20.GL_FLOAT, false, COLOR_BYTES_PER_POINT, 0);
+          colorAttribute, 3, GLES20.GL_FLOAT, false, LOD_BYTES_PER_POINT,
+          POSITION_BYTES_PER_POINT);
+      // Larger points for coarser nodes keep surfaces closed when fine nodes are not drawn.
+      GlStateCache.uniform1f(pointSizeUniform, lod.getSelectedPointSize(i));
+      GLES20.glDrawArrays(GLES20.GL_POINTS, 0, node.uploadedPoints);
+      ++drawCalls;
+    }
 
-      GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
-      GLES20.glUniform1f(pointSizeUniform, 5.0f);
-      GLES20.glUniform1f(confidenceThresholdUniform, minConfidence);
+    GlStateCache.disableVertexAttribArray(positionAttribute);
+    GlStateCache.disableVertexAttribArray(colorAttribute);
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
-      GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-      GLES20.glDisableVertexAttribArray(positionAttribute);
-      GLES20.glDisableVertexAttribArray(colorAttribute);
-      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Draw LOD complete");
+  }
+
+  /** Copies the points added to the node since the last upload into its vertex buffer. */
+  private static void uploadLodNode(PointLodOctree.Node node) {
+    if (!node.isDirty()) {
+      return;
+    }
+    if (node.vbo == 0) {
+      int[] buffers = new int[1];
+      GLES20.glGenBuffers(1, buffers, 0);
+      node.vbo = buffers[0];
+    }
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, node.vbo);
+    int requiredBytes = node.numPoints * LOD_BYTES_PER_POINT;
+    FloatBuffer data = FloatBuffer.wrap(node.data);
+    if (requiredBytes > node.vboCapacityBytes) {
+      // Grow the buffer geometrically, since nodes keep receiving points while scanning.
+      node.vboCapacityBytes = Math.max(requiredBytes, node.vboCapacityBytes * 2);
+      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, node.vboCapacityBytes, null,
+          GLES20.GL_DYNAMIC_DRAW);
+      GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, requiredBytes, data);
+    } else {
+      // Only the points appended since the last upload are copied.
+      data.position(node.uploadedPoints * PointLodOctree.FLOATS_PER_POINT);
+      GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, node.uploadedPoints * LOD_BYTES_PER_POINT,
+          requiredBytes - node.uploadedPoints * LOD_BYTES_PER_POINT, data);
     }
+    node.uploadedPoints = node.numPoints;
+  }
 
-    ShaderUtil.checkGLError(TAG, "Draw complete");
+  /**
+   * Bakes the first anchor group that needs it, see {@link AnchorPool#needsBake}. At most one group
+   * and about {@link #MAX_BAKE_POINTS_PER_FRAME} points are baked per frame, to spread the cost
+   * over frames.
+   */
+  private void bakeNextStableGroup(AnchorPool anchors) {
+    for (AnchorPool.Group group : anchors.getGroups()) {
+      if (anchors.needsBake(group)) {
+        bakeGroup(group);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Transforms the points of the group into world space and copies them into its vertex buffer, in
+   * the layout of the LOD nodes. Frames not baked yet are appended, unless the anchor moved since
+   * the last bake, in which case the frames are baked again from the first. A call stops after the
+   * frame that reaches {@link #MAX_BAKE_POINTS_PER_FRAME}, the draw loop draws the remaining frames
+   * separately until a later call baked them.
+   */
+  private void bakeGroup(AnchorPool.Group group) {
+    boolean rebake = group.bakedVersion != group.getVersion();
+    int requiredBytes = group.bakedPoints * LOD_BYTES_PER_POINT;
+    for (int i = group.bakedFrames; i < group.frames.size(); ++i) {
+      requiredBytes +=
+          group.frames.get(i).getPoints().remaining() / POSITION_FLOATS_PER_POINT
+              * LOD_BYTES_PER_POINT;
+    }
+    if (group.vbo == 0) {
+      int[] buffers = new int[1];
+      GLES20.glGenBuffers(1, buffers, 0);
+      group.vbo = buffers[0];
+    }
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, group.vbo);
+    if (rebake || requiredBytes > group.vboCapacityBytes) {
+      // Growing the buffer discards its content, so all frames are baked again.
+      requiredBytes = 0;
+      for (DepthData frame : group.frames) {
+        requiredBytes +=
+            frame.getPoints().remaining() / POSITION_FLOATS_PER_POINT * LOD_BYTES_PER_POINT;
+      }
+      group.vboCapacityBytes = Math.max(requiredBytes, group.vboCapacityBytes * 2);
+      GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, group.vboCapacityBytes, null,
+          GLES20.GL_DYNAMIC_DRAW);
+      group.bakedFrames = 0;
+      group.bakedPoints = 0;
+      float[] bounds = group.bakedBounds;
+      bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+      bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+    }
+
+    int budget = MAX_BAKE_POINTS_PER_FRAME;
+    for (int i = group.bakedFrames; i < group.frames.size() && budget > 0; ++i) {
+      DepthData frame = group.frames.get(i);
+      int count = frame.getPoints().remaining() / POSITION_FLOATS_PER_POINT;
+      if (bakeScratch.length < count * PointLodOctree.FLOATS_PER_POINT) {
+        bakeScratch = new float[count * PointLodOctree.FLOATS_PER_POINT];
+        bakePoints = new float[count * POSITION_FLOATS_PER_POINT];
+        bakeColors = new float[count * COLOR_FLOATS_PER_POINT];
+      }
+      // Bulk reads through duplicates, which leave the positions of the frame buffers alone.
+      frame.getPoints().duplicate().get(bakePoints, 0, count * POSITION_FLOATS_PER_POINT);
+      frame.getColors().duplicate().get(bakeColors, 0, count * COLOR_FLOATS_PER_POINT);
+      float[] m = bakeModelMatrix;
+      frame.getModelMatrix(m);
+      for (int p = 0; p < count; ++p) {
+        int in = p * POSITION_FLOATS_PER_POINT;
+        int color = p * COLOR_FLOATS_PER_POINT;
+        float x = bakePoints[in];
+        float y = bakePoints[in + 1];
+        float z = bakePoints[in + 2];
+        int out = p * PointLodOctree.FLOATS_PER_POINT;
+        bakeScratch[out] = m[0] * x + m[4] * y + m[8] * z + m[12];
+        bakeScratch[out + 1] = m[1] * x + m[5] * y + m[9] * z + m[13];
+        bakeScratch[out + 2] = m[2] * x + m[6] * y + m[10] * z + m[14];
+        bakeScratch[out + 3] = bakePoints[in + 3];
+        bakeScratch[out + 4] = bakeColors[color];
+        bakeScratch[out + 5] = bakeColors[color + 1];
+        bakeScratch[out + 6] = bakeColors[color + 2];
+      }
+      GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, group.bakedPoints * LOD_BYTES_PER_POINT,
+          count * LOD_BYTES_PER_POINT,
+          FloatBuffer.wrap(bakeScratch, 0, count * PointLodOctree.FLOATS_PER_POINT));
+      if (!frame.isEmpty()) {
+        frame.getWorldBounds(m, worldBounds);
+        float[] bounds = group.bakedBounds;
+        for (int axis = 0; axis < 3; ++axis) {
+          bounds[axis] = Math.min(bounds[axis], worldBounds[axis]);
+          bounds[axis + 3] = Math.max(bounds[axis + 3], worldBounds[axis + 3]);
+        }
+      }
+      group.bakedPoints += count;
+      group.bakedFrames = i + 1;
+      budget -= count;
+    }
+    group.bakedVersion = group.getVersion();
+    GlStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+  }
+
+  /** Deletes the baked buffers of the anchor groups. Must be called on the OpenGL thread. */
+  static void releaseBakedGroups(AnchorPool anchors) {
+    for (AnchorPool.Group group : anchors.getGroups()) {
+      if (group.vbo != 0) {
+        GlStateCache.deleteBuffer(group.vbo);
+        group.vbo = 0;
+        group.vboCapacityBytes = 0;
+        group.bakedVersion = -1;
+      }
+    }
+  }
+
+  /** Switches to the scan passed to {@link #setLoadedScan(PointLodOctree)}, if it changed. */
+  private void adoptLoadedScanIfChanged() {
+    if (!loadedScanChanged) {
+      return;
+    }
+    loadedScanChanged = false;
+    PointLodOctree scan = pendingScan;
+    if (loadedScan != null && loadedScan != scan) {
+      releaseLod(loadedScan);
+    }
+    loadedScan = scan;
+  }
+
+  /** Deletes the GPU buffers of the hierarchy. Must be called on the OpenGL thread. */
+  static void releaseLod(PointLodOctree lod) {
+    lod.forEachNode(
+        node -> {
+          if (node.vbo != 0) {
+            GlStateCache.deleteBuffer(node.vbo);
+            node.vbo = 0;
+          }
+        });
   }
 
   /**
@@ -239,10 +596,4 @@ final class Renderer {
     float deltaZ = modifiedCameraPositionWS[2] - originalCameraPositionWS[2];
     Matrix.translateM(viewMatrix, 0, deltaX, deltaY, deltaZ);
   }
-
-  public void stopScanning() {
-    depthFrames = new ArrayList<>();
-    frameData = new ArrayList<>();
-    particleData = new ArrayList<>();
-  }
 }
@@ -0,0 +1,533 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import android.util.Log;
+import com.google.ar.core.examples.java.common.io.CompressedPointCloud;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the scan in progress, from which the scan can be replayed after the
+ * process was killed.
+ *
+ * <p>Every scan journals into its own subdirectory of the journal root, named after the scan,
+ * which is deleted when the scan is saved, and otherwise left for {@link #recover} on the next
+ * launch. The journal that was recovered is only deleted once the caller saved its points, see
+ * {@link Recovery#delete()}, and the journals of this process are never recovered. Every frame of
+ * the {@link DepthFramePipeline} is appended as one record holding the capture pose and the world
+ * space points. Records are batched in memory and written on a dedicated thread about twice a
+ * second, so journaling costs the OpenGL thread nothing. A killed process loses at most the last
+ * batch, since written data survives in the page cache.
+ *
+ * <p>The records go to segment files of {@link #SEGMENT_BYTES}. Every {@link
+ * #SEGMENTS_PER_CHECKPOINT} closed segments are compacted in the background, together with the
+ * previous checkpoint, into a new checkpoint of a {@link CompressedPointCloud} and a pose file,
+ * after which the covered files are deleted. {@link #recover} reads the latest checkpoint and
+ * replays the segments written after it, up to the first torn record.
+ *
+ * <p>Record layout, little endian: int {@link #RECORD_MAGIC}, int payload bytes, payload, int
+ * CRC-32 of the payload. The payload is long timestamp, 16 floats model matrix, int point count,
+ * then X, Y, Z floats per point, then red, green, blue bytes per point.
+ */
+final class ScanJournal {
+  private static final String TAG = ScanJournal.class.getSimpleName();
+
+  private static final int RECORD_MAGIC = 0x4c4e524a; // "JRNL"
+  private static final int RECORD_OVERHEAD_BYTES = 3 * 4;
+  private static final int PAYLOAD_HEADER_BYTES = 8 + 16 * 4 + 4;
+  private static final int POSE_BYTES = 8 + 16 * 4;
+  private static final int BATCH_BYTES = 1 << 20;
+  private static final long FLUSH_INTERVAL_NS = 500_000_000L;
+  static final long SEGMENT_BYTES = 32L << 20;
+  static final int SEGMENTS_PER_CHECKPOINT = 4;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_PREFIX = "checkpoint-";
+  private static final String POSES_SUFFIX = ".poses";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** The scan read back by {@link #recover}. */
+  static final class Recovery {
+    /** The journal the scan was read from. */
+    final File directory;
+    final PointStore.Snapshot points;
+    /** Depth image timestamp of every journaled frame. */
+    final long[] timestamps;
+    /** Model matrix of every journaled frame, 16 floats each. */
+    final float[] poses;
+
+    Recovery(File directory, PointStore.Snapshot points, long[] timestamps, float[] poses) {
+      this.directory = directory;
+      this.points = points;
+      this.timestamps = timestamps;
+      this.poses = poses;
+    }
+
+    int getFrameCount() {
+      return timestamps.length;
+    }
+
+    /** The name the journal was started with. */
+    String getName() {
+      return directory.getName();
+    }
+
+    /** Deletes the journal the scan was read from, once the scan is saved elsewhere. */
+    void delete() {
+      deleteDirectory(directory);
+    }
+  }
+
+  // Journals written by this process, which recovery must leave alone.
+  private static final Set<File> activeDirectories = new HashSet<>();
+
+  private final File directory;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Scheduler scheduler = Schedulers.from(executor);
+  private final AtomicBoolean compacting = new AtomicBoolean();
+
+  // Writer thread state.
+  private ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final CRC32 crc = new CRC32();
+  private byte[] crcScratch = new byte[0];
+  private FileChannel segment;
+  private int segmentIndex;
+  private long segmentBytes;
+  private int closedSegments;
+  private long lastFlushNs;
+  private IOException failure;
+  // The last compaction started, completes once it is done.
+  private Completable compaction = Completable.complete();
+
+  /**
+   * Starts the journal of a new scan in a subdirectory of the root. The journals of previous scans
+   * are left to {@link #recover}.
+   *
+   * @param name Name of the scan, unique and increasing with time, see {@link Recovery#getName()}.
+   */
+  ScanJournal(File root, String name) {
+    this.directory = new File(root, name);
+    synchronized (activeDirectories) {
+      activeDirectories.add(directory);
+    }
+    executor.execute(
+        () -> {
+          try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+              throw new IOException("Failed to create " + directory);
+            }
+            openSegment(1);
+          } catch (IOException e) {
+            failure = e;
+            Log.e(TAG, "Failed to start the journal", e);
+          }
+        });
+  }
+
+  /** Returns a completable that queues the frame on the journal thread, see the class comment. */
+  Completable append(DepthFramePipeline.FrameSnapshot frame) {
+    return Completable.fromAction(() -> writeFrame(frame)).subscribeOn(scheduler);
+  }
+
+  /**
+   * Closes and deletes the journal, once the scan it protects is saved. The frames appended before
+   * this call are written first, so the journal stays complete if the process dies meanwhile, and a
+   * compaction in progress is waited for.
+   */
+  Completable delete() {
+    return Completable.fromAction(
+            () -> {
+              try {
+                if (failure == null) {
+                  flush();
+                }
+              } finally {
+                if (segment != null) {
+                  segment.close();
+                }
+                executor.shutdown();
+                // A checkpoint written after the directory was emptied would be recovered later.
+                compaction.blockingAwait();
+                deleteDirectory(directory);
+                synchronized (activeDirectories) {
+                  activeDirectories.remove(directory);
+                }
+              }
+            })
+        .subscribeOn(scheduler);
+  }
+
+  private void writeFrame(DepthFramePipeline.FrameSnapshot frame) throws IOException {
+    if (failure != null) {
+      return;
+    }
+    try {
+      int n = frame.getPointCount();
+      int payloadBytes = PAYLOAD_HEADER_BYTES + n * (3 * 4 + 3);
+      int recordBytes = RECORD_OVERHEAD_BYTES + payloadBytes;
+      if (batch.remaining() < recordBytes) {
+        flush();
+        if (batch.capacity() < recordBytes) {
+          batch = ByteBuffer.allocateDirect(recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+      }
+      batch.putInt(RECORD_MAGIC).putInt(payloadBytes);
+      int payloadStart = batch.position();
+      batch.putLong(frame.timestampNs);
+      float[] m = frame.modelMatrix;
+      for (float value : m) {
+        batch.putFloat(value);
+      }
+      batch.putInt(n);
+      FloatBuffer points = frame.points;
+      int base = points.position();
+      for (int i = 0; i < n; ++i) {
+        int p = base + i * Renderer.POSITION_FLOATS_PER_POINT;
+        float x = points.get(p);
+        float y = points.get(p + 1);
+        float z = points.get(p + 2);
+        batch.putFloat(m[0] * x + m[4] * y + m[8] * z + m[12]);
+        batch.putFloat(m[1] * x + m[5] * y + m[9] * z + m[13]);
+        batch.putFloat(m[2] * x + m[6] * y + m[10] * z + m[14]);
+      }
+      FloatBuffer colors = frame.colors;
+      int colorBase = colors.position();
+      for (int i = 0; i < n * 3; ++i) {
+        batch.put((byte) Math.max(0, Math.min(255, Math.round(colors.get(colorBase + i) * 255))));
+      }
+      batch.putInt((int) checksum(batch, payloadStart, payloadBytes));
+
+      long now = System.nanoTime();
+      if (batch.position() >= BATCH_BYTES / 2 || now - lastFlushNs >= FLUSH_INTERVAL_NS) {
+        flush();
+        lastFlushNs = now;
+      }
+    } catch (IOException e) {
+      failure = e;
+      Log.e(TAG, "Journaling stopped", e);
+    }
+  }
+
+  private long checksum(ByteBuffer buffer, int start, int length) {
+    if (crcScratch.length < length) {
+      crcScratch = new byte[length];
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.position(start);
+    view.get(crcScratch, 0, length);
+    crc.reset();
+    crc.update(crcScratch, 0, length);
+    return crc.getValue();
+  }
+
+  /** Writes the batch to the current segment, and starts a new segment when it is full. */
+  private void flush() throws IOException {
+    batch.flip();
+    while (batch.hasRemaining()) {
+      segmentBytes += segment.write(batch);
+    }
+    batch.clear();
+    if (segmentBytes >= SEGMENT_BYTES) {
+      segment.force(false);
+      segment.close();
+      openSegment(segmentIndex + 1);
+      if (++closedSegments >= SEGMENTS_PER_CHECKPOINT && compacting.compareAndSet(false, true)) {
+        closedSegments = 0;
+        int lastClosed = segmentIndex - 1;
+        compaction =
+            Completable.fromAction(() -> compact(lastClosed)).subscribeOn(Schedulers.io()).cache();
+        compaction.subscribe();
+      }
+    }
+  }
+
+  private void openSegment(int index) throws IOException {
+    segmentIndex = index;
+    segmentBytes = 0;
+    segment = new RandomAccessFile(segmentFile(directory, index), "rw").getChannel();
+    segment.truncate(0);
+  }
+
+  /** Folds the latest checkpoint and the segments up to the given one into a new checkpoint. */
+  private void compact(int lastSegment) {
+    long start = System.nanoTime();
+    try {
+      Recovery state = replay(directory, lastSegment);
+      File points = checkpointFile(directory, lastSegment);
+      File poses = posesFile(directory, lastSegment);
+      File pointsTemp = new File(points.getPath() + TEMP_SUFFIX);
+      File posesTemp = new File(poses.getPath() + TEMP_SUFFIX);
+      CompressedPointCloud.write(state.points, pointsTemp);
+      writePoses(state, posesTemp);
+      // The point file is renamed last, a checkpoint without it is ignored.
+      if (!posesTemp.renameTo(poses) || !pointsTemp.renameTo(points)) {
+        throw new IOException("Failed to rename the checkpoint " + lastSegment);
+      }
+      for (File file : listFiles(directory)) {
+        int index = indexOf(file);
+        if ((index >= 0 && index < lastSegment)
+            || (file.getName().startsWith(SEGMENT_PREFIX) && index == lastSegment)) {
+          file.delete();
+        }
+      }
+      Log.d(TAG, "Checkpointed " + state.points.size() + " points in "
+          + (System.nanoTime() - start) / 1000000 + " ms");
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to compact the journal", e);
+    } finally {
+      compacting.set(false);
+    }
+  }
+
+  /** Returns whether the root holds the journal of an interrupted scan. */
+  static boolean exists(File root) {
+    return latestJournal(root) != null;
+  }
+
+  /**
+   * Reads back the most recent journal in the root left by a previous process, see the class
+   * comment. The journal is kept until {@link Recovery#delete()} is called, older journals are
+   * recovered by later calls.
+   *
+   * @return The recovered scan, or null if there is no journal.
+   */
+  static Recovery recover(File root) throws IOException {
+    File directory = latestJournal(root);
+    return directory != null ? replay(directory, Integer.MAX_VALUE) : null;
+  }
+
+  private static File latestJournal(File root) {
+    File latest = null;
+    for (File directory : listFiles(root)) {
+      synchronized (activeDirectories) {
+        if (activeDirectories.contains(directory)) {
+          continue;
+        }
+      }
+      if (directory.isDirectory()
+          && listFiles(directory).length > 0
+          && (latest == null || directory.getName().compareTo(latest.getName()) > 0)) {
+        latest = directory;
+      }
+    }
+    return latest;
+  }
+
+  private static void deleteDirectory(File directory) {
+    for (File file : listFiles(directory)) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  /** Replays the latest checkpoint and the segments after it, up to the given segment. */
+  private static Recovery replay(File directory, int lastSegment) throws IOException {
+    int checkpoint = -1;
+    List<File> segments = new ArrayList<>();
+    for (File file : listFiles(directory)) {
+      int index = indexOf(file);
+      String name = file.getName();
+      if (name.startsWith(CHECKPOINT_PREFIX) && name.endsWith(CompressedPointCloud.FILE_EXTENSION)
+          && index <= lastSegment) {
+        checkpoint = Math.max(checkpoint, index);
+      } else if (name.startsWith(SEGMENT_PREFIX) && index <= lastSegment) {
+        segments.add(file);
+      }
+    }
+
+    PointStore store = new PointStore();
+    List<Long> timestamps = new ArrayList<>();
+    FloatArray poses = new FloatArray();
+    if (checkpoint >= 0) {
+      PointStore.Snapshot points =
+          CompressedPointCloud.read(checkpointFile(directory, checkpoint));
+      for (int chunk = 0; chunk < points.getChunkCount(); ++chunk) {
+        float[] positions = points.getPositions(chunk);
+        int[] colors = points.getColors(chunk);
+        for (int i = 0; i < points.getChunkSize(chunk); ++i) {
+          int color = colors[i];
+          store.add(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2],
+              (color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
+        }
+      }
+      readPoses(posesFile(directory, checkpoint), timestamps, poses);
+    }
+    Collections.sort(segments, (a, b) -> Integer.compare(indexOf(a), indexOf(b)));
+    for (File segment : segments) {
+      if (indexOf(segment) > checkpoint) {
+        replaySegment(segment, store, timestamps, poses);
+      }
+    }
+    store.publish();
+
+    long[] timestampArray = new long[timestamps.size()];
+    for (int i = 0; i < timestampArray.length; ++i) {
+      timestampArray[i] = timestamps.get(i);
+    }
+    return new Recovery(directory, store.snapshot(), timestampArray, poses.toArray());
+  }
+
+  /** Adds the valid records of the segment, a torn record ends the segment. */
+  private static void replaySegment(
+      File file, PointStore store, List<Long> timestamps, FloatArray poses) throws IOException {
+    ByteBuffer data;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    CRC32 crc = new CRC32();
+    byte[] payload = new byte[0];
+    while (data.remaining() >= RECORD_OVERHEAD_BYTES) {
+      int magic = data.getInt();
+      int payloadBytes = data.getInt();
+      if (magic != RECORD_MAGIC
+          || payloadBytes < PAYLOAD_HEADER_BYTES
+          || payloadBytes + 4 > data.remaining()) {
+        break;
+      }
+      int payloadStart = data.position();
+      if (payload.length < payloadBytes) {
+        payload = new byte[payloadBytes];
+      }
+      data.get(payload, 0, payloadBytes);
+      crc.reset();
+      crc.update(payload, 0, payloadBytes);
+      if ((int) crc.getValue() != data.getInt()) {
+        break;
+      }
+
+      ByteBuffer record = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      record.position(payloadStart);
+      long timestamp = record.getLong();
+      for (int i = 0; i < 16; ++i) {
+        poses.add(record.getFloat());
+      }
+      int n = record.getInt();
+      if (payloadBytes != PAYLOAD_HEADER_BYTES + n * (3 * 4 + 3)) {
+        throw new IOException("Corrupt record in " + file);
+      }
+      timestamps.add(timestamp);
+      int colorStart = record.position() + n * 3 * 4;
+      for (int i = 0; i < n; ++i) {
+        int c = colorStart + i * 3;
+        store.add(record.getFloat(), record.getFloat(), record.getFloat(),
+            record.get(c) & 0xff, record.get(c + 1) & 0xff, record.get(c + 2) & 0xff);
+      }
+    }
+  }
+
+  private static void writePoses(Recovery state, File file) throws IOException {
+    ByteBuffer buffer =
+        ByteBuffer.allocate(state.getFrameCount() * POSE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    for (int frame = 0; frame < state.getFrameCount(); ++frame) {
+      buffer.putLong(state.timestamps[frame]);
+      for (int i = 0; i < 16; ++i) {
+        buffer.putFloat(state.poses[frame * 16 + i]);
+      }
+    }
+    buffer.flip();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      channel.truncate(0);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+  }
+
+  private static void readPoses(File file, List<Long> timestamps, FloatArray poses)
+      throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+      while (buffer.remaining() >= POSE_BYTES) {
+        timestamps.add(buffer.getLong());
+        for (int i = 0; i < 16; ++i) {
+          poses.add(buffer.getFloat());
+        }
+      }
+    }
+  }
+
+  private static File[] listFiles(File directory) {
+    File[] files = directory.listFiles();
+    return files != null ? files : new File[0];
+  }
+
+  private static File segmentFile(File directory, int index) {
+    return new File(directory, name(SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+  }
+
+  private static File checkpointFile(File directory, int index) {
+    return new File(directory,
+        name(CHECKPOINT_PREFIX, index, CompressedPointCloud.FILE_EXTENSION));
+  }
+
+  private static File posesFile(File directory, int index) {
+    return new File(directory, name(CHECKPOINT_PREFIX, index, POSES_SUFFIX));
+  }
+
+  private static String name(String prefix, int index, String suffix) {
+    return String.format(Locale.US, "%s%08d%s", prefix, index, suffix);
+  }
+
+  /** Returns the segment or checkpoint index in the file name, or -1. */
+  private static int indexOf(File file) {
+    String name = file.getName();
+    String prefix = name.startsWith(SEGMENT_PREFIX) ? SEGMENT_PREFIX
+        : name.startsWith(CHECKPOINT_PREFIX) ? CHECKPOINT_PREFIX : null;
+    if (prefix == null || name.length() < prefix.length() + 8) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(name.substring(prefix.length(), prefix.length() + 8));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** A growable float array, to collect the poses without boxing. */
+  private static final class FloatArray {
+    private float[] values = new float[16 * 64];
+    private int size;
+
+    void add(float value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    float[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package com.google.ar.core.examples.java.rawdepth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of one scan: the captured depth frames with their anchors, the world space points and
+ * the level-of-detail hierarchy drawn over them.
+ *
+ * <p>The scan has a single writer, the OpenGL thread, which converts depth frames into the session
+ * through {@link #getPoints()} and {@link #addFrame(DepthData)}, and draws it. Other threads only
+ * read the points, through lock-free {@link PointStore.Snapshot}s. The lifecycle methods {@link
+ * #start()}, {@link #stop()}, {@link #reset()} and {@link #close()} may be called on any thread.
+ * Resources that belong to the writer thread, the GPU buffers of the hierarchy and the ARCore
+ * anchors of the frames, are released by the writer on its next call after a reset.
+ */
+final class ScanSession {
+  /** Lifecycle of a scan. */
+  enum State {
+    /** Not capturing, and empty. */
+    IDLE,
+    /** Capturing depth frames. */
+    RUNNING,
+    /** Not capturing anymore, the captured points are kept for drawing and exporting. */
+    STOPPED,
+    /** Released, no further calls are allowed. */
+    CLOSED
+  }
+
+  private final PointStore points = new PointStore();
+  private volatile State state = State.IDLE;
+  private volatile boolean resetRequested = false;
+
+  // Writer thread state.
+  private ArrayList<DepthData> frames = new ArrayList<>();
+  private PointLodOctree lod = new PointLodOctree();
+  private KeyframeSelector keyframes = new KeyframeSelector();
+  private AnchorPool anchors = new AnchorPool();
+  private NoveltyFilter noveltyFilter = new NoveltyFilter(lod);
+  private final float[] modelMatrix = new float[16];
+
+  /** Starts capturing. A stopped scan is continued, call {@link #reset()} first to start over. */
+  public synchronized void start() {
+    checkNotClosed();
+    state = State.RUNNING;
+  }
+
+  /** Stops capturing. The points stay available until {@link #reset()}. */
+  public synchronized void stop() {
+    if (state == State.RUNNING) {
+      state = State.STOPPED;
+    }
+  }
+
+  /**
+   * Discards all captured data. Snapshots taken before keep their points, the frames and the
+   * hierarchy are released by the writer thread on its next call.
+   */
+  public synchronized void reset() {
+    checkNotClosed();
+    state = State.IDLE;
+    requestReset();
+  }
+
+  /**
+   * Discards all captured data and rejects further frames. The writer thread releases the frames
+   * and the hierarchy on its next call. If it never runs again, for example because the GL context
+   * is already lost, the GPU buffers are released with the context and the anchors with the ARCore
+   * session.
+   */
+  public synchronized void close() {
+    if (state == State.CLOSED) {
+      return;
+    }
+    state = State.CLOSED;
+    requestReset();
+  }
+
+  private void requestReset() {
+    points.clear();
+    resetRequested = true;
+  }
+
+  private void checkNotClosed() {
+    if (state == State.CLOSED) {
+      throw new IllegalStateException("Scan session is closed");
+    }
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isRunning() {
+    return state == State.RUNNING;
+  }
+
+  /**
+   * The world space points of the scan. Only the writer thread may add points, any thread may take
+   * snapshots.
+   */
+  public PointStore getPoints() {
+    return points;
+  }
+
+  /** Returns the points published so far, see {@link PointStore#snapshot()}. */
+  public PointStore.Snapshot snapshot() {
+    return points.snapshot();
+  }
+
+  /**
+   * Adds a converted depth frame to the frames, its anchor group and the hierarchy. Frames arriving
+   * while the scan is not running, and frames without new points, are dropped. Must be called on
+   * the writer thread.
+   */
+  void addFrame(DepthData depth) {
+    applyPendingReset();
+    if (state != State.RUNNING || depth.isEmpty()) {
+      if (depth.getGroup() != null) {
+        // The scan stopped after the frame was anchored.
+        anchors.releaseIfUnused(depth.getGroup());
+      }
+      return;
+    }
+    frames.add(depth);
+    anchors.addFrame(depth);
+    depth.getModelMatrix(modelMatrix);
+    lod.insert(depth.getPoints(), depth.getColors(), modelMatrix);
+  }
+
+  /** The captured frames, oldest first. Must be called on the writer thread. */
+  List<DepthData> getFrames() {
+    applyPendingReset();
+    return frames;
+  }
+
+  /** The hierarchy over all captured points. Must be called on the writer thread. */
+  PointLodOctree getLod() {
+    applyPendingReset();
+    return lod;
+  }
+
+  /** Selects the frames added to the scan. Must be called on the writer thread. */
+  KeyframeSelector getKeyframes() {
+    applyPendingReset();
+    return keyframes;
+  }
+
+  /** The anchors shared by the frames. Must be called on the writer thread. */
+  AnchorPool getAnchors() {
+    applyPendingReset();
+    return anchors;
+  }
+
+  /** Skips the pixels already in the hierarchy. Must be called on the writer thread. */
+  NoveltyFilter getNoveltyFilter() {
+    applyPendingReset();
+    return noveltyFilter;
+  }
+
+  /** Releases the data discarded by {@link #reset()} or {@link #close()}, on the writer thread. */
+  private void applyPendingReset() {
+    if (!resetRequested) {
+      return;
+    }
+    resetRequested = false;
+    Renderer.releaseBakedGroups(anchors);
+    anchors.detachAll();
+    anchors = new AnchorPool();
+    frames = new ArrayList<>();
+    Renderer.releaseLod(lod);
+    lod = new PointLodOctree();
+    noveltyFilter = new NoveltyFilter(lod);
+    keyframes = new KeyframeSelector();
+  }
+}
@@ -0,0 +1,56 @@
+package com.google.ar.core.examples.java.common.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+public class CompressedPointCloudTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripKeepsEveryPointExactly() throws IOException {
+        // Two full chunks and a partial one.
+        PointStore.Snapshot points = TestPoints.random(2 * PointStore.CHUNK_POINTS + 123, 1);
+        File file = folder.newFile("scan" + CompressedPointCloud.FILE_EXTENSION);
+
+        CompressedPointCloud.write(points, file);
+        PointStore.Snapshot read = CompressedPointCloud.read(file);
+
+        assertEquals(points.size(), read.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertArrayEquals(TestPoints.position(points, i), TestPoints.position(read, i), 0);
+            assertEquals(TestPoints.color(points, i), TestPoints.color(read, i));
+        }
+    }
+
+    @Test
+    public void roundTripOfEmptySnapshot() throws IOException {
+        File file = folder.newFile("empty" + CompressedPointCloud.FILE_EXTENSION);
+
+        CompressedPointCloud.write(TestPoints.random(0, 1), file);
+
+        assertEquals(0, CompressedPointCloud.read(file).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void readRejectsTruncatedFile() throws IOException {
+        File file = folder.newFile("truncated" + CompressedPointCloud.FILE_EXTENSION);
+        CompressedPointCloud.write(TestPoints.random(1000, 1), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        CompressedPointCloud.read(file);
+    }
+}
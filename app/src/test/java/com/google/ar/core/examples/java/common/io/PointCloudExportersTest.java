@@ -0,0 +1,151 @@
+package com.google.ar.core.examples.java.common.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/** Reads the files of the binary exporters back and checks the headers and every point. */
+public class PointCloudExportersTest {
+
+    // Two full chunks and a partial one, so records straddle the 1 MB write buffer.
+    private static final int POINTS = 2 * PointStore.CHUNK_POINTS + 123;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pcdHeaderAndRecords() throws IOException {
+        PointStore.Snapshot points = TestPoints.random(POINTS, 1);
+        ByteBuffer file = export(new PcdWriter(), points);
+
+        String header = readHeader(file, "DATA binary\n");
+        assertTrue(header, header.contains("\nWIDTH " + POINTS + "\n"));
+        assertTrue(header, header.contains("\nPOINTS " + POINTS + "\n"));
+        assertEquals(POINTS * 16, file.remaining());
+        for (int i = 0; i < POINTS; i++) {
+            float[] position = {file.getFloat(), file.getFloat(), file.getFloat()};
+            assertArrayEquals(TestPoints.position(points, i), position, 0);
+            assertEquals(TestPoints.color(points, i) & 0xffffff, file.getInt());
+        }
+    }
+
+    @Test
+    public void lasHeaderAndRecords() throws IOException {
+        PointStore.Snapshot points = TestPoints.random(POINTS, 2);
+        ByteBuffer file = export(new LasWriter(), points);
+
+        assertEquals("LASF", ascii(file, 0, 4));
+        assertEquals(1, file.get(24));
+        assertEquals(2, file.get(25));
+        int dataOffset = file.getInt(96);
+        assertEquals(2, file.get(104));
+        int recordBytes = file.getShort(105);
+        assertEquals(POINTS, file.getInt(107));
+        double[] scale = {file.getDouble(131), file.getDouble(139), file.getDouble(147)};
+        double[] offset = {file.getDouble(155), file.getDouble(163), file.getDouble(171)};
+        assertArrayEquals(new double[] {0.001, 0.001, 0.001}, scale, 0);
+        assertEquals(dataOffset + (long) POINTS * recordBytes, file.limit());
+
+        double tolerance = LasWriter.SCALE_METERS / 2 + 1e-6;
+        for (int i = 0; i < POINTS; i++) {
+            file.position(dataOffset + i * recordBytes);
+            double x = file.getInt() * scale[0] + offset[0];
+            double y = file.getInt() * scale[1] + offset[1];
+            double z = file.getInt() * scale[2] + offset[2];
+            // LAS X, Y, Z are world X, -Z, Y.
+            float[] expected = TestPoints.position(points, i);
+            assertEquals(expected[0], x, tolerance);
+            assertEquals(-expected[2], y, tolerance);
+            assertEquals(expected[1], z, tolerance);
+            file.position(file.position() + 8);
+            int color = TestPoints.color(points, i);
+            assertEquals(((color >> 16) & 0xff) * 0x101, file.getShort() & 0xffff);
+            assertEquals(((color >> 8) & 0xff) * 0x101, file.getShort() & 0xffff);
+            assertEquals((color & 0xff) * 0x101, file.getShort() & 0xffff);
+        }
+    }
+
+    @Test
+    public void glbChunksAndRecords() throws IOException {
+        PointStore.Snapshot points = TestPoints.random(POINTS, 3);
+        ByteBuffer file = export(new GlbWriter(), points);
+
+        assertEquals("glTF", ascii(file, 0, 4));
+        assertEquals(2, file.getInt(4));
+        assertEquals(file.limit(), file.getInt(8));
+        int jsonBytes = file.getInt(12);
+        assertEquals(0, jsonBytes % 4);
+        assertEquals("JSON", ascii(file, 16, 4));
+        String json = ascii(file, 20, jsonBytes);
+        assertTrue(json, json.contains("\"count\":" + POINTS + ","));
+        int binHeader = 20 + jsonBytes;
+        assertEquals(POINTS * 16, file.getInt(binHeader));
+        assertEquals("BIN\0", ascii(file, binHeader + 4, 4));
+
+        file.position(binHeader + 8);
+        for (int i = 0; i < POINTS; i++) {
+            float[] position = {file.getFloat(), file.getFloat(), file.getFloat()};
+            assertArrayEquals(TestPoints.position(points, i), position, 0);
+            int color = TestPoints.color(points, i);
+            assertEquals((color >> 16) & 0xff, file.get() & 0xff);
+            assertEquals((color >> 8) & 0xff, file.get() & 0xff);
+            assertEquals(color & 0xff, file.get() & 0xff);
+            assertEquals(0xff, file.get() & 0xff);
+        }
+        assertEquals(0, file.remaining());
+    }
+
+    @Test
+    public void glbOfEmptySnapshotHasNoBinaryChunk() throws IOException {
+        ByteBuffer file = export(new GlbWriter(), TestPoints.random(0, 4));
+
+        assertEquals(file.limit(), file.getInt(8));
+        assertEquals(file.limit(), 20 + file.getInt(12));
+    }
+
+    @Test
+    public void exporterCanBeReused() throws IOException {
+        PcdWriter writer = new PcdWriter();
+        export(writer, TestPoints.random(POINTS, 5));
+        PointStore.Snapshot points = TestPoints.random(10, 6);
+        ByteBuffer file = export(writer, points);
+
+        readHeader(file, "DATA binary\n");
+        assertEquals(10 * 16, file.remaining());
+        assertEquals(TestPoints.position(points, 0)[0], file.getFloat(), 0);
+    }
+
+    /** Exports the points to a new file and returns its content, little endian. */
+    private ByteBuffer export(PointCloudExporter exporter, PointStore.Snapshot points)
+            throws IOException {
+        File file = File.createTempFile("scan", exporter.getFileExtension(), folder.getRoot());
+        exporter.write(points, file);
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns the text up to and including the terminator, and moves the buffer past it. */
+    private static String readHeader(ByteBuffer file, String terminator) {
+        String text = ascii(file, 0, Math.min(file.limit(), 1024));
+        int end = text.indexOf(terminator);
+        assertTrue(text, end >= 0);
+        file.position(end + terminator.length());
+        return text.substring(0, file.position());
+    }
+
+    private static String ascii(ByteBuffer file, int offset, int length) {
+        return new String(file.array(), offset, length, StandardCharsets.US_ASCII);
+    }
+}
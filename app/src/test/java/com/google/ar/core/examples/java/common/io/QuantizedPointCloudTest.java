@@ -0,0 +1,97 @@
+package com.google.ar.core.examples.java.common.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+public class QuantizedPointCloudTest {
+
+    private static final float PRECISION = QuantizedPointCloud.DEFAULT_PRECISION_METERS;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripKeepsPointsWithinHalfAStep() throws IOException {
+        // Two full chunks and a partial one.
+        PointStore.Snapshot points = TestPoints.random(2 * PointStore.CHUNK_POINTS + 123, 1);
+
+        assertRoundTrip(points, PRECISION / 2 + 1e-5f);
+    }
+
+    @Test
+    public void roundTripOfPointsSpanningTheWholeRange() throws IOException {
+        // Opposite corners of a 2 km cube far from the origin, the first code delta needs all
+        // 63 bits, and points in between with negative coordinates.
+        float[][] corners = {
+                {-1000, -1000, -1000}, {1000, 1000, 1000}, {-1000, 1000, -1000},
+                {1000, -1000, 1000}, {-0.25f, -999.5f, 0.125f}, {0, 0, 0}
+        };
+        float[][] positions = new float[1][PointStore.CHUNK_POINTS * 3];
+        int[][] colors = new int[1][PointStore.CHUNK_POINTS];
+        for (int i = 0; i < corners.length; i++) {
+            System.arraycopy(corners[i], 0, positions[0], i * 3, 3);
+            colors[0][i] = 0x10203 * i;
+        }
+        PointStore.Snapshot points = PointStore.wrap(positions, colors, corners.length);
+
+        assertRoundTrip(points, PRECISION / 2 + 4 * Math.ulp(2000f));
+    }
+
+    @Test
+    public void roundTripOfEmptySnapshot() throws IOException {
+        File file = folder.newFile("empty" + QuantizedPointCloud.FILE_EXTENSION);
+
+        QuantizedPointCloud.write(TestPoints.random(0, 1), file, PRECISION);
+
+        assertEquals(0, QuantizedPointCloud.read(file).size());
+    }
+
+    @Test
+    public void mortonCodeInterleavesTheAxes() {
+        assertEquals(0b001, QuantizedPointCloud.mortonCode(1, 0, 0));
+        assertEquals(0b010, QuantizedPointCloud.mortonCode(0, 1, 0));
+        assertEquals(0b100, QuantizedPointCloud.mortonCode(0, 0, 1));
+        assertEquals(0b101001, QuantizedPointCloud.mortonCode(3, 0, 2));
+        int max = (1 << 21) - 1;
+        assertEquals(Long.MAX_VALUE, QuantizedPointCloud.mortonCode(max, max, max));
+    }
+
+    /**
+     * Writes and reads back the points, which must have distinct colors, and checks that every
+     * point is still there within the tolerance. The format does not preserve the order, points
+     * are matched by color.
+     */
+    private void assertRoundTrip(PointStore.Snapshot points, float tolerance) throws IOException {
+        File file = folder.newFile("scan" + QuantizedPointCloud.FILE_EXTENSION);
+
+        QuantizedPointCloud.write(points, file, PRECISION);
+        PointStore.Snapshot read = QuantizedPointCloud.read(file);
+
+        assertEquals(points.size(), read.size());
+        int[] indexByColor = new int[1 << 24];
+        boolean[] seen = new boolean[points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            indexByColor[TestPoints.color(points, i)] = i;
+        }
+        for (int i = 0; i < read.size(); i++) {
+            int original = indexByColor[TestPoints.color(read, i)];
+            assertEquals(TestPoints.color(points, original), TestPoints.color(read, i));
+            assertFalse("Point read twice: " + original, seen[original]);
+            seen[original] = true;
+            float[] expected = TestPoints.position(points, original);
+            float[] actual = TestPoints.position(read, i);
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(expected[axis], actual[axis], tolerance);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.google.ar.core.examples.java.common.io;
+
+import java.util.Random;
+
+import com.google.ar.core.examples.java.rawdepth.PointStore;
+
+/** Point clouds for the exporter and codec tests. */
+final class TestPoints {
+
+    private TestPoints() {}
+
+    /**
+     * Returns the given number of points scattered over a few meters around the origin. Every
+     * point gets a distinct color, its index, so tests can match points across formats that do not
+     * preserve the order.
+     */
+    static PointStore.Snapshot random(int size, long seed) {
+        Random random = new Random(seed);
+        int chunkCount = (size + PointStore.CHUNK_POINTS - 1) / PointStore.CHUNK_POINTS;
+        float[][] positions = new float[chunkCount][PointStore.CHUNK_POINTS * 3];
+        int[][] colors = new int[chunkCount][PointStore.CHUNK_POINTS];
+        for (int i = 0; i < size; i++) {
+            float[] chunkPositions = positions[i / PointStore.CHUNK_POINTS];
+            int offset = i % PointStore.CHUNK_POINTS;
+            chunkPositions[offset * 3] = (random.nextFloat() - 0.5f) * 8;
+            chunkPositions[offset * 3 + 1] = (random.nextFloat() - 0.5f) * 3;
+            chunkPositions[offset * 3 + 2] = (random.nextFloat() - 0.5f) * 8;
+            colors[i / PointStore.CHUNK_POINTS][offset] = i;
+        }
+        return PointStore.wrap(positions, colors, size);
+    }
+
+    /** Returns X, Y, Z of the point at the given index of the snapshot. */
+    static float[] position(PointStore.Snapshot points, int index) {
+        float[] positions = points.getPositions(index / PointStore.CHUNK_POINTS);
+        int offset = index % PointStore.CHUNK_POINTS * 3;
+        return new float[] {positions[offset], positions[offset + 1], positions[offset + 2]};
+    }
+
+    /** Returns the packed 0xRRGGBB color of the point at the given index of the snapshot. */
+    static int color(PointStore.Snapshot points, int index) {
+        return points.getColors(index / PointStore.CHUNK_POINTS)[index % PointStore.CHUNK_POINTS];
+    }
+}